@@ -0,0 +1,135 @@
+package lib.config.web.container;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import lib.config.web.ConfigurationServer;
+import lib.config.web.DisplayableConfiguration;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+import lib.config.web.metrics.ServerMetrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+import org.simpleframework.http.core.Container;
+
+/**
+ * Compares the fixed worker pool with a virtual thread per request, when
+ * listeners block on I/O. Each operation is a burst of posts from
+ * <code>clients</code> concurrent clients, each post notifying a listener
+ * that blocks for {@link #LISTENER_IO_MILLIS} (standing in for writing a
+ * settings file or a database row); the time to complete the burst is
+ * reported, so requests per second is <code>clients</code> divided by it.
+ * 
+ * The virtual mode needs Java 21 or later.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class ConcurrentClientsBenchmark {
+
+	private static final long LISTENER_IO_MILLIS = 1;
+
+	@Param({ "10", "1000", "10000" })
+	public int clients;
+
+	@Param({ "platform", "virtual" })
+	public String mode;
+
+	private ConfigurationContainer container;
+	private PooledContainer pool;
+	private ExecutorService listenerExecutor;
+
+	private Request[] posts;
+	private volatile CountDownLatch done;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+
+		Map<String, DisplayableConfiguration> configs = new HashMap<String, DisplayableConfiguration>();
+
+		DisplayableBasicConfiguration config = new DisplayableBasicConfiguration();
+		config.setId("config_0");
+		config.setProperty("key", "a");
+		configs.put(config.getId(), config);
+
+		container = new ConfigurationContainer(configs);
+		container.addListener(new ContainerListenerAdapter() {
+
+			@Override
+			public void onCommand(Command command) {
+				try {
+					Thread.sleep(LISTENER_IO_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+
+		// counts completed requests, so a burst can be waited for
+		Container counting = new Container() {
+
+			@Override
+			public void handle(Request request, Response response) {
+				try {
+					container.handle(request, response);
+				} finally {
+					done.countDown();
+				}
+			}
+		};
+
+		// large enough that no client is rejected, this measures throughput
+		if (mode.equals("virtual")) {
+			listenerExecutor = VirtualThreads.newExecutor();
+			container.setListenerExecutor(listenerExecutor);
+			pool = new PooledContainer(counting, new ServerMetrics(),
+					VirtualThreads.newExecutor(), clients);
+		} else {
+			pool = new PooledContainer(counting, new ServerMetrics(),
+					ConfigurationServer.DEFAULT_WORKER_THREADS, clients);
+		}
+
+		// alternate values so every post is a change
+		posts = new Request[2];
+
+		for (int i = 0; i < posts.length; i++) {
+			posts[i] = FakeHttp.request("POST", "/", FakeHttp.params(
+					"config_id", "config_0", "command", "UPDATE", "key",
+					String.valueOf((char) ('b' + i))), null);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		pool.shutdown(10, TimeUnit.SECONDS);
+		container.close();
+
+		if (listenerExecutor != null) {
+			listenerExecutor.shutdown();
+		}
+	}
+
+	@Benchmark
+	public void burst() throws InterruptedException {
+		done = new CountDownLatch(clients);
+
+		for (int i = 0; i < clients; i++) {
+			pool.handle(posts[i & 1], FakeHttp.response(new FakeHttp.Exchange()));
+		}
+
+		done.await();
+	}
+}
@@ -0,0 +1,91 @@
+package lib.config.web.container;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lib.config.web.DisplayableConfiguration;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Throughput of {@link ConfigurationContainer#commit(String, Transaction)}
+ * from eight threads, with the writers spread over a varying number of
+ * configurations. Writes to the same configuration are serialized, so
+ * throughput should grow with the number of configurations until every
+ * thread has one to itself.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Threads(8)
+public class ConcurrentWriteBenchmark {
+
+	private static final int KEYS_PER_CONFIG = 100;
+
+	@Param({ "1", "2", "4", "8" })
+	public int configCount;
+
+	private ConfigurationContainer container;
+
+	private final AtomicInteger writers = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Map<String, DisplayableConfiguration> configs = new HashMap<String, DisplayableConfiguration>();
+
+		for (int i = 0; i < configCount; i++) {
+			DisplayableBasicConfiguration config = new DisplayableBasicConfiguration();
+			config.setId("config_" + i);
+
+			for (int j = 0; j < KEYS_PER_CONFIG; j++) {
+				config.setProperty("key_" + j, "value");
+			}
+
+			configs.put(config.getId(), config);
+		}
+
+		container = new ConfigurationContainer(configs);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		container.close();
+	}
+
+	/**
+	 * The configuration a thread writes to.
+	 */
+	@State(Scope.Thread)
+	public static class Writer {
+
+		private String id;
+		private int sequence;
+
+		@Setup(Level.Trial)
+		public void setUp(ConcurrentWriteBenchmark benchmark) {
+			id = "config_"
+					+ (benchmark.writers.getAndIncrement() % benchmark.configCount);
+		}
+	}
+
+	@Benchmark
+	public ChangeSet commit(Writer writer) {
+		int sequence = writer.sequence++;
+
+		return container.commit(writer.id, new Transaction().set("key_"
+				+ (sequence % KEYS_PER_CONFIG), String.valueOf(sequence)));
+	}
+}
@@ -0,0 +1,159 @@
+package lib.config.web.container;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import lib.config.web.DisplayableConfiguration;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+
+/**
+ * Throughput of {@link ConfigurationContainer#handle(Request, Response)} for
+ * each kind of request, using in-memory requests and responses. Run with the
+ * gc profiler (as "gradle jmh" does) to track allocation per request.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class HandleBenchmark {
+
+	@Param({ "1", "100" })
+	public int configCount;
+
+	@Param({ "10", "1000" })
+	public int keysPerConfig;
+
+	@Param({ "16", "256" })
+	public int valueSize;
+
+	private ConfigurationContainer container;
+
+	private Request index;
+	private Request view;
+	private Request addForm;
+	private Request[] updates;
+	private Request delete;
+
+	private FakeHttp.Exchange exchange;
+	private Response response;
+
+	private int sequence;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+
+		Map<String, DisplayableConfiguration> configs = new HashMap<String, DisplayableConfiguration>();
+
+		for (int i = 0; i < configCount; i++) {
+			DisplayableBasicConfiguration config = new DisplayableBasicConfiguration();
+			config.setId("config_" + i);
+
+			for (int j = 0; j < keysPerConfig; j++) {
+				config.setProperty("key_" + j, value('a'));
+			}
+
+			configs.put(config.getId(), config);
+		}
+
+		container = new ConfigurationContainer(configs);
+
+		index = FakeHttp.request("GET", "/", FakeHttp.params(), null);
+		view = FakeHttp.request("GET", "/",
+				FakeHttp.params("config", "config_0"), null);
+		addForm = FakeHttp.request("GET", "/",
+				FakeHttp.params("config", "config_0", "command", "ADD"), null);
+		delete = FakeHttp.request("POST", "/", FakeHttp.params("config_id",
+				"config_0", "command", "DELETE", "deleted_key", ""), null);
+
+		// alternate between two sets of values so every post changes them
+		updates = new Request[2];
+
+		for (int i = 0; i < updates.length; i++) {
+			Map<String, String> params = FakeHttp.params("config_id",
+					"config_0", "command", "UPDATE");
+
+			for (int j = 0; j < keysPerConfig; j++) {
+				params.put("key_" + j, value((char) ('b' + i)));
+			}
+
+			updates[i] = FakeHttp.request("POST", "/", params, null);
+		}
+
+		exchange = new FakeHttp.Exchange();
+		response = FakeHttp.response(exchange);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		container.close();
+	}
+
+	@Benchmark
+	public int index() {
+		return handle(index);
+	}
+
+	@Benchmark
+	public int view() {
+		return handle(view);
+	}
+
+	@Benchmark
+	public int addForm() {
+		return handle(addForm);
+	}
+
+	@Benchmark
+	public int updatePost() {
+		return handle(updates[sequence++ & 1]);
+	}
+
+	@Benchmark
+	public int deletePost(DeletedKey key) {
+		return handle(delete);
+	}
+
+	/**
+	 * Puts back the key the delete benchmark removes. Kept out of the
+	 * measurement, though per-invocation setup adds some noise for the
+	 * smallest configurations.
+	 */
+	@State(Scope.Thread)
+	public static class DeletedKey {
+
+		@Setup(Level.Invocation)
+		public void add(HandleBenchmark benchmark) {
+			benchmark.container.commit("config_0",
+					new Transaction().set("deleted_key", "x"));
+		}
+	}
+
+	private int handle(Request request) {
+		exchange.reset();
+		container.handle(request, response);
+		return exchange.getBodySize();
+	}
+
+	private String value(char c) {
+		StringBuilder value = new StringBuilder(valueSize);
+
+		for (int i = 0; i < valueSize; i++) {
+			value.append(c);
+		}
+
+		return value.toString();
+	}
+}
@@ -0,0 +1,67 @@
+package lib.config.web.container;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lib.config.web.DisplayableConfiguration;
+import lib.config.web.container.ListenerRegistryBenchmark.CountingListener;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Throughput of committing a single key, notifying the listeners registered
+ * with the container. Kept apart from {@link ListenerRegistryBenchmark}, as
+ * the container always uses its own registry.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class ListenerCommitBenchmark {
+
+	@Param({ "8" })
+	public int listenerCount;
+
+	private ConfigurationContainer container;
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	@Setup(Level.Trial)
+	public void setUp() {
+
+		Map<String, DisplayableConfiguration> configs = new HashMap<String, DisplayableConfiguration>();
+		DisplayableBasicConfiguration basic = new DisplayableBasicConfiguration();
+		basic.setId("config");
+		basic.setProperty("key", "value");
+		configs.put("config", basic);
+
+		container = new ConfigurationContainer(configs);
+
+		for (int i = 0; i < listenerCount; i++) {
+			container.addListener(new CountingListener());
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		container.close();
+	}
+
+	@Benchmark
+	public ChangeSet commit() {
+		return container.commit("config",
+				new Transaction().set("key", Long.toString(sequence
+						.incrementAndGet())));
+	}
+}
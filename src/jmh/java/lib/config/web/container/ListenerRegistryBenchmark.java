@@ -0,0 +1,114 @@
+package lib.config.web.container;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+import lib.config.base.configuration.Configuration;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Notification throughput of the listener registry, with and without
+ * concurrent registration churn.
+ * 
+ * <code>notify</code> compares iterating the copy-on-write registry with a
+ * synchronized set; run it with <code>-t 1</code>, <code>-t 4</code> etc. to
+ * see how it scales with worker threads. The <code>churn</code> group runs
+ * three notifying threads against one thread that continuously adds and
+ * removes a listener. {@link ListenerCommitBenchmark} measures the
+ * container's own registry when committing.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class ListenerRegistryBenchmark {
+
+	@Param({ "copyOnWrite", "synchronized" })
+	public String registry;
+
+	@Param({ "8" })
+	public int listenerCount;
+
+	private Set<ContainerListener> listeners;
+	private Configuration config;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+
+		if (registry.equals("copyOnWrite")) {
+			listeners = new CopyOnWriteArraySet<ContainerListener>();
+		} else {
+			listeners = Collections
+					.synchronizedSet(new HashSet<ContainerListener>());
+		}
+
+		DisplayableBasicConfiguration basic = new DisplayableBasicConfiguration();
+		basic.setId("config");
+		basic.setProperty("key", "value");
+		config = basic;
+
+		for (int i = 0; i < listenerCount; i++) {
+			listeners.add(new CountingListener());
+		}
+	}
+
+	@Benchmark
+	public void notifyListeners() {
+		iterate();
+	}
+
+	@Benchmark
+	@Group("churn")
+	@GroupThreads(3)
+	public void churnNotify() {
+		iterate();
+	}
+
+	@Benchmark
+	@Group("churn")
+	@GroupThreads(1)
+	public void churnRegister() {
+		ContainerListener listener = new CountingListener();
+		listeners.add(listener);
+		listeners.remove(listener);
+	}
+
+	private void iterate() {
+		if (listeners instanceof CopyOnWriteArraySet) {
+			for (ContainerListener curr : listeners) {
+				curr.onModifed(config, "key");
+			}
+		} else {
+			// a synchronized set must be locked while iterating
+			synchronized (listeners) {
+				for (ContainerListener curr : listeners) {
+					curr.onModifed(config, "key");
+				}
+			}
+		}
+	}
+
+	static class CountingListener extends ContainerListenerAdapter {
+
+		private long count;
+
+		@Override
+		public void onModifed(Configuration config, String key) {
+			count++;
+		}
+	}
+}
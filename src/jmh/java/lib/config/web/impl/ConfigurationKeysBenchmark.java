@@ -0,0 +1,63 @@
+package lib.config.web.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import lib.config.web.DisplayableConfiguration;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of iterating the keys of a configuration, as a listener or persister
+ * that walks every key does (pages are rendered from snapshots, which read
+ * the keys once), comparing {@link DisplayableBasicConfiguration} (which copies
+ * its keys on every call) with {@link CachedKeysDisplayableConfiguration}.
+ * The gc profiler shows the allocation per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class ConfigurationKeysBenchmark {
+
+	@Param({ "10", "1000", "100000" })
+	public int keyCount;
+
+	@Param({ "basic", "cachedKeys" })
+	public String implementation;
+
+	private DisplayableConfiguration config;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+
+		if (implementation.equals("basic")) {
+			config = new DisplayableBasicConfiguration();
+		} else {
+			config = new CachedKeysDisplayableConfiguration();
+		}
+
+		config.setId("config");
+
+		for (int i = 0; i < keyCount; i++) {
+			config.setProperty("key_" + i, "value_" + i);
+		}
+	}
+
+	@Benchmark
+	public int iterateKeys() {
+		int length = 0;
+
+		for (String key : config.getKeys()) {
+			length += key.length();
+		}
+
+		return length;
+	}
+}
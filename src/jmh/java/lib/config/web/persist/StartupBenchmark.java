@@ -0,0 +1,112 @@
+package lib.config.web.persist;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import lib.config.base.configuration.ConfigurationException;
+import lib.config.base.configuration.ConfigurationList;
+import lib.config.base.configuration.factory.ConfigurationFactory;
+import lib.config.base.configuration.persist.impl.IniPersister;
+import lib.config.base.configuration.persist.impl.SimpleXMLPersister;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Time taken to load the configurations hosted by the server on startup,
+ * comparing the INI and XML persisters with a {@link BinarySnapshot} of the
+ * same configurations.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class StartupBenchmark {
+
+	private static final ConfigurationFactory<DisplayableBasicConfiguration> FACTORY = new ConfigurationFactory<DisplayableBasicConfiguration>() {
+
+		@Override
+		public DisplayableBasicConfiguration buildConfiguration(String name) {
+			DisplayableBasicConfiguration config = new DisplayableBasicConfiguration();
+			config.setId(name);
+			return config;
+		}
+	};
+
+	@Param({ "1000" })
+	public int configCount;
+
+	@Param({ "1000" })
+	public int keyCount;
+
+	private File iniFile;
+	private File xmlFile;
+	private File snapshotFile;
+
+	private BinarySnapshot snapshot;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, ConfigurationException {
+		iniFile = File.createTempFile("startup", ".ini");
+		xmlFile = File.createTempFile("startup", ".xml");
+		snapshotFile = new File(iniFile.getPath() + ".snapshot");
+
+		ConfigurationList<DisplayableBasicConfiguration> list = new ConfigurationList<DisplayableBasicConfiguration>();
+
+		for (int i = 0; i < configCount; i++) {
+			DisplayableBasicConfiguration config = FACTORY
+					.buildConfiguration("config_" + i);
+
+			for (int j = 0; j < keyCount; j++) {
+				config.setProperty("key_" + j, "value_" + i + "_" + j);
+			}
+
+			list.getConfigurations().add(config);
+		}
+
+		new IniPersister<DisplayableBasicConfiguration>(FACTORY, iniFile)
+				.write(list);
+		new SimpleXMLPersister<DisplayableBasicConfiguration>(xmlFile)
+				.write(list);
+
+		snapshot = new BinarySnapshot(snapshotFile, iniFile);
+		snapshot.write(list.getConfigurations());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		iniFile.delete();
+		xmlFile.delete();
+		snapshotFile.delete();
+	}
+
+	@Benchmark
+	public List<DisplayableBasicConfiguration> readIni()
+			throws ConfigurationException {
+		return new IniPersister<DisplayableBasicConfiguration>(FACTORY,
+				iniFile).read().getConfigurations();
+	}
+
+	@Benchmark
+	public List<DisplayableBasicConfiguration> readXml()
+			throws ConfigurationException {
+		return new SimpleXMLPersister<DisplayableBasicConfiguration>(xmlFile)
+				.read().getConfigurations();
+	}
+
+	@Benchmark
+	public List<DisplayableBasicConfiguration> readSnapshot()
+			throws IOException {
+		return snapshot.read(FACTORY);
+	}
+}
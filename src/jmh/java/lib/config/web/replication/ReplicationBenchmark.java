@@ -0,0 +1,130 @@
+package lib.config.web.replication;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import lib.config.web.ConfigurationServer;
+import lib.config.web.DisplayableConfiguration;
+import lib.config.web.container.ConfigurationContainer;
+import lib.config.web.container.Transaction;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replication between <code>servers</code> servers on localhost, each on its
+ * own port and listing the others as peers. <code>replicate</code> is the lag
+ * from a change being committed on one server to it being visible on every
+ * other; <code>commit</code> is the rate changes can be committed while
+ * being replicated. The replicators' own lag histograms are logged at debug
+ * level at the end of each trial.
+ */
+@State(Scope.Benchmark)
+public class ReplicationBenchmark {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ReplicationBenchmark.class);
+
+	private static final String CONFIG_ID = "settings";
+
+	@Param({ "2", "3", "5" })
+	public int servers;
+
+	private ConfigurationServer[] nodes;
+	private ConfigurationContainer origin;
+	private int sequence;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		nodes = new ConfigurationServer[servers];
+
+		for (int i = 0; i < servers; i++) {
+			Map<String, DisplayableConfiguration> configs = new HashMap<String, DisplayableConfiguration>();
+
+			DisplayableBasicConfiguration config = new DisplayableBasicConfiguration();
+			config.setId(CONFIG_ID);
+			config.setProperty("key", "value");
+			configs.put(config.getId(), config);
+
+			nodes[i] = new ConfigurationServer(0, configs);
+			nodes[i].setNodeId("node_" + i);
+			nodes[i].start();
+		}
+
+		// ports are only known once started
+		for (int i = 0; i < servers; i++) {
+			for (int j = 0; j < servers; j++) {
+				if (i != j) {
+					nodes[i].addPeer(urlOf(nodes[j]));
+				}
+			}
+		}
+
+		origin = nodes[0].getContainer();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+
+		for (ConfigurationServer curr : nodes) {
+			Replicator replicator = curr.getReplicator();
+
+			logger.debug("{}: applied {}, mean lag {}ms, p99 lag {}us",
+					new Object[] {
+							replicator.getNodeId(),
+							replicator.getAppliedCount(),
+							replicator.getReplicationLag().getMeanMillis(),
+							TimeUnit.NANOSECONDS.toMicros(replicator
+									.getReplicationLag()
+									.getPercentileNanos(99)) });
+
+			curr.stop();
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void replicate() throws InterruptedException {
+		String value = String.valueOf(sequence++);
+
+		origin.commit(CONFIG_ID, new Transaction().set("key", value));
+
+		for (int i = 1; i < servers; i++) {
+			ConfigurationContainer curr = nodes[i].getContainer();
+
+			while (!value.equals(curr.getSnapshot(CONFIG_ID).getProperty(
+					"key"))) {
+				Thread.yield();
+			}
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void commit() {
+		origin.commit(CONFIG_ID,
+				new Transaction().set("key", String.valueOf(sequence++)));
+	}
+
+	private static URL urlOf(ConfigurationServer server) throws IOException {
+		InetSocketAddress address = (InetSocketAddress) server.getAddress();
+		return new URL("http://localhost:" + address.getPort() + "/");
+	}
+}
@@ -0,0 +1,24 @@
+package lib.config.web;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A displayable configuration that can read many keys at once, for
+ * implementations where each read is a round trip to a database or other
+ * slow store. The container uses it to read every key of a configuration in a
+ * single call when it takes a snapshot to render its pages.
+ *
+ * @author Benjamin Leov
+ *
+ */
+public interface BulkConfiguration extends DisplayableConfiguration {
+
+	/**
+	 * @param keys
+	 *            Keys to read.
+	 * @return Value of each of the keys. Keys that do not exist may be left
+	 *         out, or mapped to null.
+	 */
+	Map<String, String> getProperties(Collection<String> keys);
+}
@@ -0,0 +1,41 @@
+package lib.config.web;
+
+import java.util.Set;
+
+import lib.config.base.configuration.ConfigurationException;
+
+/**
+ * Supplies configurations to a {@link ConfigurationRegistry} as they are
+ * needed, rather than all of them up front.
+ * 
+ * Listing the configurations should be cheap (such as listing a directory);
+ * loading one may be expensive (such as parsing its file).
+ * 
+ * @author Benjamin Leov
+ * 
+ */
+public interface ConfigurationProvider {
+
+	/**
+	 * @return The ids of every configuration that can be loaded.
+	 */
+	Set<String> getIds();
+
+	/**
+	 * @return Name shown for a configuration on the index page, without
+	 *         loading it.
+	 */
+	String getDisplayName(String id);
+
+	/**
+	 * @return The configuration, or null if there is none with the id.
+	 */
+	DisplayableConfiguration load(String id) throws ConfigurationException;
+
+	/**
+	 * Called when a configuration is evicted from the registry, so that
+	 * changes made to it can be saved before it is discarded.
+	 */
+	void unload(String id, DisplayableConfiguration config)
+			throws ConfigurationException;
+}
@@ -0,0 +1,428 @@
+package lib.config.web;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lib.config.base.configuration.ConfigurationException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the configurations a server displays, loading each from a
+ * {@link ConfigurationProvider} the first time it is accessed. The index of
+ * configurations is built from their ids and display names alone, so the
+ * server can start without loading any of them.
+ * 
+ * At most a limited number of configurations are held at once, the least
+ * recently accessed being evicted to make room, and configurations that
+ * have not been accessed within the idle timeout are evicted as others are
+ * accessed. The provider is given the chance to save an evicted
+ * configuration, and it is loaded again when next accessed. A configuration
+ * that is pinned, such as while it is being changed, is not evicted, nor is
+ * the configuration being accessed. Different configurations are loaded in
+ * parallel.
+ * 
+ * @author Benjamin Leov
+ * 
+ */
+public class ConfigurationRegistry {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ConfigurationRegistry.class);
+
+	/**
+	 * No limit on the number of configurations held.
+	 */
+	public static final int UNLIMITED = Integer.MAX_VALUE;
+
+	private final ConfigurationProvider provider;
+	private final int maxLoaded;
+	private final long idleTimeout;
+
+	/**
+	 * Loaded configurations, least recently accessed first. Accesses move an
+	 * entry to the end.
+	 */
+	private final LinkedHashMap<String, Entry> loaded;
+
+	/**
+	 * Number of times each pinned configuration has been pinned and not yet
+	 * unpinned. Guarded by {@link #loaded}.
+	 */
+	private final Map<String, Integer> pinned;
+
+	/**
+	 * Loads in progress, so that a configuration is only loaded once when
+	 * requested by several threads, while others are loaded in parallel.
+	 */
+	private final ConcurrentMap<String, FutureTask<DisplayableConfiguration>> loading;
+
+	private final Set<EvictionListener> listeners;
+
+	private final AtomicLong loads;
+	private final AtomicLong evictions;
+
+	/**
+	 * A registry that never evicts.
+	 */
+	public ConfigurationRegistry(ConfigurationProvider provider) {
+		this(provider, UNLIMITED, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param maxLoaded
+	 *            Most configurations held at once.
+	 * @param idleTimeout
+	 *            How long a configuration is held without being accessed,
+	 *            or 0 to hold it until room is needed.
+	 */
+	public ConfigurationRegistry(ConfigurationProvider provider,
+			int maxLoaded, long idleTimeout, TimeUnit unit) {
+
+		if (maxLoaded < 1) {
+			throw new IllegalArgumentException(
+					"At least one configuration must be held.");
+		}
+
+		this.provider = provider;
+		this.maxLoaded = maxLoaded;
+		this.idleTimeout = unit.toNanos(idleTimeout);
+		this.loaded = new LinkedHashMap<String, Entry>();
+		this.pinned = new HashMap<String, Integer>();
+		this.loading = new ConcurrentHashMap<String, FutureTask<DisplayableConfiguration>>();
+		this.listeners = new CopyOnWriteArraySet<EvictionListener>();
+		this.loads = new AtomicLong();
+		this.evictions = new AtomicLong();
+	}
+
+	/**
+	 * @return Ids of every configuration, loaded or not.
+	 */
+	public Set<String> getIds() {
+		return provider.getIds();
+	}
+
+	public boolean contains(String id) {
+		return id != null && provider.getIds().contains(id);
+	}
+
+	/**
+	 * @return The name of the configuration, without loading it or counting
+	 *         as an access.
+	 */
+	public String getDisplayName(String id) {
+		Entry entry;
+
+		synchronized (loaded) {
+			entry = loaded.get(id);
+		}
+
+		return entry == null ? provider.getDisplayName(id) : entry.config
+				.getDisplayName();
+	}
+
+	/**
+	 * @return The configuration, loading it if it is not held, or null if
+	 *         there is none with the id.
+	 * @throws IllegalStateException
+	 *             If the configuration could not be loaded.
+	 */
+	public DisplayableConfiguration get(String id) {
+
+		DisplayableConfiguration config = access(id);
+
+		if (config == null) {
+			config = loadOnce(id);
+		}
+
+		// evicted outside of the locks, as listeners may take locks of
+		// their own
+		evict(collectEvictions(id));
+
+		return config;
+	}
+
+	/**
+	 * Records an access to a configuration that is held, without loading it
+	 * if it is not. Accesses keep a configuration from being evicted as idle
+	 * or least recently used.
+	 */
+	public void touch(String id) {
+		if (access(id) != null) {
+			evict(collectEvictions(id));
+		}
+	}
+
+	/**
+	 * Keeps a configuration from being evicted until it is unpinned as many
+	 * times, so that the provider does not unload it while it is being
+	 * changed. Pin it before getting it, as it may already be on its way out.
+	 * A pinned configuration is held even if more than the most allowed are.
+	 */
+	public void pin(String id) {
+		synchronized (loaded) {
+			Integer count = pinned.get(id);
+			pinned.put(id, count == null ? 1 : count + 1);
+		}
+	}
+
+	/**
+	 * Allows a configuration to be evicted again, once it has been unpinned
+	 * as many times as it was pinned.
+	 */
+	public void unpin(String id) {
+		synchronized (loaded) {
+			Integer count = pinned.get(id);
+
+			if (count == null || count == 1) {
+				pinned.remove(id);
+			} else {
+				pinned.put(id, count - 1);
+			}
+		}
+	}
+
+	/**
+	 * @return The configuration if it is held, without loading it or
+	 *         counting as an access.
+	 */
+	public DisplayableConfiguration getIfLoaded(String id) {
+		synchronized (loaded) {
+			Entry entry = loaded.get(id);
+			return entry == null ? null : entry.config;
+		}
+	}
+
+	/**
+	 * Evicts every configuration, giving the provider the chance to save
+	 * them.
+	 */
+	public void unloadAll() {
+		List<Map.Entry<String, Entry>> evicted;
+
+		synchronized (loaded) {
+			evicted = new ArrayList<Map.Entry<String, Entry>>(
+					loaded.entrySet());
+			loaded.clear();
+		}
+
+		evict(evicted);
+	}
+
+	public void addEvictionListener(EvictionListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeEvictionListener(EvictionListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @return Number of configurations held.
+	 */
+	public int getLoadedCount() {
+		synchronized (loaded) {
+			return loaded.size();
+		}
+	}
+
+	/**
+	 * @return Number of times a configuration has been loaded.
+	 */
+	public long getLoadCount() {
+		return loads.get();
+	}
+
+	/**
+	 * @return Number of times a configuration has been evicted.
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	private DisplayableConfiguration access(String id) {
+		synchronized (loaded) {
+			Entry entry = loaded.remove(id);
+
+			if (entry == null) {
+				return null;
+			}
+
+			entry.lastAccess = System.nanoTime();
+			loaded.put(id, entry);
+			return entry.config;
+		}
+	}
+
+	/**
+	 * Loads a configuration, or waits for the thread already loading it.
+	 */
+	private DisplayableConfiguration loadOnce(final String id) {
+
+		FutureTask<DisplayableConfiguration> task = new FutureTask<DisplayableConfiguration>(
+				new Callable<DisplayableConfiguration>() {
+
+					@Override
+					public DisplayableConfiguration call() {
+						// may have been loaded by a task that has finished
+						DisplayableConfiguration config = access(id);
+						return config != null ? config : load(id);
+					}
+				});
+
+		FutureTask<DisplayableConfiguration> current = loading.putIfAbsent(id,
+				task);
+
+		if (current == null) {
+			current = task;
+
+			try {
+				task.run();
+			} finally {
+				loading.remove(id, task);
+			}
+		}
+
+		boolean interrupted = false;
+
+		try {
+			while (true) {
+				try {
+					return current.get();
+				} catch (InterruptedException e) {
+					// the load is not abandoned, so neither is the wait
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+
+			throw new IllegalStateException("Could not load configuration "
+					+ id, cause);
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private DisplayableConfiguration load(String id) {
+
+		long start = System.nanoTime();
+		DisplayableConfiguration config;
+
+		try {
+			config = provider.load(id);
+		} catch (ConfigurationException e) {
+			throw new IllegalStateException("Could not load configuration "
+					+ id, e);
+		}
+
+		if (config == null) {
+			return null;
+		}
+
+		synchronized (loaded) {
+			loaded.put(id, new Entry(config));
+		}
+
+		loads.incrementAndGet();
+		logger.debug("Loaded configuration " + id + " in "
+				+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+				+ "ms.");
+
+		return config;
+	}
+
+	/**
+	 * @param accessed
+	 *            Id of the configuration just accessed, which is kept even
+	 *            if the others are pinned.
+	 */
+	private List<Map.Entry<String, Entry>> collectEvictions(String accessed) {
+		List<Map.Entry<String, Entry>> evicted = new ArrayList<Map.Entry<String, Entry>>();
+		long now = System.nanoTime();
+
+		synchronized (loaded) {
+			Iterator<Map.Entry<String, Entry>> it = loaded.entrySet()
+					.iterator();
+
+			// least recently accessed first, so stop at the first to keep
+			while (it.hasNext()) {
+				Map.Entry<String, Entry> eldest = it.next();
+
+				boolean full = loaded.size() > maxLoaded;
+				boolean idle = idleTimeout > 0
+						&& now - eldest.getValue().lastAccess > idleTimeout;
+
+				if (!full && !idle) {
+					break;
+				}
+
+				if (pinned.containsKey(eldest.getKey())
+						|| eldest.getKey().equals(accessed)) {
+					continue;
+				}
+
+				evicted.add(eldest);
+				it.remove();
+			}
+		}
+
+		return evicted;
+	}
+
+	private void evict(List<Map.Entry<String, Entry>> evicted) {
+
+		for (Map.Entry<String, Entry> curr : evicted) {
+			String id = curr.getKey();
+			DisplayableConfiguration config = curr.getValue().config;
+
+			evictions.incrementAndGet();
+
+			try {
+				provider.unload(id, config);
+			} catch (ConfigurationException e) {
+				logger.warn("Exception occured while unloading configuration "
+						+ id, e);
+			}
+
+			for (EvictionListener listener : listeners) {
+				listener.onEvicted(id, config);
+			}
+		}
+	}
+
+	private static final class Entry {
+
+		private final DisplayableConfiguration config;
+		private volatile long lastAccess;
+
+		Entry(DisplayableConfiguration config) {
+			this.config = config;
+			this.lastAccess = System.nanoTime();
+		}
+	}
+}
@@ -1,17 +1,28 @@
 package lib.config.web;
 
+import java.io.Closeable;
+import java.io.Flushable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.util.HashSet;
+import java.net.URL;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
-import lib.config.base.configuration.Configuration;
 import lib.config.web.container.Command;
 import lib.config.web.container.ConfigurationContainer;
 import lib.config.web.container.ContainerListener;
 import lib.config.web.container.ContainerListenerAdapter;
+import lib.config.web.container.PooledContainer;
+import lib.config.web.container.VirtualThreads;
+import lib.config.web.impl.MapConfigurationProvider;
+import lib.config.web.metrics.ServerMetrics;
+import lib.config.web.replication.Replicator;
 
 import org.simpleframework.http.core.ContainerServer;
 import org.simpleframework.transport.Server;
@@ -25,66 +36,235 @@ public class ConfigurationServer {
 	private static final Logger logger = LoggerFactory
 			.getLogger(ConfigurationServer.class);
 
+	public static final int DEFAULT_WORKER_THREADS = 8;
+	public static final int DEFAULT_QUEUE_SIZE = 256;
+	public static final long DEFAULT_SHUTDOWN_TIMEOUT = 10000;
+
 	private int port;
-	private Map<String, DisplayableConfiguration> configs;
+	private final ConfigurationRegistry registry;
 	private Connection connection;
+	private SocketAddress address;
+	private PooledContainer workers;
+	private FutureTask<Void> stopped;
+	private volatile ConfigurationContainer container;
+
+	private int workerThreads = DEFAULT_WORKER_THREADS;
+	private int queueSize = DEFAULT_QUEUE_SIZE;
+	private long shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT;
+	private boolean virtualThreads;
+
+	/**
+	 * Set once closed, after which listeners may no longer accept changes.
+	 */
+	private boolean closed;
+	private ExecutorService listenerExecutor;
+
+	/**
+	 * Iterated on every notification, but rarely modified, so a copy is made
+	 * on modification and iteration never locks.
+	 */
 	private final Set<ContainerListener> listeners;
 
-	private final Object sync = new Object();
+	/**
+	 * Kept across restarts, so that totals cover the life of the server.
+	 */
+	private final ServerMetrics metrics;
+
+	/**
+	 * Id this server replicates as, or null for a random one.
+	 */
+	private String nodeId;
+
+	/**
+	 * Keeps the configurations in step with peers, or null until a peer is
+	 * added. Kept across restarts, so that it remembers what it has
+	 * replicated.
+	 */
+	private Replicator replicator;
 
 	public ConfigurationServer(int port,
 			Map<String, DisplayableConfiguration> configs) {
+		this(port, new ConfigurationRegistry(new MapConfigurationProvider(
+				configs)));
+	}
+
+	/**
+	 * Serves configurations that are loaded as they are first accessed, so
+	 * that the server can start without loading any of them.
+	 */
+	public ConfigurationServer(int port, ConfigurationRegistry registry) {
 		this.port = port;
-		this.configs = configs;
-		this.listeners = new HashSet<ContainerListener>();
+		this.registry = registry;
+		this.listeners = new CopyOnWriteArraySet<ContainerListener>();
+		this.metrics = new ServerMetrics();
 	}
 
-	public synchronized void start() throws IOException {
+	/**
+	 * Starts serving the configurations, returning once the server is
+	 * listening.
+	 * 
+	 * @return Completes when the server has stopped, either through
+	 *         {@link #stop()} or an EXIT command. Cancelling it does not stop
+	 *         the server.
+	 * @throws IOException
+	 *             If the port cannot be listened on.
+	 */
+	public synchronized Future<Void> start() throws IOException {
 
-		if (connection == null) {
-			ConfigurationContainer container = new ConfigurationContainer(
-					configs);
+		if (closed) {
+			throw new IllegalStateException("The server has been closed.");
+		}
 
-			container.addListener(new ContainerListenerAdapter() {
+		if (connection != null) {
+			logger.warn("Attempt to start server ignored (already started).");
+			return stopped;
+		}
 
-				@Override
-				public void onModifed(Configuration config, String key) {
-					for (ContainerListener curr : listeners) {
-						curr.onModifed(config, key);
-					}
-				}
+		if (virtualThreads && !VirtualThreads.isAvailable()) {
+			throw new UnsupportedOperationException(
+					"Virtual threads require Java 21 or later.");
+		}
+
+		container = new ConfigurationContainer(registry, metrics);
+
+		// listeners are registered directly with the container, so that
+		// they are only notified once
+		for (ContainerListener curr : listeners) {
+			container.addListener(curr);
+		}
+
+		if (replicator != null) {
+			container.addListener(replicator);
+		}
 
-				@Override
-				public void onCommand(Command command) {
-					
-					if (command == Command.EXIT) {
-						synchronized (sync) {
-							sync.notify();
+		container.addListener(new ContainerListenerAdapter() {
+
+			@Override
+			public void onCommand(Command command) {
+
+				if (command == Command.EXIT) {
+					// stopping waits for in-flight requests, including the
+					// one that sent this command, so it can't be done here
+					Thread stopper = new Thread(new Runnable() {
+
+						@Override
+						public void run() {
+							stop();
 						}
-					}
+					}, "config-server-stop");
+					stopper.setDaemon(true);
+					stopper.start();
 				}
-			});
+			}
+		});
 
-			Server server = new ContainerServer(container);
-			Connection connection = new SocketConnection(server);
-			SocketAddress address = new InetSocketAddress(port);
-			connection.connect(address);
+		if (virtualThreads) {
+			listenerExecutor = VirtualThreads.newExecutor();
+			container.setListenerExecutor(listenerExecutor);
 
-			// wait for the exit command
-			synchronized (sync) {
+			workers = new PooledContainer(container, metrics,
+					VirtualThreads.newExecutor(), workerThreads + queueSize);
+		} else {
+			workers = new PooledContainer(container, metrics, workerThreads,
+					queueSize);
+		}
+		stopped = new FutureTask<Void>(new Runnable() {
+
+			@Override
+			public void run() {
+			}
+		}, null);
+
+		try {
+			Server server = new ContainerServer(workers);
+			connection = new SocketConnection(server);
+			address = connection.connect(new InetSocketAddress(port));
+		} catch (IOException e) {
+			release();
+			throw e;
+		}
+
+		if (replicator != null) {
+			startReplication();
+		}
+
+		logger.info("Server listening on " + address + ".");
+		return stopped;
+	}
+
+	/**
+	 * Stops the server. Requests already accepted are given until the
+	 * shutdown timeout to complete, while new requests are turned away, before
+	 * the port is released and listeners holding pending work are flushed.
+	 * The server can be started again.
+	 */
+	public synchronized void stop() {
+
+		release();
+
+		// give listeners that hold pending work (such as a write-behind
+		// persister) the chance to finish it, while leaving them usable by
+		// the next start
+		for (ContainerListener curr : listeners) {
+			if (curr instanceof Flushable) {
 				try {
-					sync.wait();
-				} catch (InterruptedException e) {
-					logger.info("Thread interruped", e);
+					((Flushable) curr).flush();
+				} catch (IOException e) {
+					logger.warn("Exception occured while flushing listener.", e);
 				}
 			}
+		}
 
-		} else {
-			logger.warn("Attempt to start server ignored (already started).");
+		// lets the provider save anything loaded
+		registry.unloadAll();
+
+		if (stopped != null) {
+			stopped.run();
 		}
 	}
 
-	public synchronized void stop() {
+	/**
+	 * Stops the server for good, then closes every listener that is
+	 * {@link Closeable}, ending their background threads. The server cannot
+	 * be started again.
+	 */
+	public synchronized void close() {
+
+		stop();
+		closed = true;
+
+		for (ContainerListener curr : listeners) {
+			if (curr instanceof Closeable) {
+				try {
+					((Closeable) curr).close();
+				} catch (IOException e) {
+					logger.warn("Exception occured while closing listener.", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drains the workers, then releases the port and the container.
+	 */
+	private void release() {
+
+		if (replicator != null) {
+			replicator.stop();
+		}
+
+		if (workers != null) {
+			try {
+				if (!workers.shutdown(shutdownTimeout, TimeUnit.MILLISECONDS)) {
+					logger.warn("Requests did not complete within "
+							+ shutdownTimeout + "ms of stopping.");
+				}
+			} catch (InterruptedException e) {
+				logger.info("Thread interruped", e);
+				Thread.currentThread().interrupt();
+			}
+			workers = null;
+		}
 
 		if (connection != null) {
 			try {
@@ -93,14 +273,156 @@ public class ConfigurationServer {
 				logger.warn("Exception occured while stopping server.", e);
 			}
 			connection = null;
+			address = null;
+		}
+
+		if (container != null) {
+			container.close();
+			container = null;
+		}
+
+		if (listenerExecutor != null) {
+			listenerExecutor.shutdown();
+			listenerExecutor = null;
+		}
+	}
+
+	private void startReplication() {
+		replicator.start(container);
+		container.setReplicator(replicator);
+	}
+
+	/**
+	 * Sets the id this server replicates as, which must be unique among its
+	 * peers. Must be set before any peer is added; if it is not, a random id
+	 * is used.
+	 */
+	public synchronized void setNodeId(String nodeId) {
+
+		if (replicator != null) {
+			throw new IllegalStateException(
+					"The node id must be set before adding peers.");
+		}
+
+		this.nodeId = nodeId;
+	}
+
+	/**
+	 * Adds a server to keep the configurations in step with. Changes made on
+	 * this server are pushed to the peer, and changes pushed by the peer are
+	 * applied here. Every server should list every other server as a peer.
+	 * Peers can be added while the server is running.
+	 * 
+	 * @param url
+	 *            Address of the peer, such as <code>http://host:8080/</code>.
+	 * @see Replicator
+	 */
+	public synchronized void addPeer(URL url) {
+
+		if (replicator == null) {
+			replicator = nodeId == null ? new Replicator() : new Replicator(
+					nodeId);
+
+			if (container != null) {
+				container.addListener(replicator);
+				startReplication();
+			}
 		}
+
+		replicator.addPeer(url);
+	}
+
+	/**
+	 * @return Replicates the configurations to and from peers, or null if no
+	 *         peer has been added.
+	 */
+	public synchronized Replicator getReplicator() {
+		return replicator;
+	}
+
+	/**
+	 * @return The address the server is listening on, or null if it is not
+	 *         running. Useful when started on port 0.
+	 */
+	public synchronized SocketAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * Sets the number of threads handling requests. Takes effect on the next
+	 * start.
+	 */
+	public synchronized void setWorkerThreads(int workerThreads) {
+		this.workerThreads = workerThreads;
+	}
+
+	/**
+	 * Sets the number of requests that may wait for a worker thread before
+	 * further requests are rejected. Takes effect on the next start.
+	 */
+	public synchronized void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * Runs each request, and each listener callback, on its own virtual
+	 * thread rather than on the fixed pool of worker threads, so that
+	 * listeners blocking on file or database I/O do not exhaust the pool. Up
+	 * to the worker thread count plus the queue size requests may then be in
+	 * progress at once. Requires Java 21 or later, and takes effect on the
+	 * next start.
+	 * 
+	 * @see VirtualThreads#isAvailable()
+	 */
+	public synchronized void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * Sets how long {@link #stop()} waits for requests in progress to
+	 * complete.
+	 */
+	public synchronized void setShutdownTimeout(long timeout, TimeUnit unit) {
+		this.shutdownTimeout = unit.toMillis(timeout);
+	}
+
+	/**
+	 * @return Request latencies, render and dispatch times, bytes written and
+	 *         errors of this server. These are also served in the Prometheus
+	 *         text format on {@link ConfigurationContainer#METRICS_PATH}.
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	public ConfigurationRegistry getRegistry() {
+		return registry;
+	}
+
+	/**
+	 * @return The container serving the configurations, or null if the
+	 *         server is not running. A new container is created each time
+	 *         the server starts.
+	 */
+	public ConfigurationContainer getContainer() {
+		return container;
 	}
 
 	public void addListener(ContainerListener listener) {
 		listeners.add(listener);
+
+		ConfigurationContainer curr = container;
+		if (curr != null) {
+			curr.addListener(listener);
+		}
 	}
 
 	public void removeListener(ContainerListener listener) {
 		listeners.remove(listener);
+
+		ConfigurationContainer curr = container;
+		if (curr != null) {
+			curr.removeListener(listener);
+		}
 	}
 }
@@ -0,0 +1,13 @@
+package lib.config.web;
+
+/**
+ * Notified when a {@link ConfigurationRegistry} discards a loaded
+ * configuration.
+ * 
+ * @author Benjamin Leov
+ * 
+ */
+public interface EvictionListener {
+
+	void onEvicted(String id, DisplayableConfiguration config);
+}
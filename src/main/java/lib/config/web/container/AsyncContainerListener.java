@@ -0,0 +1,489 @@
+package lib.config.web.container;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import lib.config.base.configuration.Configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers notifications to another listener on background threads, so that
+ * a slow listener (such as one that writes to disk) does not hold up the
+ * request that caused the change.
+ * 
+ * Notifications wait in bounded queues; what happens when a queue is full is
+ * decided by the {@link BackpressurePolicy}. With
+ * {@link DeliveryOrder#PER_CONFIGURATION}, commands are delivered in order
+ * with changes to configurations that share the first queue. Flushing waits
+ * for the notifications queued so far to be delivered, then flushes the
+ * delegate if it is {@link Flushable}, so a server that is stopped has its
+ * write-behind listeners written out even when they are wrapped in one of
+ * these.
+ * 
+ * <pre>
+ * server.addListener(new AsyncContainerListener(slowListener));
+ * </pre>
+ * 
+ * @author Benjamin Leov
+ *
+ */
+public class AsyncContainerListener implements ChangeSetListener, Closeable,
+		Flushable {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(AsyncContainerListener.class);
+
+	private static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * How long close waits for queued notifications to be delivered.
+	 */
+	private static final long CLOSE_TIMEOUT_SECONDS = 10;
+
+	private final ContainerListener delegate;
+	private final DeliveryOrder order;
+	private final BackpressurePolicy policy;
+
+	private final List<BlockingQueue<Task>> queues;
+	private final Thread[] workers;
+
+	private volatile boolean closed;
+
+	/**
+	 * Read while queueing, and written to close, so that nothing is queued
+	 * once the workers may have stopped.
+	 */
+	private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+
+	private final AtomicLong dispatched = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong totalLatency = new AtomicLong();
+	private final AtomicLong maxLatency = new AtomicLong();
+
+	/**
+	 * Delivers notifications in order, on a single thread, blocking the
+	 * notifying thread if more than 1024 are waiting.
+	 */
+	public AsyncContainerListener(ContainerListener delegate) {
+		this(delegate, DeliveryOrder.PER_CONFIGURATION, 1, DEFAULT_CAPACITY,
+				BackpressurePolicy.BLOCK);
+	}
+
+	/**
+	 * @param delegate
+	 *            Listener to deliver notifications to.
+	 * @param order
+	 *            Order notifications are delivered in.
+	 * @param threads
+	 *            Number of delivery threads.
+	 * @param capacity
+	 *            Number of notifications that may wait for each thread.
+	 * @param policy
+	 *            What to do with a notification when the queue is full.
+	 */
+	public AsyncContainerListener(ContainerListener delegate,
+			DeliveryOrder order, int threads, int capacity,
+			BackpressurePolicy policy) {
+
+		if (threads < 1 || capacity < 1) {
+			throw new IllegalArgumentException(
+					"Threads and capacity must be at least one.");
+		}
+
+		this.delegate = delegate;
+		this.order = order;
+		this.policy = policy;
+
+		/*
+		 * Per configuration delivery has a queue for each thread, so that a
+		 * configuration is only ever delivered by one thread. Parallel delivery
+		 * shares a single queue between the threads.
+		 */
+		int count = order == DeliveryOrder.PER_CONFIGURATION ? threads : 1;
+		int size = order == DeliveryOrder.PER_CONFIGURATION ? capacity
+				: capacity * threads;
+
+		this.queues = new ArrayList<BlockingQueue<Task>>(count);
+
+		for (int i = 0; i < count; i++) {
+			queues.add(new ArrayBlockingQueue<Task>(size));
+		}
+
+		this.workers = new Thread[threads];
+
+		for (int i = 0; i < threads; i++) {
+			final BlockingQueue<Task> queue = queues.get(i % count);
+
+			workers[i] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					deliver(queue);
+				}
+			}, "config-listener-" + i);
+
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	@Override
+	public void onModifed(final Configuration config, final String key) {
+		dispatch(config.getId(), new Task() {
+
+			@Override
+			void run() {
+				delegate.onModifed(config, key);
+			}
+		});
+	}
+
+	@Override
+	public void onDelete(final Configuration config, final String key) {
+		dispatch(config.getId(), new Task() {
+
+			@Override
+			void run() {
+				delegate.onDelete(config, key);
+			}
+		});
+	}
+
+	@Override
+	public void onAdd(final Configuration config, final String key) {
+		dispatch(config.getId(), new Task() {
+
+			@Override
+			void run() {
+				delegate.onAdd(config, key);
+			}
+		});
+	}
+
+	/**
+	 * Delivers the change set as a whole, so that it is delivered by a single
+	 * thread even if the delegate is only notified of individual keys.
+	 */
+	@Override
+	public void onChangeSet(final ChangeSet changes) {
+		dispatch(changes.getId(), new Task() {
+
+			@Override
+			void run() {
+				if (delegate instanceof ChangeSetListener) {
+					((ChangeSetListener) delegate).onChangeSet(changes);
+					return;
+				}
+
+				Configuration config = changes.getConfiguration();
+
+				for (Change curr : changes.getChanges()) {
+					switch (curr.getType()) {
+					case ADD:
+						delegate.onAdd(config, curr.getKey());
+						break;
+					case DELETE:
+						delegate.onDelete(config, curr.getKey());
+						break;
+					case MODIFY:
+					default:
+						delegate.onModifed(config, curr.getKey());
+						break;
+					}
+				}
+			}
+		});
+	}
+
+	@Override
+	public void onCommand(final Command command) {
+		dispatch(null, new Task() {
+
+			@Override
+			void run() {
+				delegate.onCommand(command);
+			}
+		});
+	}
+
+	/**
+	 * Stops accepting notifications and waits for those already queued to be
+	 * delivered. The delegate is closed afterwards if it is {@link Closeable}.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		closeLock.writeLock().lock();
+
+		try {
+			closed = true;
+		} finally {
+			closeLock.writeLock().unlock();
+		}
+
+		long deadline = System.nanoTime()
+				+ TimeUnit.SECONDS.toNanos(CLOSE_TIMEOUT_SECONDS);
+
+		for (Thread curr : workers) {
+			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline
+					- System.nanoTime());
+
+			try {
+				if (remaining > 0) {
+					curr.join(remaining);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		if (getQueueDepth() > 0) {
+			logger.warn("{} notification(s) were not delivered before close.",
+					getQueueDepth());
+		}
+
+		if (delegate instanceof Closeable) {
+			((Closeable) delegate).close();
+		}
+	}
+
+	/**
+	 * Waits for the notifications queued so far to be delivered, then flushes
+	 * the delegate if it is {@link Flushable}. Does nothing once closed.
+	 */
+	@Override
+	public void flush() throws IOException {
+
+		Marker marker = new Marker(workers.length);
+
+		closeLock.readLock().lock();
+
+		try {
+			if (closed) {
+				return;
+			}
+
+			// one for each worker taking from the queue, so that every worker
+			// has finished what it took before
+			for (int i = 0; i < workers.length; i++) {
+				queues.get(i % queues.size()).put(marker);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while flushing.");
+		} finally {
+			closeLock.readLock().unlock();
+		}
+
+		try {
+			marker.reached.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while flushing.");
+		}
+
+		if (delegate instanceof Flushable) {
+			((Flushable) delegate).flush();
+		}
+	}
+
+	/**
+	 * @return Number of notifications waiting to be delivered.
+	 */
+	public int getQueueDepth() {
+		int depth = 0;
+
+		for (BlockingQueue<Task> curr : queues) {
+			depth += curr.size();
+		}
+
+		return depth;
+	}
+
+	/**
+	 * @return Number of notifications delivered.
+	 */
+	public long getDispatchedCount() {
+		return dispatched.get();
+	}
+
+	/**
+	 * @return Number of queued notifications discarded to make room for new
+	 *         ones.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return Number of notifications discarded because the queue was full,
+	 *         or the listener had been closed.
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return Average time from notification to delivery completing, in
+	 *         microseconds.
+	 */
+	public double getAverageLatencyMicros() {
+		long count = dispatched.get();
+		return count == 0 ? 0 : (double) totalLatency.get() / count / 1000;
+	}
+
+	/**
+	 * @return Longest time from notification to delivery completing, in
+	 *         microseconds.
+	 */
+	public long getMaxLatencyMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(maxLatency.get());
+	}
+
+	private void dispatch(String id, Task task) {
+
+		closeLock.readLock().lock();
+
+		try {
+			if (closed) {
+				rejected.incrementAndGet();
+				logger.warn("Notification received after close was discarded.");
+				return;
+			}
+
+			enqueue(id, task);
+		} finally {
+			closeLock.readLock().unlock();
+		}
+	}
+
+	private void enqueue(String id, Task task) {
+
+		BlockingQueue<Task> queue = queues.get(0);
+
+		if (order == DeliveryOrder.PER_CONFIGURATION && id != null) {
+			queue = queues.get((id.hashCode() & Integer.MAX_VALUE)
+					% queues.size());
+		}
+
+		switch (policy) {
+		case BLOCK:
+			try {
+				queue.put(task);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				rejected.incrementAndGet();
+			}
+			break;
+		case DROP_OLDEST:
+			while (!queue.offer(task)) {
+				Task oldest = queue.poll();
+
+				if (oldest instanceof Marker) {
+					// the flush waits for what is left, not what is dropped
+					((Marker) oldest).skip();
+				} else if (oldest != null) {
+					dropped.incrementAndGet();
+				}
+			}
+			break;
+		case REJECT:
+		default:
+			if (!queue.offer(task)) {
+				rejected.incrementAndGet();
+				logger.warn("Listener queue is full, notification discarded.");
+			}
+			break;
+		}
+	}
+
+	private void deliver(BlockingQueue<Task> queue) {
+
+		while (!closed || !queue.isEmpty()) {
+
+			Task task;
+
+			try {
+				task = queue.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				break;
+			}
+
+			if (task == null) {
+				continue;
+			}
+
+			if (task instanceof Marker) {
+				task.run();
+				continue;
+			}
+
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				logger.error("Listener failed to handle notification.", e);
+			}
+
+			long latency = System.nanoTime() - task.created;
+
+			dispatched.incrementAndGet();
+			totalLatency.addAndGet(latency);
+
+			long max;
+			while (latency > (max = maxLatency.get())
+					&& !maxLatency.compareAndSet(max, latency)) {
+				// retry
+			}
+		}
+	}
+
+	private abstract static class Task {
+
+		private final long created = System.nanoTime();
+
+		abstract void run();
+	}
+
+	/**
+	 * Queued by a flush, once for each worker. A worker that takes one waits
+	 * for the others to take theirs, so that each takes one.
+	 */
+	private static final class Marker extends Task {
+
+		private final CountDownLatch reached;
+
+		Marker(int workers) {
+			this.reached = new CountDownLatch(workers);
+		}
+
+		@Override
+		void run() {
+			reached.countDown();
+
+			try {
+				reached.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		void skip() {
+			reached.countDown();
+		}
+	}
+}
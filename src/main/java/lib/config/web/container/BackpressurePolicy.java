@@ -0,0 +1,26 @@
+package lib.config.web.container;
+
+/**
+ * What an {@link AsyncContainerListener} does with a notification when its
+ * queue is full.
+ * 
+ * @author Benjamin Leov
+ *
+ */
+public enum BackpressurePolicy {
+
+	/**
+	 * The notifying thread waits until there is room in the queue.
+	 */
+	BLOCK,
+
+	/**
+	 * The oldest queued notification is discarded to make room.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * The new notification is discarded.
+	 */
+	REJECT;
+}
@@ -0,0 +1,65 @@
+package lib.config.web.container;
+
+import java.io.IOException;
+
+/**
+ * A fully rendered and encoded page, along with the version of the
+ * configuration it was rendered from.
+ * 
+ * Compressed forms of the page are made the first time they are asked for
+ * and kept with it, so a page is compressed at most once per version.
+ * 
+ * @author Benjamin Leov
+ *
+ */
+class CachedPage {
+
+	private final byte[] content;
+	private final ConfigurationVersion version;
+
+	/**
+	 * Indexed by the ordinal of the encoding. Two threads may compress the
+	 * same page at once, which is harmless as the results are identical.
+	 */
+	private final byte[][] encoded;
+
+	CachedPage(byte[] content, ConfigurationVersion version) {
+		this.content = content;
+		this.version = version;
+		this.encoded = new byte[ContentEncoding.values().length][];
+	}
+
+	byte[] getContent() {
+		return content;
+	}
+
+	/**
+	 * @return The page encoded with the coding.
+	 */
+	byte[] getContent(ContentEncoding encoding) throws IOException {
+
+		if (encoding == ContentEncoding.IDENTITY) {
+			return content;
+		}
+
+		byte[] result;
+
+		synchronized (encoded) {
+			result = encoded[encoding.ordinal()];
+		}
+
+		if (result == null) {
+			result = encoding.encode(content);
+
+			synchronized (encoded) {
+				encoded[encoding.ordinal()] = result;
+			}
+		}
+
+		return result;
+	}
+
+	ConfigurationVersion getVersion() {
+		return version;
+	}
+}
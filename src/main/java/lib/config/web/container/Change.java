@@ -0,0 +1,49 @@
+package lib.config.web.container;
+
+/**
+ * A change made to a single configuration key.
+ * 
+ * @author Benjamin Leov
+ *
+ */
+public final class Change {
+
+	private final ChangeType type;
+	private final String key;
+	private final String oldValue;
+	private final String newValue;
+
+	public Change(ChangeType type, String key, String oldValue, String newValue) {
+		this.type = type;
+		this.key = key;
+		this.oldValue = oldValue;
+		this.newValue = newValue;
+	}
+
+	public ChangeType getType() {
+		return type;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * @return The value before the change, or null if the key was added.
+	 */
+	public String getOldValue() {
+		return oldValue;
+	}
+
+	/**
+	 * @return The value after the change, or null if the key was deleted.
+	 */
+	public String getNewValue() {
+		return newValue;
+	}
+
+	@Override
+	public String toString() {
+		return "Change [type=" + type + ", key=" + key + "]";
+	}
+}
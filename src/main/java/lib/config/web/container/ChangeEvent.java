@@ -0,0 +1,77 @@
+package lib.config.web.container;
+
+/**
+ * A change to a single key, numbered in the order the container applied it.
+ *
+ * @author Benjamin Leov
+ *
+ */
+public final class ChangeEvent {
+
+	private final long sequence;
+	private final String id;
+	private final ChangeType type;
+	private final String key;
+	private final String value;
+	private final long version;
+
+	public ChangeEvent(long sequence, String id, ChangeType type, String key,
+			String value, long version) {
+		this.sequence = sequence;
+		this.id = id;
+		this.type = type;
+		this.key = key;
+		this.value = value;
+		this.version = version;
+	}
+
+	/**
+	 * @return Position of the event among every change made by the
+	 *         container, starting at 1.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return Id the configuration is hashed on in the container.
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return The kind of change, or null if the configuration was changed
+	 *         outside the container and any of its keys may have changed.
+	 */
+	public ChangeType getType() {
+		return type;
+	}
+
+	/**
+	 * @return The changed key, or null if any key may have changed.
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * @return The new value, or null if the key was deleted.
+	 */
+	public String getValue() {
+		return value;
+	}
+
+	/**
+	 * @return Version of the configuration once the change was made.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	@Override
+	public String toString() {
+		return "ChangeEvent [sequence=" + sequence + ", id=" + id + ", type="
+				+ type + ", key=" + key + "]";
+	}
+}
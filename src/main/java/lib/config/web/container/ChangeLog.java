@@ -0,0 +1,116 @@
+package lib.config.web.container;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The most recent changes made by a container, each numbered with a sequence
+ * that increases across every configuration. A client that remembers the
+ * last sequence it saw can ask for only the changes made since, rather than
+ * reading every configuration again.
+ *
+ * Only a fixed number of changes are kept; once a client has fallen further
+ * behind than that it has to read every configuration again.
+ *
+ * @author Benjamin Leov
+ *
+ */
+public class ChangeLog {
+
+	private final ChangeEvent[] events;
+
+	/**
+	 * Sequence of the next event.
+	 */
+	private long next = 1;
+
+	/**
+	 * @param capacity
+	 *            Number of events to keep.
+	 */
+	public ChangeLog(int capacity) {
+
+		if (capacity < 1) {
+			throw new IllegalArgumentException(
+					"Capacity must be at least one.");
+		}
+
+		this.events = new ChangeEvent[capacity];
+	}
+
+	/**
+	 * Numbers and records changes made to a configuration by a transaction.
+	 * 
+	 * @return Sequence of the first change. The others follow it in order.
+	 */
+	public synchronized long append(String id, ConfigurationVersion version,
+			List<Change> changes) {
+		long first = next;
+
+		for (Change curr : changes) {
+			add(new ChangeEvent(next, id, curr.getType(), curr.getKey(), curr
+					.getNewValue(), version.getVersion()));
+		}
+
+		return first;
+	}
+
+	/**
+	 * Records that a configuration was changed outside the container, so
+	 * that any of its keys may have changed.
+	 */
+	public synchronized void appendReload(String id,
+			ConfigurationVersion version) {
+		add(new ChangeEvent(next, id, null, null, null, version.getVersion()));
+	}
+
+	/**
+	 * @param since
+	 *            Sequence of the last event the client has seen, or 0 for
+	 *            none.
+	 * @param limit
+	 *            Most events to return.
+	 * @return The events after the sequence, in order, or null if some of
+	 *         them are no longer kept.
+	 */
+	public synchronized List<ChangeEvent> read(long since, int limit) {
+
+		if (since < getOldestSequence() - 1 || since > next - 1) {
+			// evicted, or from before the container was started
+			return null;
+		}
+
+		long to = Math.min(next, since + 1 + limit);
+		List<ChangeEvent> result = new ArrayList<ChangeEvent>(
+				(int) (to - since - 1));
+
+		for (long curr = since + 1; curr < to; curr++) {
+			result.add(events[index(curr)]);
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return Sequence of the most recent event, or 0 if there are none.
+	 */
+	public synchronized long getLatestSequence() {
+		return next - 1;
+	}
+
+	/**
+	 * @return Sequence of the oldest event still kept.
+	 */
+	public synchronized long getOldestSequence() {
+		return Math.max(1, next - events.length);
+	}
+
+	private void add(ChangeEvent event) {
+		events[index(next)] = event;
+		next++;
+	}
+
+	private int index(long sequence) {
+		return (int) (sequence % events.length);
+	}
+}
@@ -0,0 +1,122 @@
+package lib.config.web.container;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import lib.config.base.configuration.Configuration;
+
+/**
+ * Every change applied to a configuration by a single transaction.
+ * 
+ * @author Benjamin Leov
+ *
+ */
+public final class ChangeSet {
+
+	private final String id;
+	private final Configuration configuration;
+	private final ConfigurationVersion version;
+	private final List<Change> changes;
+	private final long sequence;
+	private final String origin;
+
+	public ChangeSet(String id, Configuration configuration,
+			ConfigurationVersion version, List<Change> changes) {
+		this(id, configuration, version, changes, 0);
+	}
+
+	/**
+	 * @param sequence
+	 *            Sequence number the container gave the first change.
+	 */
+	public ChangeSet(String id, Configuration configuration,
+			ConfigurationVersion version, List<Change> changes, long sequence) {
+		this(id, configuration, version, changes, sequence, null);
+	}
+
+	/**
+	 * @param origin
+	 *            Where the changes came from, or null if they were made on
+	 *            this server.
+	 */
+	public ChangeSet(String id, Configuration configuration,
+			ConfigurationVersion version, List<Change> changes, long sequence,
+			String origin) {
+		this.id = id;
+		this.configuration = configuration;
+		this.version = version;
+		this.changes = Collections.unmodifiableList(new ArrayList<Change>(
+				changes));
+		this.sequence = sequence;
+		this.origin = origin;
+	}
+
+	/**
+	 * @return Id the configuration is hashed on in the container.
+	 */
+	public String getId() {
+		return id;
+	}
+
+	public Configuration getConfiguration() {
+		return configuration;
+	}
+
+	/**
+	 * @return Version of the configuration once the changes were applied.
+	 */
+	public ConfigurationVersion getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return The changes, in the order they were applied. Only keys whose
+	 *         value actually changed are included.
+	 */
+	public List<Change> getChanges() {
+		return changes;
+	}
+
+	/**
+	 * @return Sequence number of the first change, as listed by
+	 *         {@link ConfigurationContainer#CHANGES_PATH}. The other changes
+	 *         are numbered consecutively after it. 0 if the changes were not
+	 *         numbered.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return Where the changes came from, as given to
+	 *         {@link Transaction#from(String)}, or null if they were made on
+	 *         this server.
+	 */
+	public String getOrigin() {
+		return origin;
+	}
+
+	/**
+	 * @return The changed keys.
+	 */
+	public List<String> getKeys() {
+		List<String> keys = new ArrayList<String>(changes.size());
+
+		for (Change curr : changes) {
+			keys.add(curr.getKey());
+		}
+
+		return keys;
+	}
+
+	public boolean isEmpty() {
+		return changes.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "ChangeSet [id=" + id + ", version=" + version.getVersion()
+				+ ", changes=" + changes + "]";
+	}
+}
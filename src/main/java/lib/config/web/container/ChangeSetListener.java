@@ -0,0 +1,23 @@
+package lib.config.web.container;
+
+/**
+ * A listener that is notified once for every transaction, rather than once
+ * for every changed key.
+ * 
+ * When a listener implements this interface the container calls
+ * {@link #onChangeSet(ChangeSet)} instead of {@link #onAdd}, {@link #onModifed}
+ * and {@link #onDelete}.
+ * 
+ * @author Benjamin Leov
+ *
+ */
+public interface ChangeSetListener extends ContainerListener {
+
+	/**
+	 * Called when a transaction has been applied to a configuration.
+	 * 
+	 * @param changes
+	 *            The changes, never empty.
+	 */
+	void onChangeSet(ChangeSet changes);
+}
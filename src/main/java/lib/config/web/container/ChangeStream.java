@@ -0,0 +1,339 @@
+package lib.config.web.container;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.simpleframework.http.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pushes configuration changes to remote clients as Server-Sent Events.
+ * 
+ * Subscribers are held as open responses rather than threads. Each event is
+ * encoded once and queued for every subscriber interested in the
+ * configuration, and a small pool of writer threads drains the queues, so
+ * thousands of idle subscribers cost no more than their sockets. A
+ * subscriber that falls more than a queue's worth of events behind, or that
+ * can no longer be written to, is dropped; it can reconnect and catch up from
+ * {@link ConfigurationContainer#CHANGES_PATH}. A client that stops reading
+ * without closing its connection holds a writer thread until the connection
+ * times out, but the other subscribers keep being written to by the rest.
+ * 
+ * @author Benjamin Leov
+ *
+ */
+public class ChangeStream extends ContainerListenerAdapter {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ChangeStream.class);
+
+	private static final String CHARSET = "UTF-8";
+
+	/**
+	 * Interval between the comments sent to keep idle connections open, and
+	 * to detect subscribers that have gone away.
+	 */
+	private static final long HEARTBEAT_SECONDS = 15;
+
+	/**
+	 * Most events queued for one subscriber.
+	 */
+	private static final int DEFAULT_CAPACITY = 1000;
+
+	private static final int WRITER_THREADS = 4;
+
+	private static final byte[] HEARTBEAT = encode(": heartbeat\n\n");
+
+	private final Set<Subscriber> subscribers;
+	private final ScheduledExecutorService writer;
+	private final int capacity;
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	public ChangeStream() {
+		this(HEARTBEAT_SECONDS, TimeUnit.SECONDS, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param heartbeat
+	 *            Interval between heartbeats.
+	 * @param capacity
+	 *            Most events queued for one subscriber before it is dropped.
+	 */
+	ChangeStream(long heartbeat, TimeUnit unit, int capacity) {
+		this.capacity = capacity;
+		this.subscribers = Collections
+				.newSetFromMap(new ConcurrentHashMap<Subscriber, Boolean>());
+
+		final AtomicInteger threads = new AtomicInteger();
+
+		this.writer = new ScheduledThreadPoolExecutor(WRITER_THREADS,
+				new ThreadFactory() {
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "config-change-stream-"
+								+ threads.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+
+		writer.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				for (Subscriber curr : subscribers) {
+					offer(curr, HEARTBEAT);
+				}
+			}
+		}, heartbeat, heartbeat, unit);
+	}
+
+	/**
+	 * Starts streaming changes to a response. The response is left open
+	 * until the client disconnects or the stream is closed.
+	 * 
+	 * @param response
+	 *            Response to write the events to.
+	 * @param ids
+	 *            Ids of the configurations to send changes for, or null for
+	 *            all of them.
+	 */
+	public void subscribe(Response response, Set<String> ids) {
+
+		response.setContentType("text/event-stream; charset=" + CHARSET);
+		response.setValue("Cache-Control", "no-cache");
+		response.setDate("Date", System.currentTimeMillis());
+
+		Subscriber subscriber = new Subscriber(response, ids, capacity);
+		subscribers.add(subscriber);
+
+		// commits the headers straight away
+		offer(subscriber, encode("retry: 5000\n\n"));
+	}
+
+	/**
+	 * @return The number of connected subscribers.
+	 */
+	public int getSubscriberCount() {
+		return subscribers.size();
+	}
+
+	/**
+	 * @return Number of subscribers dropped, because they fell behind or
+	 *         could not be written to.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Ends every subscription and stops the writer threads.
+	 */
+	public void close() {
+		writer.shutdownNow();
+
+		for (Subscriber curr : subscribers) {
+			curr.close();
+		}
+
+		subscribers.clear();
+	}
+
+	/**
+	 * Sends an event for each changed key. The events of a change set are
+	 * written to a subscriber together.
+	 */
+	@Override
+	public void onChangeSet(ChangeSet changes) {
+
+		if (subscribers.isEmpty()) {
+			return;
+		}
+
+		String id = changes.getId();
+		long version = changes.getVersion().getVersion();
+
+		StringBuilder event = new StringBuilder();
+
+		for (Change curr : changes.getChanges()) {
+			event.append("event: ")
+					.append(curr.getType().toString().toLowerCase())
+					.append('\n');
+			event.append("data: {");
+			Json.appendName(event, "config");
+			Json.appendString(event, id);
+			event.append(',');
+			Json.appendName(event, "key");
+			Json.appendString(event, curr.getKey());
+			event.append(',');
+			Json.appendName(event, "version");
+			event.append(version);
+			event.append("}\n\n");
+		}
+
+		byte[] bytes = encode(event.toString());
+
+		for (Subscriber curr : subscribers) {
+			if (curr.accepts(id)) {
+				offer(curr, bytes);
+			}
+		}
+	}
+
+	/**
+	 * Queues bytes for a subscriber, dropping it if its queue is full. Never
+	 * blocks.
+	 */
+	private void offer(Subscriber subscriber, byte[] bytes) {
+
+		if (!subscriber.queue.offer(bytes)) {
+			logger.debug("Dropping change stream subscriber that fell behind.");
+			drop(subscriber);
+		}
+
+		schedule(subscriber);
+	}
+
+	/**
+	 * Drains the subscriber's queue on a writer thread, unless one is
+	 * already doing so.
+	 */
+	private void schedule(final Subscriber subscriber) {
+
+		if (!subscriber.scheduled.compareAndSet(false, true)) {
+			return;
+		}
+
+		try {
+			writer.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					drain(subscriber);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// closed
+			subscriber.scheduled.set(false);
+		}
+	}
+
+	/**
+	 * Writes what is queued for a subscriber. Only one thread drains a
+	 * subscriber at a time, so its response is only ever written to by one
+	 * thread.
+	 */
+	private void drain(Subscriber subscriber) {
+
+		try {
+			if (subscriber.dropped) {
+				subscriber.close();
+				return;
+			}
+
+			OutputStream out = subscriber.getOutputStream();
+			byte[] next;
+
+			while ((next = subscriber.queue.poll()) != null) {
+				out.write(next);
+			}
+
+			out.flush();
+		} catch (IOException e) {
+			logger.debug("Dropping change stream subscriber.", e);
+			drop(subscriber);
+			subscriber.close();
+		} finally {
+			subscriber.scheduled.set(false);
+		}
+
+		// queued after the last poll, or dropped while writing
+		if (!subscriber.queue.isEmpty() || subscriber.dropped
+				&& !subscriber.closed) {
+			schedule(subscriber);
+		}
+	}
+
+	private void drop(Subscriber subscriber) {
+
+		if (subscribers.remove(subscriber)) {
+			dropped.incrementAndGet();
+		}
+
+		subscriber.dropped = true;
+		subscriber.queue.clear();
+	}
+
+	private static byte[] encode(String text) {
+		try {
+			return text.getBytes(CHARSET);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class Subscriber {
+
+		private final Response response;
+		private final Set<String> ids;
+		private final BlockingQueue<byte[]> queue;
+
+		/**
+		 * Set while a writer thread is draining the queue.
+		 */
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+
+		private volatile boolean dropped;
+		private volatile boolean closed;
+		private OutputStream out;
+
+		Subscriber(Response response, Set<String> ids, int capacity) {
+			this.response = response;
+			this.ids = ids == null ? null : new HashSet<String>(ids);
+			this.queue = new ArrayBlockingQueue<byte[]>(capacity);
+		}
+
+		boolean accepts(String id) {
+			return ids == null || ids.contains(id);
+		}
+
+		OutputStream getOutputStream() throws IOException {
+			if (out == null) {
+				out = response.getOutputStream();
+			}
+			return out;
+		}
+
+		void close() {
+
+			if (closed) {
+				return;
+			}
+
+			closed = true;
+
+			try {
+				response.close();
+			} catch (IOException e) {
+				logger.debug("Exception occured while closing subscriber.", e);
+			}
+		}
+	}
+}
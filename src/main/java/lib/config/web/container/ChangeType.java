@@ -0,0 +1,11 @@
+package lib.config.web.container;
+
+/**
+ * Kind of change made to a configuration key.
+ * 
+ * @author Benjamin Leov
+ *
+ */
+public enum ChangeType {
+	ADD, MODIFY, DELETE;
+}
@@ -1,13 +1,40 @@
 package lib.config.web.container;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import lib.config.base.configuration.Configuration;
+import lib.config.web.ConfigurationRegistry;
 import lib.config.web.DisplayableConfiguration;
+import lib.config.web.EvictionListener;
+import lib.config.web.impl.MapConfigurationProvider;
+import lib.config.web.metrics.ServerMetrics;
+import lib.config.web.replication.Replicator;
 
 import org.simpleframework.http.Cookie;
 import org.simpleframework.http.Query;
@@ -27,9 +54,149 @@ public class ConfigurationContainer implements Container {
 	private static final Logger logger = LoggerFactory
 			.getLogger(ConfigurationContainer.class);
 
-	private final Map<String, DisplayableConfiguration> config;
+	/**
+	 * Path prefix of the JSON read API, followed by the id of the
+	 * configuration.
+	 */
+	public static final String API_PATH = "/api/config/";
+
+	/**
+	 * Path of the Server-Sent Events change stream. Optionally filtered with
+	 * one or more <code>config</code> parameters.
+	 */
+	public static final String EVENTS_PATH = "/events";
+
+	/**
+	 * Path of the metrics, in the Prometheus text format.
+	 */
+	public static final String METRICS_PATH = "/metrics";
+
+	/**
+	 * Path of the changes made since a sequence number, as JSON.
+	 */
+	public static final String CHANGES_PATH = "/changes";
+
+	/**
+	 * Path peers push changes to, and read a snapshot of every replicated
+	 * change from, when replication is enabled.
+	 */
+	public static final String REPLICATION_PATH = "/replication";
+
+	/**
+	 * Form field holding the version of the configuration the form was
+	 * rendered from.
+	 */
+	static final String VERSION_PARAMETER = "config_version";
+
+	private static final String CHARSET = "UTF-8";
+
+	/**
+	 * Size of the buffer pages are streamed through, in characters.
+	 */
+	private static final int STREAM_BUFFER_SIZE = 8192;
+
+	private static final int DEFAULT_STREAMING_THRESHOLD = 2000;
+
+	private static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+	private static final int DEFAULT_PAGE_SIZE = 1000;
+
+	/**
+	 * Number of write locks. Must be a power of two.
+	 */
+	private static final int LOCK_STRIPES = 64;
+
+	/**
+	 * Number of recent changes kept for clients catching up.
+	 */
+	private static final int DEFAULT_CHANGE_LOG_SIZE = 10000;
+
+	/**
+	 * Creation time of the last container, so that containers created in the
+	 * same millisecond are still told apart.
+	 */
+	private static final AtomicLong LAST_CREATED = new AtomicLong();
+
+	private final ConfigurationRegistry registry;
+	/**
+	 * Iterated on every notification, but rarely modified, so a copy is made
+	 * on modification and iteration never locks.
+	 */
 	private final Set<ContainerListener> listeners;
 
+	/**
+	 * Latest snapshot of each configuration, keyed on the same id as the
+	 * registry. Built on first use, and dropped when the configuration is
+	 * evicted.
+	 */
+	private final ConcurrentMap<String, ConfigurationSnapshot> snapshots;
+
+	/**
+	 * Last version of each evicted configuration, so that versions (and the
+	 * tags derived from them) keep increasing when it is loaded again.
+	 */
+	private final ConcurrentMap<String, ConfigurationVersion> retired;
+
+	private final EvictionListener evictions;
+
+	/**
+	 * Ids of evicted configurations whose snapshots are still to be dropped.
+	 */
+	private final Queue<String> evicted;
+
+	/**
+	 * Held while applying changes to a configuration. The locks are striped
+	 * on the id of the configuration, so changes to different configurations
+	 * are applied in parallel. Readers never take them once a snapshot
+	 * exists.
+	 */
+	private final Lock[] locks;
+
+	/**
+	 * Creation time of this container, unique to it. Forms part of every
+	 * ETag and form version so that those issued before a restart are never
+	 * matched by a new container.
+	 */
+	private final long created;
+
+	/**
+	 * Version of the index page, incremented when the configuration map
+	 * changes.
+	 */
+	private final AtomicReference<ConfigurationVersion> indexVersion;
+
+	private final PageCache cache;
+	private final PageRenderer renderer;
+
+	private final ChangeStream changes;
+
+	private final ChangeLog changeLog;
+
+	/**
+	 * Applies changes pushed by peers, or null if replication is disabled.
+	 */
+	private volatile Replicator replicator;
+
+	private volatile int streamingThreshold = DEFAULT_STREAMING_THRESHOLD;
+
+	private volatile int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+
+	private volatile int pageSize = DEFAULT_PAGE_SIZE;
+
+	private final ServerMetrics metrics;
+
+	/**
+	 * Runs listener callbacks, or null to call them on the thread that made
+	 * the change.
+	 */
+	private volatile ExecutorService listenerExecutor;
+
+	/**
+	 * Set on the listener executor's threads while they call a listener, to
+	 * the notification the calling thread is waiting for.
+	 */
+	private final ThreadLocal<Delivery> delivery = new ThreadLocal<Delivery>();
+
 	/**
 	 * 
 	 * 
@@ -38,312 +205,1797 @@ public class ConfigurationContainer implements Container {
 	 *            have to be the id of the configuration.
 	 */
 	public ConfigurationContainer(Map<String, DisplayableConfiguration> config) {
-		this.config = config;
-		this.listeners = new HashSet<ContainerListener>();
+		this(config, new ServerMetrics());
+	}
+
+	/**
+	 * @param config
+	 *            Displayable configurations, hashed on an Id. This does not
+	 *            have to be the id of the configuration.
+	 * @param metrics
+	 *            Where to record what the container does.
+	 */
+	public ConfigurationContainer(Map<String, DisplayableConfiguration> config,
+			ServerMetrics metrics) {
+		this(new ConfigurationRegistry(new MapConfigurationProvider(config)),
+				metrics);
+	}
+
+	/**
+	 * @param registry
+	 *            Loads the configurations as they are accessed.
+	 * @param metrics
+	 *            Where to record what the container does.
+	 */
+	public ConfigurationContainer(ConfigurationRegistry registry,
+			ServerMetrics metrics) {
+		this.registry = registry;
+		this.metrics = metrics;
+		this.listeners = new CopyOnWriteArraySet<ContainerListener>();
+		this.snapshots = new ConcurrentHashMap<String, ConfigurationSnapshot>();
+		this.retired = new ConcurrentHashMap<String, ConfigurationVersion>();
+		this.evicted = new ConcurrentLinkedQueue<String>();
+		this.locks = new Lock[LOCK_STRIPES];
+
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new ReentrantLock();
+		}
+
+		this.created = nextCreated();
+		this.indexVersion = new AtomicReference<ConfigurationVersion>(
+				new ConfigurationVersion(0, created));
+		this.cache = new PageCache();
+		this.renderer = new PageRenderer(created);
+		this.changes = new ChangeStream();
+		this.changeLog = new ChangeLog(DEFAULT_CHANGE_LOG_SIZE);
+
+		this.evictions = new EvictionListener() {
+
+			@Override
+			public void onEvicted(String id, DisplayableConfiguration config) {
+				evicted.add(id);
+				retireEvicted();
+			}
+		};
+
+		addListener(changes);
+		registry.addEvictionListener(evictions);
 	}
 
 	@Override
 	public void handle(Request request, Response response) {
+
+		long start = System.nanoTime();
+
 		try {
+			route(request, response);
+		} catch (IOException e) {
+			metrics.recordError(ServerMetrics.IO_ERROR);
+			logger.warn("IOException occured on handle.", e);
+		} catch (RuntimeException e) {
+			metrics.recordError(ServerMetrics.INTERNAL_ERROR);
+			logger.error("Exception occured on handle.", e);
+			sendServerError(response);
+		} finally {
+			metrics.recordRequest(getMethodName(request),
+					getEndpointName(request), System.nanoTime() - start);
+		}
+	}
+
+	private void route(Request request, Response response) throws IOException {
+
+		if (request.getPath().getPath().startsWith(API_PATH)) {
+			handleApi(request, response);
+			return;
+		}
+
+		if (request.getPath().getPath().equals(EVENTS_PATH)) {
+			subscribe(request, response);
+			return;
+		}
+
+		if (request.getPath().getPath().equals(METRICS_PATH)) {
+			sendMetrics(response);
+			return;
+		}
 
-			long time = System.currentTimeMillis();
+		if (request.getPath().getPath().equals(CHANGES_PATH)) {
+			sendChanges(request, response);
+			return;
+		}
 
-			response.setContentType("text/html");
-			// response.set("Server", "ConfigurationServer/1.0 (Simple 4.0)");
-			response.setDate("Date", time);
-			response.setDate("Last-Modified", time);
+		if (request.getPath().getPath().equals(REPLICATION_PATH)) {
+			handleReplication(request, response);
+			return;
+		}
 
-			PrintStream body = response.getPrintStream();
-			
-			body.println("<html>");
-			body.println("<title>Simple Configuration Server</title>");
+		Query query = request.getAddress().getQuery();
 
-			Query query = request.getAddress().getQuery();
-			StringBuilder html = new StringBuilder();
-			
-			// command/navigation request
-			if (request.getMethod().equalsIgnoreCase("GET")) {
-				Query postQuery = request.getQuery();
+		// command/navigation request
+		if (request.getMethod().equalsIgnoreCase("GET")) {
+			Query postQuery = request.getQuery();
 
-				Command command = parseCommand(postQuery);
+			Command command = parseCommand(postQuery);
 
-				// default index page
-				if (query.isEmpty()) {
+			// default index page
+			if (query.isEmpty()) {
 
-					// display a list of all the configurations
+				writePage(request, response, getIndexPage());
 
-					html.append("<h2>Configurations</h2>");
-					html.append("<ul>");
+			} else {
 
-					for (String key : config.keySet()) {
+				String queried = query.get("config");
 
-						DisplayableConfiguration curr = config.get(key);
-						html.append("<li>");
-						html.append("<a href='?config=");
-						html.append(key);
-						html.append("'>");
-						html.append(curr.getDisplayName());
-						html.append("</a>");
-						html.append("</li>");
+				if (!registry.contains(queried)) {
+					// unknown request
+					metrics.recordError(ServerMetrics.CLIENT_ERROR);
+					StringBuilder html = new StringBuilder();
+					renderer.appendError(html,
+							"Cannot find config with that identifier.");
+					writePage(request, response, html);
+				} else if (command == Command.EXIT) {
+					notifyOnCommand(Command.EXIT);
+					writePage(request, response, new StringBuilder(
+							"Server has now stopped."));
+				} else {
+					ConfigurationSnapshot snapshot = getSnapshot(queried);
+
+					if (snapshot == null) {
+						// removed since listed
+						metrics.recordError(ServerMetrics.CLIENT_ERROR);
+						StringBuilder html = new StringBuilder();
+						renderer.appendError(html,
+								"Cannot find config with that identifier.");
+						writePage(request, response, html);
+						return;
 					}
 
-					html.append("</ul>");
+					// paged only when asked, so that large configurations
+					// are still streamed in full by default
+					KeyQuery keys = KeyQuery.parse(query, pageSize);
 
-					appendCommandsForm(html, null, Command.EXIT);
+					if (keys != null) {
+						// pages of keys are cheap to find, and too many to cache
+						long start = System.nanoTime();
 
-				} else {
+						StringBuilder html = new StringBuilder();
+						renderer.appendConfigPage(html, snapshot, command, keys);
 
-					String queried = query.get("config");
-
-					System.out.println(query.toString());
-					DisplayableConfiguration curr = config.get(queried);
-					
-					if (curr != null) {
-
-						switch (command) {
-						case ADD:
-							appendAddForm(html, curr);
-							break;
-						case UPDATE:
-							// TODO display update form
-							html.append("Display update form");
-							// appendUpdateForm(html, curr);
-							break;
-						case DELETE:
-							// TODO display delete form
-							html.append("Dispaly delete form");
-							// appendDeleteForm(html, curr);
-							break;
-						case EXIT:
-							notifyOnCommand(Command.EXIT);
-							html.append("Server has now stopped.");
-							break;
-						case VIEW:
-						default:
-							appendConfigForm(html, curr);
-							appendAllCommandsForm(html, queried);
-							break;
-						}
+						metrics.recordRender(System.nanoTime() - start);
+						writePage(request, response, html);
+					} else if (snapshot.size() > streamingThreshold) {
+						streamConfigPage(request, response, snapshot, command);
 					} else {
-						// unknown request
-						appendError(html,
-								"Cannot find config with that identifier.");
+						writePage(request, response,
+								getConfigPage(snapshot, command));
 					}
 				}
+			}
+
+		} else if (request.getMethod().equalsIgnoreCase("POST")) {
+			// a post to update a setting
 
-			} else if (request.getMethod().equalsIgnoreCase("POST")) {
-				// a post to update a setting
+			StringBuilder html = new StringBuilder();
+			Query postQuery = request.getQuery();
+			Command command = parseCommand(postQuery);
 
-				Query postQuery = request.getQuery();
-				Command command = parseCommand(postQuery);
+			String id = postQuery.get("config_id");
 
-				String id = postQuery.get("config_id");
+			if (!registry.contains(id)) {
+				metrics.recordError(ServerMetrics.CLIENT_ERROR);
+				renderer.appendError(html,
+						"Invalid command received. No config specified.");
+			} else {
 
-				DisplayableConfiguration conf = config.get(id);
+				Transaction transaction = new Transaction();
+				String base = postQuery.get(VERSION_PARAMETER);
 
-				if (conf == null) {
-					appendError(html,
-							"Invalid command received. No config specified.");
-				} else {
+				// the version of the configuration the form was rendered from
+				if (base != null) {
+					transaction.basedOn(parseVersionToken(base));
+				}
 
-					boolean modified = false;
-					String modifyedKey = null;
+				try {
+					applyForm(html, id, command, postQuery, transaction);
+				} catch (ConflictException e) {
+					metrics.recordError(ServerMetrics.CLIENT_ERROR);
+					response.setCode(409);
+					response.setDescription("Conflict");
 
-					switch (command) {
-					case DELETE:
+					html.setLength(0);
+					renderer.appendConflict(html, e);
+				}
+			}
 
-						for (String key : postQuery.keySet()) {
-							if (conf.removeProperty(key)) {
-								notifyOnDelete(conf, key);
-							}
-						}
+			writePage(request, response, html);
+		} else {
+			response.close();
+		}
+	}
 
-						html.append("Configuration has been updated!");
-						html.append("<a href='/'>Back</a>");
-
-						break;
-					case ADD:
-						String key = postQuery.get("key");
-						String value = postQuery.get("value");
-						
-						conf.setProperty(key, value);
-						notifyOnAdd(conf, key);
-						html.append("Configuration has been added!");
-						html.append("<a href='/'>Back</a>");
-						break;
-					case UPDATE:
-						
-						for (String currKey : postQuery.keySet()) {
-							if (conf.hasProperty(currKey)) {
-								conf.setProperty(currKey, postQuery.get(currKey));
-								notifyOnUpdate(conf, currKey);
-							}
-						}
-						
-						html.append("Configuration has been updated!");
-						html.append("<a href='/'>Back</a>");
-						break;
-					
-					default:
-						appendError(html, "Invalid command received.");
-						break;
-					}
+	/**
+	 * Commits the changes posted by a form.
+	 */
+	private void applyForm(StringBuilder html, String id, Command command,
+			Query postQuery, Transaction transaction) throws IOException {
+
+		switch (command) {
+		case DELETE:
+
+			for (String key : postQuery.keySet()) {
+				if (!isFormParameter(key)) {
+					transaction.remove(key);
+				}
+			}
+
+			commit(id, transaction);
+			notifyOnCommand(command);
+			html.append("Configuration has been updated!");
+			html.append("<a href='/'>Back</a>");
+
+			break;
+		case ADD:
+			String key = postQuery.get("key");
+			String value = postQuery.get("value");
+
+			transaction.set(key, value);
+			commit(id, transaction);
+			notifyOnCommand(command);
+			html.append("Configuration has been added!");
+			html.append("<a href='/'>Back</a>");
+			break;
+		case UPDATE:
+
+			for (String currKey : postQuery.keySet()) {
+				if (!isFormParameter(currKey)) {
+					transaction.update(currKey, postQuery.get(currKey));
 				}
 			}
 
-			body.print(html.toString());
-			body.println("</html>");
+			commit(id, transaction);
+			notifyOnCommand(command);
+			html.append("Configuration has been updated!");
+			html.append("<a href='/'>Back</a>");
+			break;
 
-			body.close();
-		} catch (IOException e) {
-			logger.warn("IOException occured on handle.", e);
+		default:
+			metrics.recordError(ServerMetrics.CLIENT_ERROR);
+			renderer.appendError(html, "Invalid command received.");
+			break;
 		}
 	}
 
-	private void appendAddForm(StringBuilder html, DisplayableConfiguration curr) {
+	/**
+	 * @return True if the parameter is part of the form, rather than a key.
+	 */
+	private static boolean isFormParameter(String name) {
+		return name.equals("command") || name.equals("config_id")
+				|| name.equals(VERSION_PARAMETER);
+	}
 
-		appendConfigForm(html, curr);
+	/**
+	 * @return The version of a token issued by this container, or -1 if it
+	 *         was issued by another container or is not a token, which
+	 *         conflicts with every change.
+	 */
+	private long parseVersionToken(String token) {
+		String prefix = Long.toHexString(created) + "-";
+		token = token.trim();
 
-		html.append("<h3>Add Setting</h3>");
+		if (!token.startsWith(prefix)) {
+			return -1;
+		}
 
-		html.append("<form action='.' method='post'>\n");
+		return parseVersion(token.substring(prefix.length()));
+	}
 
-		html.append("<input type='hidden' name='command' value='"
-				+ Command.ADD.toString() + "' />");
+	/**
+	 * @return The version, or -1 if it is not a version, which conflicts with
+	 *         every change.
+	 */
+	private static long parseVersion(String version) {
+		try {
+			return Long.parseLong(version.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
 
-		// add the config id into the form
-		html.append("<input type='hidden' name='config_id' value='");
-		html.append(curr.getId());
-		html.append("' />\n");
-		
-		// add form
-		html.append("<input type='text' name='key' value='' />");
-		html.append("<input type='text' name='value' value='' />");
-		html.append("<input type='submit' />");
+	private String getMethodName(Request request) {
+		String method = request.getMethod().toUpperCase();
 
-		html.append("</form>");
+		// keep the number of distinct metrics bounded
+		if (method.equals("GET") || method.equals("POST")
+				|| method.equals("HEAD")) {
+			return method;
+		}
 
+		return "OTHER";
 	}
 
-	private Command parseCommand(Query query) {
+	/**
+	 * @return The command of the request, or the name of the endpoint for
+	 *         requests that are not commands.
+	 */
+	private String getEndpointName(Request request) {
+		String path = request.getPath().getPath();
+
+		if (path.startsWith(API_PATH)) {
+			return "API";
+		} else if (path.equals(EVENTS_PATH)) {
+			return "EVENTS";
+		} else if (path.equals(METRICS_PATH)) {
+			return "METRICS";
+		} else if (path.equals(CHANGES_PATH)) {
+			return "CHANGES";
+		} else if (path.equals(REPLICATION_PATH)) {
+			return "REPLICATION";
+		}
 
-		String commandStr = query.get("command");
+		String command = request.getQuery().get("command");
 
-		Command command = null;
-		if (commandStr != null) {
-			command = Command.valueOf(commandStr);
+		if (command == null) {
+			return Command.VIEW.toString();
 		}
 
-		// default command, if not specified, is view
-		if (command == null) {
-			command = Command.VIEW;
+		try {
+			return Command.valueOf(command).toString();
+		} catch (IllegalArgumentException e) {
+			return "INVALID";
 		}
+	}
 
-		return command;
+	private void sendServerError(Response response) {
+		try {
+			response.setCode(500);
+			response.setDescription("Internal Server Error");
+			response.close();
+		} catch (IOException e) {
+			logger.debug("Could not send error response.", e);
+		}
 	}
 
-	private void appendError(StringBuilder html, String errorMessage) {
-		html.append("<h2>Error</h2>");
-		html.append("<p>" + errorMessage + "</p>");
+	private void sendMetrics(Response response) throws IOException {
+		byte[] bytes = metrics.toPrometheus().getBytes(CHARSET);
+
+		response.setContentType("text/plain; version=0.0.4; charset=" + CHARSET);
+		response.setDate("Date", System.currentTimeMillis());
+		response.setContentLength(bytes.length);
+
+		OutputStream body = response.getOutputStream();
+		body.write(bytes);
+		body.close();
 	}
 
-	private void appendConfigForm(StringBuilder html,
-			DisplayableConfiguration config) {
-		
-		html.append("<h3>");
-		html.append("Configuration Form for ");
-		html.append(config.getDisplayName());
-		html.append("</h3>");
-		html.append("<form action='.' method='post'>\n");
+	/**
+	 * @return Where the container records what it does.
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
 
-		html.append("<input type='hidden' name='command' value='"
-				+ Command.UPDATE.toString() + "' />");
+	/**
+	 * @return Holds the configurations the container serves.
+	 */
+	public ConfigurationRegistry getRegistry() {
+		return registry;
+	}
 
-		// add the config id into the form
-		html.append("<input type='hidden' name='config_id' value='");
-		html.append(config.getId());
-		html.append("' />\n");
+	/**
+	 * Ends any open change streams. The container should not be used after it
+	 * has been closed.
+	 */
+	public void close() {
+		registry.removeEvictionListener(evictions);
+		changes.close();
+	}
 
-		for (String key : config.getKeys()) {
-			html.append("<br />");
-			html.append("<label>");
-			html.append(key);
-			html.append("</label>");
-			html.append("<input type='text' name='" + key + "' ");
+	/**
+	 * Serves <code>GET /changes?epoch=E&amp;since=N&amp;limit=M</code>: the
+	 * changes made after sequence number N, oldest first. Sequence numbers
+	 * restart with each container, so every response carries the epoch of
+	 * this container, which the client sends back. If some of those changes
+	 * are no longer kept, or the epoch is another container's, responds with
+	 * a 410, and the client must read every configuration again before asking
+	 * for the changes since the latest sequence number.
+	 */
+	private void sendChanges(Request request, Response response)
+			throws IOException {
 
-			String value = config.getProperty(key);
+		response.setDate("Date", System.currentTimeMillis());
+		response.setValue("Cache-Control", "no-cache");
 
-			if (value != null) {
-				html.append("value='");
-				html.append(value);
-				html.append("'");
+		if (!request.getMethod().equalsIgnoreCase("GET")) {
+			response.setValue("Allow", "GET");
+			sendJsonError(response, 405, "Method Not Allowed",
+					"Only GET is supported.");
+			return;
+		}
+
+		Query query = request.getQuery();
+		String epoch = Long.toHexString(created);
+		long since;
+		int limit;
+
+		try {
+			since = query.containsKey("since") ? Long.parseLong(query
+					.get("since")) : 0;
+			limit = query.containsKey("limit") ? Integer.parseInt(query
+					.get("limit")) : pageSize;
+		} catch (NumberFormatException e) {
+			sendJsonError(response, 400, "Bad Request",
+					"since and limit must be numbers.");
+			return;
+		}
+
+		if (since < 0 || limit < 1) {
+			sendJsonError(response, 400, "Bad Request",
+					"since must not be negative, and limit must be positive.");
+			return;
+		}
+
+		// sequences from another container number different changes
+		boolean restarted = query.containsKey("epoch")
+				&& !epoch.equals(query.get("epoch"));
+
+		List<ChangeEvent> events = restarted ? null : changeLog.read(since,
+				limit);
+
+		// read after the events, so it is never older than the last of them
+		long latest = changeLog.getLatestSequence();
+
+		StringBuilder json = new StringBuilder("{");
+
+		if (events == null) {
+			metrics.recordError(ServerMetrics.CLIENT_ERROR);
+			response.setCode(410);
+			response.setDescription("Gone");
+
+			Json.appendName(json, "error");
+			Json.appendString(json, restarted ? "The server has restarted."
+					: "Changes since " + since + " are no longer available.");
+			json.append(',');
+			Json.appendName(json, "resync");
+			json.append("true,");
+			Json.appendName(json, "epoch");
+			Json.appendString(json, epoch);
+			json.append(',');
+			Json.appendName(json, "latest");
+			json.append(latest);
+			json.append('}');
+
+			sendJson(response, json);
+			return;
+		}
+
+		long last = events.isEmpty() ? since : events.get(events.size() - 1)
+				.getSequence();
+
+		Json.appendName(json, "epoch");
+		Json.appendString(json, epoch);
+		json.append(',');
+		Json.appendName(json, "last");
+		json.append(last);
+		json.append(',');
+		Json.appendName(json, "latest");
+		json.append(latest);
+		json.append(',');
+		Json.appendName(json, "more");
+		json.append(last < latest);
+		json.append(',');
+		Json.appendName(json, "changes");
+		json.append('[');
+
+		boolean first = true;
+
+		for (ChangeEvent curr : events) {
+			if (!first) {
+				json.append(',');
 			}
+			first = false;
+
+			Json.appendEvent(json, curr);
+		}
+
+		json.append("]}");
+
+		sendJson(response, json);
+	}
+
+	/**
+	 * @return The recent changes made by the container.
+	 */
+	public ChangeLog getChangeLog() {
+		return changeLog;
+	}
+
+	/**
+	 * Serves {@link #REPLICATION_PATH}: <code>POST</code> applies changes
+	 * pushed by a peer, and <code>GET</code> returns every change this server
+	 * has replicated, for a peer catching up.
+	 */
+	private void handleReplication(Request request, Response response)
+			throws IOException {
+
+		response.setDate("Date", System.currentTimeMillis());
+		response.setValue("Cache-Control", "no-cache");
+
+		Replicator curr = replicator;
 
-			html.append("/>");
+		if (curr == null) {
+			sendJsonError(response, 404, "Not Found",
+					"Replication is not enabled.");
+			return;
+		}
+
+		String method = request.getMethod().toUpperCase();
+
+		if (method.equals("GET")) {
+			sendJson(response, curr.snapshot());
+			return;
+		}
+
+		if (!method.equals("POST")) {
+			response.setValue("Allow", "GET, POST");
+			sendJsonError(response, 405, "Method Not Allowed",
+					"Only GET and POST are supported.");
+			return;
+		}
+
+		try {
+			curr.receive(request.getContent());
+		} catch (IllegalArgumentException e) {
+			sendJsonError(response, 400, "Bad Request", e.getMessage());
+			return;
+		} catch (IllegalStateException e) {
+			// stopped, or not yet started; the peer retries
+			sendJsonError(response, 503, "Service Unavailable", e.getMessage());
+			return;
 		}
-		html.append("<br />");
-		html.append("<input type='submit'/>");
 
-		html.append("</form>");
+		response.setCode(204);
+		response.setDescription("No Content");
+		response.close();
+	}
 
+	/**
+	 * Serves replication requests from peers through the replicator. Set by
+	 * the server when it has peers.
+	 * 
+	 * @param replicator
+	 *            The replicator, or null to turn peers away.
+	 */
+	public void setReplicator(Replicator replicator) {
+		this.replicator = replicator;
 	}
 
-	private void appendCommandsForm(StringBuilder html, String configId, Command... commands) {
+	/**
+	 * Serves <code>GET /events</code>. The response is handed to the change
+	 * stream, which keeps it open.
+	 */
+	private void subscribe(Request request, Response response) {
 
-		html.append("<h2>Server Commands</h2>");
+		Set<String> ids = null;
+		List<String> filter = request.getQuery().getAll("config");
 
-		// VIEW is an alias for a standard get request, so doesn't need to be
-		// displayed
-		// to the user
-		for (Command curr : commands) {
+		if (filter != null && !filter.isEmpty()) {
+			ids = new HashSet<String>();
 
-			if (curr != Command.VIEW) {
-				
-				html.append("<form action='.' method='get'>");
-				html.append("<input type='hidden' name='command' value='"
-						+ curr.toString() + "' />");
-				
-				if(configId != null) {
-					html.append("<input type='hidden' name='config' value='"
-							+ configId + "' />");
+			for (String curr : filter) {
+				for (String id : curr.split(",")) {
+					if (id.trim().length() > 0) {
+						ids.add(id.trim());
+					}
 				}
-				
-				html.append("<input type='submit' value='" + curr.toString()
-						+ "' />");
-				html.append("</form>");
 			}
 		}
-	}
 
-	private void appendAllCommandsForm(StringBuilder html, String parameters) {
-		appendCommandsForm(html, parameters, Command.values());
+		changes.subscribe(response, ids);
 	}
 
-	public void addListener(ContainerListener listener) {
-		listeners.add(listener);
+	/**
+	 * Applies every change in a transaction to a configuration atomically.
+	 * Readers see either none or all of the changes, and listeners are
+	 * notified once the whole transaction has been applied. If the
+	 * configuration throws while a change is applied, the changes already
+	 * made are reverted.
+	 * 
+	 * @param id
+	 *            Id the configuration is hashed on.
+	 * @return The changes that were made. Keys whose value did not change are
+	 *         not included.
+	 */
+	public ChangeSet commit(String id, final Transaction transaction) {
+		return commit(id, new Merge() {
+
+			@Override
+			public Transaction merge(ConfigurationSnapshot current) {
+				return transaction;
+			}
+		});
 	}
 
-	private void notifyOnAdd(Configuration config, String key) {
-		for (ContainerListener curr : listeners) {
-			curr.onAdd(config, key);
+	/**
+	 * Commits the changes decided by a merge from the current state of a
+	 * configuration, with no other change made in between. Used when the
+	 * changes to make depend on the state they are applied to, such as when
+	 * applying changes from a peer.
+	 * 
+	 * @param id
+	 *            Id the configuration is hashed on.
+	 * @return The changes that were made.
+	 */
+	public ChangeSet commit(final String id, final Merge merge) {
+
+		Delivery waiting = delivery.get();
+
+		if (waiting != null) {
+			// made by a listener the committing thread is waiting for, which
+			// may hold the lock, so made by that thread as it would have
+			// been had the listener been called on it
+			return waiting.run(new Callable<ChangeSet>() {
+
+				@Override
+				public ChangeSet call() {
+					return commitNow(id, merge);
+				}
+			});
 		}
+
+		return commitNow(id, merge);
 	}
 
-	private void notifyOnDelete(Configuration config, String key) {
-		for (ContainerListener curr : listeners) {
-			curr.onDelete(config, key);
+	private ChangeSet commitNow(String id, Merge merge) {
+
+		Lock lock = lockFor(id);
+		lock.lock();
+
+		// not unloaded by the provider while being changed
+		registry.pin(id);
+
+		try {
+			ConfigurationSnapshot current = getSnapshot(id);
+
+			if (current == null) {
+				throw new IllegalArgumentException(
+						"Cannot find config with identifier " + id);
+			}
+
+			Transaction transaction = merge.merge(current);
+
+			if (transaction.isConditional()) {
+				checkConflicts(current, transaction);
+			}
+
+			// reloaded if it has been evicted since the snapshot was taken
+			DisplayableConfiguration conf = registry.get(id);
+			List<Change> applied = new ArrayList<Change>();
+
+			try {
+				for (Transaction.Step step : transaction.getSteps()) {
+					apply(conf, step, applied);
+				}
+			} catch (RuntimeException e) {
+				revert(conf, applied);
+				throw e;
+			}
+
+			if (applied.isEmpty()) {
+				return new ChangeSet(id, conf, current.getVersion(), applied, 0,
+						transaction.getOrigin());
+			}
+
+			ConfigurationVersion next = current.getVersion().next(
+					System.currentTimeMillis());
+
+			snapshots.put(id, current.apply(conf, applied, next));
+			cache.invalidate(id);
+
+			ChangeSet changes = new ChangeSet(id, conf, next, applied,
+					changeLog.append(id, next, applied), transaction.getOrigin());
+
+			long start = System.nanoTime();
+			notifyOnChangeSet(changes);
+			metrics.recordDispatch(System.nanoTime() - start);
+
+			return changes;
+		} finally {
+			registry.unpin(id);
+			unlock(lock);
 		}
 	}
 
-	private void notifyOnUpdate(Configuration config, String key) {
-		for (ContainerListener curr : listeners) {
-			curr.onModifed(config, key);
+	/**
+	 * Rejects a transaction that would change keys that have changed since
+	 * the version it was based on. A base version newer than the current one
+	 * comes from before the configuration was reloaded, and -1 from another
+	 * container, so every key it would change conflicts.
+	 */
+	private void checkConflicts(ConfigurationSnapshot current,
+			Transaction transaction) {
+
+		long base = transaction.getBaseVersion();
+		long version = current.getVersion().getVersion();
+
+		if (base == version) {
+			return;
 		}
-	}
 
-	private void notifyOnCommand(Command command) {
-		for (ContainerListener curr : listeners) {
-			curr.onCommand(command);
+		Map<String, Conflict> conflicts = new LinkedHashMap<String, Conflict>();
+
+		for (Transaction.Step step : transaction.getSteps()) {
+
+			if (base < version && current.getKeyVersion(step.key) <= base) {
+				continue;
+			}
+
+			boolean exists = current.hasProperty(step.key);
+			String old = current.getProperty(step.key);
+			boolean changes;
+
+			switch (step.operation) {
+			case REMOVE:
+				changes = exists;
+				break;
+			case UPDATE:
+				changes = exists && !equal(old, step.value);
+				break;
+			case SET:
+			default:
+				changes = !exists || !equal(old, step.value);
+				break;
+			}
+
+			if (changes) {
+				conflicts.put(step.key, new Conflict(step.key, old,
+						step.operation == Transaction.Operation.REMOVE ? null
+								: step.value));
+			}
+		}
+
+		if (!conflicts.isEmpty()) {
+			throw new ConflictException(current.getId(), current.getVersion(),
+					new ArrayList<Conflict>(conflicts.values()));
+		}
+	}
+
+	private void apply(DisplayableConfiguration conf, Transaction.Step step,
+			List<Change> applied) {
+
+		boolean exists = conf.hasProperty(step.key);
+		String old = exists ? conf.getProperty(step.key) : null;
+
+		switch (step.operation) {
+		case REMOVE:
+			if (conf.removeProperty(step.key)) {
+				applied.add(new Change(ChangeType.DELETE, step.key, old, null));
+			}
+			break;
+		case UPDATE:
+			// only changes a key that is already set
+			if (exists) {
+				set(conf, step, exists, old, applied);
+			}
+			break;
+		case SET:
+		default:
+			set(conf, step, exists, old, applied);
+			break;
+		}
+	}
+
+	private void set(DisplayableConfiguration conf, Transaction.Step step,
+			boolean exists, String old, List<Change> applied) {
+
+		if (!exists || !equal(old, step.value)) {
+			conf.setProperty(step.key, step.value);
+			applied.add(new Change(exists ? ChangeType.MODIFY : ChangeType.ADD,
+					step.key, old, step.value));
+		}
+	}
+
+	private void revert(DisplayableConfiguration conf, List<Change> applied) {
+
+		for (int i = applied.size() - 1; i >= 0; i--) {
+			Change change = applied.get(i);
+
+			try {
+				if (change.getType() == ChangeType.ADD) {
+					conf.removeProperty(change.getKey());
+				} else {
+					conf.setProperty(change.getKey(), change.getOldValue());
+				}
+			} catch (RuntimeException e) {
+				logger.error("Could not revert change to " + change.getKey(),
+						e);
+			}
+		}
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * Returns the latest snapshot of a configuration. This never blocks,
+	 * other than to take the first snapshot of a configuration.
+	 * 
+	 * @param id
+	 *            Id the configuration is hashed on.
+	 * @return The snapshot, or null if there is no such configuration.
+	 */
+	public ConfigurationSnapshot getSnapshot(String id) {
+
+		ConfigurationSnapshot snapshot = snapshots.get(id);
+
+		if (snapshot != null) {
+			// keeps the configuration from being evicted while in use
+			registry.touch(id);
+		} else {
+			Lock lock = lockFor(id);
+			lock.lock();
+
+			try {
+				snapshot = snapshots.get(id);
+
+				if (snapshot == null) {
+					DisplayableConfiguration curr = registry.get(id);
+
+					if (curr == null) {
+						return null;
+					}
+
+					ConfigurationVersion last = retired.remove(id);
+					ConfigurationVersion version = last == null ? new ConfigurationVersion(
+							0, created) : last.next(System.currentTimeMillis());
+
+					snapshot = ConfigurationSnapshot.copyOf(id, curr, version);
+					snapshots.put(id, snapshot);
+				}
+			} finally {
+				unlock(lock);
+			}
+		}
+
+		return snapshot;
+	}
+
+	/**
+	 * Takes a new snapshot of a configuration. Only needs to be called if a
+	 * configuration is modified without going through this container.
+	 * 
+	 * @param id
+	 *            Id the configuration is hashed on.
+	 */
+	public void invalidate(String id) {
+
+		Lock lock = lockFor(id);
+		lock.lock();
+
+		try {
+			ConfigurationSnapshot current = snapshots.get(id);
+			DisplayableConfiguration curr = registry.getIfLoaded(id);
+
+			if (current != null) {
+				if (curr == null) {
+					snapshots.remove(id);
+				} else {
+					ConfigurationVersion next = current.getVersion().next(
+							System.currentTimeMillis());
+
+					snapshots.put(id, ConfigurationSnapshot.copyOf(id, curr,
+							next));
+					changeLog.appendReload(id, next);
+				}
+			}
+
+			cache.invalidate(id);
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	/**
+	 * @return The write lock of a configuration.
+	 */
+	private Lock lockFor(String id) {
+		int hash = id.hashCode();
+		hash ^= hash >>> 16;
+		return locks[hash & (locks.length - 1)];
+	}
+
+	/**
+	 * Releases a write lock, then drops the snapshots of any configurations
+	 * that were evicted while it was held.
+	 */
+	private void unlock(Lock lock) {
+		lock.unlock();
+
+		if (!evicted.isEmpty()) {
+			retireEvicted();
+		}
+	}
+
+	/**
+	 * Drops the snapshots of evicted configurations whose locks are free. A
+	 * configuration is usually evicted by a thread holding the lock of
+	 * another, so waiting for the lock here could deadlock; those still
+	 * locked are retired by the thread holding the lock, once it is released.
+	 */
+	private void retireEvicted() {
+
+		for (int i = evicted.size(); i > 0; i--) {
+			String id = evicted.poll();
+
+			if (id == null) {
+				return;
+			}
+
+			Lock lock = lockFor(id);
+
+			if (lock.tryLock()) {
+				try {
+					retire(id);
+				} finally {
+					lock.unlock();
+				}
+			} else {
+				evicted.add(id);
+			}
+		}
+	}
+
+	/**
+	 * Drops the snapshot and pages of an evicted configuration, keeping its
+	 * version. Must hold the configuration's lock.
+	 */
+	private void retire(String id) {
+		ConfigurationSnapshot current = snapshots.remove(id);
+
+		if (current != null) {
+			retired.put(id, current.getVersion());
+		}
+
+		cache.invalidate(id);
+	}
+
+	/**
+	 * Removes the cached index page. Must be called whenever configurations
+	 * are added to, or removed from, the map supplied to this container.
+	 */
+	public void invalidateIndex() {
+		while (true) {
+			ConfigurationVersion curr = indexVersion.get();
+
+			if (indexVersion.compareAndSet(curr,
+					curr.next(System.currentTimeMillis()))) {
+				break;
+			}
+		}
+		cache.invalidate(null);
+	}
+
+	/**
+	 * Returns the index page, rendering it only if the configuration map has
+	 * changed since it was last rendered.
+	 */
+	private CachedPage getIndexPage() throws IOException {
+
+		ConfigurationVersion version = indexVersion.get();
+		CachedPage page = cache.get(null, null, version);
+
+		if (page == null) {
+
+			metrics.recordCacheMiss();
+			long start = System.nanoTime();
+
+			StringBuilder html = new StringBuilder();
+			renderer.appendIndex(html, registry);
+
+			page = new CachedPage(encodePage(html), version);
+			metrics.recordRender(System.nanoTime() - start);
+
+			if (version == indexVersion.get()) {
+				cache.put(null, null, page);
+			}
+		} else {
+			metrics.recordCacheHit();
+		}
+
+		return page;
+	}
+
+	/**
+	 * Returns the page for a command on a configuration, rendering it only if
+	 * the configuration has changed since it was last rendered.
+	 */
+	private CachedPage getConfigPage(ConfigurationSnapshot curr,
+			Command command) throws IOException {
+
+		String id = curr.getId();
+		ConfigurationVersion version = curr.getVersion();
+		CachedPage page = cache.get(id, command, version);
+
+		if (page == null) {
+
+			metrics.recordCacheMiss();
+			long start = System.nanoTime();
+
+			StringBuilder html = new StringBuilder();
+			renderer.appendConfigPage(html, curr, command);
+
+			page = new CachedPage(encodePage(html), version);
+			metrics.recordRender(System.nanoTime() - start);
+
+			cache.put(id, command, page);
+		} else {
+			metrics.recordCacheHit();
+		}
+
+		return page;
+	}
+
+	/**
+	 * Writes the page for a command on a configuration straight to the
+	 * response, a row at a time, so that only the stream buffer is held in
+	 * memory rather than the whole page. Streamed pages are not cached, and
+	 * are sent chunked.
+	 */
+	private void streamConfigPage(Request request, Response response,
+			ConfigurationSnapshot curr, Command command) throws IOException {
+
+		// streamed pages are always large enough to be worth compressing
+		ContentEncoding encoding = ContentEncoding.negotiate(request
+				.getValue("Accept-Encoding"));
+
+		response.setContentType("text/html; charset=" + CHARSET);
+		response.setDate("Date", System.currentTimeMillis());
+		response.setDate("Last-Modified", curr.getVersion().getLastModified());
+		response.setValue("Vary", "Accept-Encoding");
+
+		if (encoding != ContentEncoding.IDENTITY) {
+			response.setValue("Content-Encoding", encoding.getToken());
+		}
+
+		long start = System.nanoTime();
+		CountingOutputStream out = new CountingOutputStream(
+				response.getOutputStream());
+
+		Writer html = new BufferedWriter(new OutputStreamWriter(
+				encoding.wrap(out), CHARSET), STREAM_BUFFER_SIZE);
+
+		html.write(PageRenderer.HEADER);
+		renderer.appendConfigPage(html, curr, command);
+		html.write(PageRenderer.FOOTER);
+		html.close();
+
+		metrics.recordRender(System.nanoTime() - start);
+		metrics.recordBytesWritten(out.getCount());
+	}
+
+	/**
+	 * Configurations with more keys than the threshold have their pages
+	 * streamed to the client rather than rendered in full and cached.
+	 * Only applies to requests that do not ask for a page of keys, see
+	 * {@link #setPageSize(int)}.
+	 * 
+	 * @param keys
+	 *            Number of keys. Defaults to 2000.
+	 */
+	public void setStreamingThreshold(int keys) {
+		this.streamingThreshold = keys;
+	}
+
+	/**
+	 * Requests can search and page through the keys of a configuration, in
+	 * sorted order, with the <code>prefix</code>, <code>search</code>,
+	 * <code>offset</code> and <code>limit</code> parameters. Requests without
+	 * them display every key.
+	 * 
+	 * @param keys
+	 *            Number of keys on a page when a request does not give a
+	 *            <code>limit</code>. Defaults to 1000.
+	 */
+	public void setPageSize(int keys) {
+		if (keys < 1) {
+			throw new IllegalArgumentException(
+					"Page size must be at least one.");
+		}
+		this.pageSize = keys;
+	}
+
+	/**
+	 * Pages and documents smaller than the threshold are sent uncompressed,
+	 * whatever the client accepts.
+	 * 
+	 * @param bytes
+	 *            Size of the uncompressed content. Defaults to 1024, use
+	 *            {@link Integer#MAX_VALUE} to disable compression.
+	 */
+	public void setCompressionThreshold(int bytes) {
+		this.compressionThreshold = bytes;
+	}
+
+	/**
+	 * Wraps the body in the page markup and encodes it.
+	 */
+	private byte[] encodePage(StringBuilder html) throws IOException {
+		StringBuilder page = new StringBuilder(html.length() + 64);
+		page.append(PageRenderer.HEADER);
+		page.append(html);
+		page.append(PageRenderer.FOOTER);
+		return page.toString().getBytes(CHARSET);
+	}
+
+	private void writePage(Request request, Response response,
+			StringBuilder html) throws IOException {
+		writePage(request, response, new CachedPage(encodePage(html),
+				new ConfigurationVersion(0, System.currentTimeMillis())));
+	}
+
+	private void writePage(Request request, Response response,
+			CachedPage page) throws IOException {
+
+		response.setContentType("text/html; charset=" + CHARSET);
+		// response.set("Server", "ConfigurationServer/1.0 (Simple 4.0)");
+		response.setDate("Date", System.currentTimeMillis());
+		response.setDate("Last-Modified", page.getVersion().getLastModified());
+
+		writeContent(response, page.getContent(selectEncoding(request,
+				response, page)));
+	}
+
+	/**
+	 * Chooses the encoding of a page from those the client accepts, and sets
+	 * the headers describing it. Pages below the compression threshold are
+	 * not worth the time to compress.
+	 */
+	private ContentEncoding selectEncoding(Request request,
+			Response response, CachedPage page) {
+
+		response.setValue("Vary", "Accept-Encoding");
+
+		if (page.getContent().length < compressionThreshold) {
+			return ContentEncoding.IDENTITY;
+		}
+
+		ContentEncoding encoding = ContentEncoding.negotiate(request
+				.getValue("Accept-Encoding"));
+
+		if (encoding != ContentEncoding.IDENTITY) {
+			response.setValue("Content-Encoding", encoding.getToken());
+		}
+
+		return encoding;
+	}
+
+	private void writeContent(Response response, byte[] content)
+			throws IOException {
+
+		response.setContentLength(content.length);
+
+		OutputStream body = response.getOutputStream();
+		body.write(content);
+		body.close();
+
+		metrics.recordBytesWritten(content.length);
+	}
+
+	/**
+	 * Serves <code>GET /api/config/{id}</code>. The configuration is returned
+	 * as a JSON document, tagged with a strong ETag derived from its version.
+	 * A request whose <code>If-None-Match</code> header matches the current
+	 * tag receives a 304 with no body.
+	 * 
+	 * <code>POST</code> sets the keys given as parameters, and
+	 * <code>DELETE</code> removes the keys given as <code>key</code>
+	 * parameters, returning the updated document. A write with an
+	 * <code>If-Match</code> header is rejected with a 409 if it would change
+	 * keys that have changed since the tagged version.
+	 */
+	private void handleApi(Request request, Response response)
+			throws IOException {
+
+		response.setDate("Date", System.currentTimeMillis());
+		response.setValue("Cache-Control", "no-cache");
+
+		String id = request.getPath().getPath().substring(API_PATH.length());
+		String method = request.getMethod().toUpperCase();
+		boolean write = method.equals("POST") || method.equals("DELETE");
+
+		if (!write && !method.equals("GET")) {
+			response.setValue("Allow", "GET, POST, DELETE");
+			sendJsonError(response, 405, "Method Not Allowed",
+					"Only GET, POST and DELETE are supported.");
+			return;
+		}
+
+		ConfigurationSnapshot snapshot = registry.contains(id) ? getSnapshot(id)
+				: null;
+
+		if (snapshot == null) {
+			sendJsonError(response, 404, "Not Found",
+					"Cannot find config with that identifier.");
+			return;
+		}
+
+		if (write) {
+			Transaction transaction = new Transaction();
+			Query query = request.getQuery();
+
+			if (method.equals("POST")) {
+				for (String key : query.keySet()) {
+					transaction.set(key, query.get(key));
+				}
+			} else if (query.getAll("key") != null) {
+				for (String key : query.getAll("key")) {
+					transaction.remove(key);
+				}
+			}
+
+			String condition = request.getValue("If-Match");
+
+			if (condition != null) {
+				applyIfMatch(condition, transaction);
+			}
+
+			try {
+				commit(id, transaction);
+			} catch (ConflictException e) {
+				sendConflict(response, e);
+				return;
+			}
+
+			snapshot = getSnapshot(id);
+		}
+
+		ConfigurationVersion version = snapshot.getVersion();
+		CachedPage page = getJsonPage(snapshot);
+
+		response.setContentType("application/json; charset=" + CHARSET);
+		response.setDate("Last-Modified", version.getLastModified());
+
+		ContentEncoding encoding = selectEncoding(request, response, page);
+		response.setValue("ETag", buildETag(version, encoding));
+
+		if (!write
+				&& matchesETag(request.getValue("If-None-Match"), version)) {
+			response.setCode(304);
+			response.setDescription("Not Modified");
+			response.close();
+			return;
+		}
+
+		writeContent(response, page.getContent(encoding));
+	}
+
+	/**
+	 * Returns the JSON document of a configuration, building it only if the
+	 * configuration has changed since it was last built.
+	 */
+	private CachedPage getJsonPage(ConfigurationSnapshot curr)
+			throws IOException {
+
+		// documents are held alongside the pages, under a null command
+		CachedPage page = cache.get(curr.getId(), null, curr.getVersion());
+
+		if (page == null) {
+
+			metrics.recordCacheMiss();
+			long start = System.nanoTime();
+
+			StringBuilder json = new StringBuilder();
+			appendJson(json, curr);
+
+			page = new CachedPage(json.toString().getBytes(CHARSET),
+					curr.getVersion());
+			metrics.recordRender(System.nanoTime() - start);
+
+			cache.put(curr.getId(), null, page);
+		} else {
+			metrics.recordCacheHit();
+		}
+
+		return page;
+	}
+
+	private void appendJson(StringBuilder json, ConfigurationSnapshot config) {
+
+		json.append('{');
+		Json.appendName(json, "id");
+		Json.appendString(json, config.getId());
+		json.append(',');
+		Json.appendName(json, "displayName");
+		Json.appendString(json, config.getDisplayName());
+		json.append(',');
+		Json.appendName(json, "version");
+		json.append(config.getVersion().getVersion());
+		json.append(',');
+		Json.appendName(json, "properties");
+		json.append('{');
+
+		boolean first = true;
+
+		for (String key : config.getKeys()) {
+			if (!first) {
+				json.append(',');
+			}
+			first = false;
+
+			Json.appendName(json, key);
+			Json.appendString(json, config.getProperty(key));
+		}
+
+		json.append("}}");
+	}
+
+	/**
+	 * Identifies a version of a configuration served by a container, for
+	 * ETags and forms. Versions restart from zero in each container, so the
+	 * token includes its creation time.
+	 */
+	static String versionToken(long created, ConfigurationVersion version) {
+		return Long.toHexString(created) + "-" + version.getVersion();
+	}
+
+	private static long nextCreated() {
+		long now = System.currentTimeMillis();
+
+		while (true) {
+			long last = LAST_CREATED.get();
+			long next = Math.max(now, last + 1);
+
+			if (LAST_CREATED.compareAndSet(last, next)) {
+				return next;
+			}
+		}
+	}
+
+	/**
+	 * Each encoding of a version is a different sequence of bytes, so each
+	 * has its own strong tag.
+	 */
+	private String buildETag(ConfigurationVersion version,
+			ContentEncoding encoding) {
+
+		String suffix = encoding == ContentEncoding.IDENTITY ? "" : "-"
+				+ encoding.getToken();
+
+		return "\"" + versionToken(created, version) + suffix + "\"";
+	}
+
+	/**
+	 * Checks an <code>If-None-Match</code> header against the tags of a
+	 * version, in any encoding. As required for this header, weak tags are
+	 * compared ignoring their weak prefix.
+	 */
+	private boolean matchesETag(String header, ConfigurationVersion version) {
+
+		if (header == null) {
+			return false;
+		}
+
+		for (String candidate : header.split(",")) {
+			candidate = candidate.trim();
+
+			if (candidate.startsWith("W/")) {
+				candidate = candidate.substring(2);
+			}
+
+			if (candidate.equals("*")) {
+				return true;
+			}
+
+			for (ContentEncoding encoding : ContentEncoding.values()) {
+				if (candidate.equals(buildETag(version, encoding))) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Bases a transaction on the newest version tagged in an
+	 * <code>If-Match</code> header. Tags that were not issued by this
+	 * container, including weak tags, match no version, so every change
+	 * conflicts.
+	 */
+	private void applyIfMatch(String header, Transaction transaction) {
+
+		String prefix = "\"" + Long.toHexString(created) + "-";
+		long base = -1;
+
+		for (String candidate : header.split(",")) {
+			candidate = candidate.trim();
+
+			if (candidate.equals("*")) {
+				// any version will do
+				return;
+			}
+
+			if (candidate.startsWith(prefix) && candidate.endsWith("\"")
+					&& candidate.length() > prefix.length()) {
+
+				String version = candidate.substring(prefix.length(),
+						candidate.length() - 1);
+				int suffix = version.indexOf('-');
+
+				if (suffix >= 0) {
+					version = version.substring(0, suffix);
+				}
+
+				base = Math.max(base, parseVersion(version));
+			}
+		}
+
+		transaction.basedOn(base);
+	}
+
+	/**
+	 * Responds to a write that conflicts with changes made since the version
+	 * it was based on, listing the conflicting keys.
+	 */
+	private void sendConflict(Response response, ConflictException conflict)
+			throws IOException {
+
+		metrics.recordError(ServerMetrics.CLIENT_ERROR);
+
+		response.setCode(409);
+		response.setDescription("Conflict");
+		response.setValue("ETag", buildETag(conflict.getVersion(),
+				ContentEncoding.IDENTITY));
+
+		StringBuilder json = new StringBuilder("{");
+		Json.appendName(json, "error");
+		Json.appendString(json,
+				"The configuration has changed since it was read.");
+		json.append(',');
+		Json.appendName(json, "version");
+		json.append(conflict.getVersion().getVersion());
+		json.append(',');
+		Json.appendName(json, "conflicts");
+		json.append('[');
+
+		boolean first = true;
+
+		for (Conflict curr : conflict.getConflicts()) {
+			if (!first) {
+				json.append(',');
+			}
+			first = false;
+
+			json.append('{');
+			Json.appendName(json, "key");
+			Json.appendString(json, curr.getKey());
+			json.append(',');
+			Json.appendName(json, "current");
+			Json.appendString(json, curr.getCurrentValue());
+			json.append(',');
+			Json.appendName(json, "requested");
+			Json.appendString(json, curr.getRequestedValue());
+			json.append('}');
+		}
+
+		json.append("]}");
+
+		sendJson(response, json);
+	}
+
+	private void sendJsonError(Response response, int code,
+			String description, String message) throws IOException {
+
+		metrics.recordError(ServerMetrics.CLIENT_ERROR);
+
+		response.setCode(code);
+		response.setDescription(description);
+
+		StringBuilder json = new StringBuilder("{");
+		Json.appendName(json, "error");
+		Json.appendString(json, message);
+		json.append('}');
+
+		sendJson(response, json);
+	}
+
+	private void sendJson(Response response, CharSequence json)
+			throws IOException {
+
+		byte[] bytes = json.toString().getBytes(CHARSET);
+
+		response.setContentType("application/json; charset=" + CHARSET);
+		response.setContentLength(bytes.length);
+
+		OutputStream body = response.getOutputStream();
+		body.write(bytes);
+		body.close();
+
+		metrics.recordBytesWritten(bytes.length);
+	}
+
+	private Command parseCommand(Query query) {
+
+		String commandStr = query.get("command");
+
+		Command command = null;
+		if (commandStr != null) {
+			command = Command.valueOf(commandStr);
+		}
+
+		// default command, if not specified, is view
+		if (command == null) {
+			command = Command.VIEW;
+		}
+
+		return command;
+	}
+
+	public void addListener(ContainerListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(ContainerListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @param id
+	 *            Id the configuration is hashed on.
+	 * @return The current version of the configuration.
+	 */
+	public ConfigurationVersion getVersion(String id) {
+		ConfigurationSnapshot curr = getSnapshot(id);
+		return curr == null ? new ConfigurationVersion(0, created) : curr
+				.getVersion();
+	}
+
+	private void notifyOnChangeSet(final ChangeSet changes) {
+		ExecutorService executor = listenerExecutor;
+
+		if (executor == null) {
+			for (ContainerListener curr : listeners) {
+				deliver(curr, changes);
+			}
+			return;
+		}
+
+		List<Runnable> calls = new ArrayList<Runnable>();
+
+		for (final ContainerListener curr : listeners) {
+			calls.add(new Runnable() {
+
+				@Override
+				public void run() {
+					deliver(curr, changes);
+				}
+			});
+		}
+
+		dispatch(executor, calls);
+	}
+
+	private void deliver(ContainerListener listener, ChangeSet changes) {
+
+		if (listener instanceof ChangeSetListener) {
+			((ChangeSetListener) listener).onChangeSet(changes);
+			return;
+		}
+
+		Configuration config = changes.getConfiguration();
+
+		for (Change change : changes.getChanges()) {
+			switch (change.getType()) {
+			case ADD:
+				listener.onAdd(config, change.getKey());
+				break;
+			case DELETE:
+				listener.onDelete(config, change.getKey());
+				break;
+			case MODIFY:
+			default:
+				listener.onModifed(config, change.getKey());
+				break;
+			}
+		}
+	}
+
+	private void notifyOnCommand(final Command command) {
+		long start = System.nanoTime();
+		ExecutorService executor = listenerExecutor;
+
+		if (executor == null) {
+			for (ContainerListener curr : listeners) {
+				curr.onCommand(command);
+			}
+		} else {
+			List<Runnable> calls = new ArrayList<Runnable>();
+
+			for (final ContainerListener curr : listeners) {
+				calls.add(new Runnable() {
+
+					@Override
+					public void run() {
+						curr.onCommand(command);
+					}
+				});
+			}
+
+			dispatch(executor, calls);
+		}
+
+		metrics.recordDispatch(System.nanoTime() - start);
+	}
+
+	/**
+	 * Runs listener calls on the executor and waits for them, making any
+	 * commits they make on this thread meanwhile.
+	 */
+	private void dispatch(ExecutorService executor, List<Runnable> calls) {
+		final Delivery current = new Delivery();
+		List<Future<?>> submitted = new ArrayList<Future<?>>();
+
+		try {
+			for (final Runnable call : calls) {
+				submitted.add(executor.submit(new Runnable() {
+
+					@Override
+					public void run() {
+						delivery.set(current);
+
+						try {
+							call.run();
+						} finally {
+							delivery.remove();
+							current.finished();
+						}
+					}
+				}));
+			}
+		} finally {
+			// even if the executor refused some, those it took may commit
+			current.await(submitted.size());
+		}
+
+		awaitAll(submitted);
+	}
+
+	/**
+	 * Waits for every listener call to complete, so that notifications keep
+	 * their order, then rethrows the first failure as it would have been
+	 * thrown on this thread.
+	 */
+	private void awaitAll(List<Future<?>> calls) {
+		Throwable failure = null;
+		boolean interrupted = false;
+
+		for (Future<?> call : calls) {
+			while (true) {
+				try {
+					call.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause();
+					}
+					break;
+				}
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure instanceof Error) {
+			throw (Error) failure;
+		} else if (failure != null) {
+			throw new RuntimeException(failure);
+		}
+	}
+
+	/**
+	 * Sets where listener callbacks are run. Each listener is called on its
+	 * own task, so slow listeners are called in parallel with each other; the
+	 * changing thread waits for them all, so each listener still sees
+	 * notifications in order. A listener may commit changes as it could on
+	 * the changing thread: the commit is handed to the changing thread, which
+	 * holds the configuration's lock, so it cannot deadlock on it. An executor starting a virtual thread per task
+	 * ({@link VirtualThreads#newExecutor()}) lets listeners block on I/O
+	 * without tying up a platform thread each.
+	 * 
+	 * @param executor
+	 *            The executor, or null to call listeners on the thread that
+	 *            made the change. It is not shut down by this container.
+	 */
+	public void setListenerExecutor(ExecutorService executor) {
+		this.listenerExecutor = executor;
+	}
+
+	/**
+	 * A notification being delivered on the listener executor. Commits made
+	 * by its listener calls are queued for the thread waiting for them.
+	 */
+	private static final class Delivery {
+
+		/**
+		 * Queued when a listener call completes.
+		 */
+		private static final Runnable FINISHED = new Runnable() {
+
+			@Override
+			public void run() {
+			}
+		};
+
+		private final BlockingQueue<Runnable> work = new LinkedBlockingQueue<Runnable>();
+
+		/**
+		 * Called by a listener call to have the waiting thread run a commit.
+		 */
+		<T> T run(Callable<T> call) {
+			FutureTask<T> task = new FutureTask<T>(call);
+			work.add(task);
+
+			boolean interrupted = false;
+
+			try {
+				while (true) {
+					try {
+						return task.get();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					} catch (ExecutionException e) {
+						Throwable cause = e.getCause();
+
+						if (cause instanceof RuntimeException) {
+							throw (RuntimeException) cause;
+						} else if (cause instanceof Error) {
+							throw (Error) cause;
+						}
+
+						throw new RuntimeException(cause);
+					}
+				}
+			} finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		void finished() {
+			work.add(FINISHED);
+		}
+
+		/**
+		 * Runs the commits queued by listener calls until they have all
+		 * completed.
+		 */
+		void await(int calls) {
+			boolean interrupted = false;
+
+			while (calls > 0) {
+				try {
+					Runnable next = work.take();
+
+					if (next == FINISHED) {
+						calls--;
+					} else {
+						next.run();
+					}
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
 		}
 	}
 
@@ -0,0 +1,217 @@
+package lib.config.web.container;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import lib.config.web.BulkConfiguration;
+import lib.config.web.DisplayableConfiguration;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+
+/**
+ * An immutable copy of a configuration at a particular version. Pages are
+ * rendered from snapshots, so a reader never sees a partially applied
+ * transaction and never waits for a writer.
+ * 
+ * @author Benjamin Leov
+ *
+ */
+public final class ConfigurationSnapshot {
+
+	private final String id;
+	private final String displayName;
+	private final ConfigurationVersion version;
+	private final List<String> keys;
+	private final Map<String, String> values;
+	private final KeyIndex index;
+
+	/**
+	 * Version of every key changed since the first snapshot was taken,
+	 * including deleted keys.
+	 */
+	private final Map<String, Long> modified;
+
+	/**
+	 * Version of the keys that have not changed since the first snapshot.
+	 */
+	private final long baseline;
+
+	private ConfigurationSnapshot(String id, String displayName,
+			ConfigurationVersion version, List<String> keys,
+			Map<String, String> values, KeyIndex index,
+			Map<String, Long> modified, long baseline) {
+		this.id = id;
+		this.displayName = displayName;
+		this.version = version;
+		this.keys = keys;
+		this.values = values;
+		this.index = index;
+		this.modified = modified;
+		this.baseline = baseline;
+	}
+
+	/**
+	 * Copies every key of a configuration.
+	 */
+	static ConfigurationSnapshot copyOf(String id,
+			DisplayableConfiguration config, ConfigurationVersion version) {
+
+		List<String> keys = new ArrayList<String>(config.getKeys());
+		Map<String, String> values = new HashMap<String, String>(
+				keys.size() * 2);
+
+		if (config instanceof BulkConfiguration) {
+			Map<String, String> read = ((BulkConfiguration) config)
+					.getProperties(keys);
+
+			for (String key : keys) {
+				values.put(key, read.get(key));
+			}
+		} else {
+			for (String key : keys) {
+				values.put(key, config.getProperty(key));
+			}
+		}
+
+		return new ConfigurationSnapshot(id, config.getDisplayName(),
+				version, Collections.unmodifiableList(keys),
+				Collections.unmodifiableMap(values), KeyIndex.of(keys),
+				Collections.<String, Long> emptyMap(), version.getVersion());
+	}
+
+	/**
+	 * Derives the snapshot that follows this one once the changes have been
+	 * applied to the configuration.
+	 * <p>
+	 * The values and key versions are copied in full, so a commit costs
+	 * O(keys) however few keys it changes, and the list of keys is copied
+	 * again when keys are added or deleted. This keeps reads a single lookup
+	 * and is cheap next to rendering the configuration; a configuration of
+	 * hundreds of thousands of keys written many times a second would want a
+	 * structurally shared map instead.
+	 */
+	ConfigurationSnapshot apply(DisplayableConfiguration config,
+			Collection<Change> changes, ConfigurationVersion next) {
+
+		Map<String, String> nextValues = new HashMap<String, String>(values);
+		Map<String, Long> nextModified = new HashMap<String, Long>(modified);
+		boolean keysChanged = false;
+
+		for (Change curr : changes) {
+			nextModified.put(curr.getKey(), next.getVersion());
+
+			if (curr.getType() == ChangeType.DELETE) {
+				nextValues.remove(curr.getKey());
+				keysChanged = true;
+			} else {
+				nextValues.put(curr.getKey(), curr.getNewValue());
+				keysChanged |= curr.getType() == ChangeType.ADD;
+			}
+		}
+
+		// the configuration decides the order of its keys
+		List<String> nextKeys = keys;
+		KeyIndex nextIndex = index;
+
+		if (keysChanged) {
+			nextKeys = Collections.unmodifiableList(new ArrayList<String>(
+					config.getKeys()));
+			nextIndex = index.apply(changes);
+		}
+
+		return new ConfigurationSnapshot(id, config.getDisplayName(), next,
+				nextKeys, Collections.unmodifiableMap(nextValues), nextIndex,
+				Collections.unmodifiableMap(nextModified), baseline);
+	}
+
+	/**
+	 * @return Id the configuration is hashed on in the container.
+	 */
+	public String getId() {
+		return id;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+
+	public ConfigurationVersion getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return The keys, in the order they are displayed.
+	 */
+	public List<String> getKeys() {
+		return keys;
+	}
+
+	/**
+	 * Finds a page of keys, in sorted order. Searching by prefix costs
+	 * O(log n + limit); searching by substring examines every key.
+	 * 
+	 * @param prefix
+	 *            Prefix the keys start with, or null for any.
+	 * @param search
+	 *            Text the keys contain, or null for any.
+	 * @param offset
+	 *            Number of matching keys to skip.
+	 * @param limit
+	 *            Maximum number of keys to return.
+	 */
+	public KeyPage findKeys(String prefix, String search, int offset,
+			int limit) {
+
+		if (offset < 0 || limit < 0) {
+			throw new IllegalArgumentException(
+					"Offset and limit must not be negative.");
+		}
+
+		if (search == null || search.length() == 0) {
+			return index.findByPrefix(prefix, offset, limit);
+		}
+
+		return index.findBySubstring(prefix, search, offset, limit);
+	}
+
+	/**
+	 * @return Version at which the key was last added, changed or deleted.
+	 *         Keys that have not changed since the configuration was loaded
+	 *         have the version it was loaded at.
+	 */
+	public long getKeyVersion(String key) {
+		Long curr = modified.get(key);
+		return curr == null ? baseline : curr;
+	}
+
+	public String getProperty(String key) {
+		return values.get(key);
+	}
+
+	public boolean hasProperty(String key) {
+		return values.containsKey(key);
+	}
+
+	public int size() {
+		return keys.size();
+	}
+
+	/**
+	 * @return A copy of the keys and values, in order, that can be written by
+	 *         a persister. Its id is the one the configuration is served
+	 *         under.
+	 */
+	public DisplayableConfiguration toConfiguration() {
+		DisplayableBasicConfiguration copy = new DisplayableBasicConfiguration();
+		copy.setId(id);
+
+		for (String key : keys) {
+			copy.setProperty(key, values.get(key));
+		}
+
+		return copy;
+	}
+}
@@ -0,0 +1,52 @@
+package lib.config.web.container;
+
+/**
+ * Immutable version stamp of a hosted configuration. A new instance is
+ * created every time a key of the configuration is added, modified or
+ * deleted through the container.
+ * 
+ * @author Benjamin Leov
+ *
+ */
+public final class ConfigurationVersion {
+
+	private final long version;
+	private final long lastModified;
+
+	public ConfigurationVersion(long version, long lastModified) {
+		this.version = version;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * @return The number of changes applied to the configuration since the
+	 *         container was created.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return Time (in milliseconds) the configuration was last changed, or
+	 *         the creation time of the container if it has not changed.
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @param time
+	 *            Time of the change.
+	 * @return The version following this one.
+	 */
+	public ConfigurationVersion next(long time) {
+		return new ConfigurationVersion(version + 1, Math.max(time,
+				lastModified));
+	}
+
+	@Override
+	public String toString() {
+		return "ConfigurationVersion [version=" + version + ", lastModified="
+				+ lastModified + "]";
+	}
+}
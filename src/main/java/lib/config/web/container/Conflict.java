@@ -0,0 +1,45 @@
+package lib.config.web.container;
+
+/**
+ * A key that a transaction would have changed, but that had already been
+ * changed since the version the transaction was based on.
+ *
+ * @author Benjamin Leov
+ *
+ */
+public final class Conflict {
+
+	private final String key;
+	private final String currentValue;
+	private final String requestedValue;
+
+	public Conflict(String key, String currentValue, String requestedValue) {
+		this.key = key;
+		this.currentValue = currentValue;
+		this.requestedValue = requestedValue;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * @return The value the key has now, or null if it has been deleted.
+	 */
+	public String getCurrentValue() {
+		return currentValue;
+	}
+
+	/**
+	 * @return The value the transaction would have set, or null if it would
+	 *         have deleted the key.
+	 */
+	public String getRequestedValue() {
+		return requestedValue;
+	}
+
+	@Override
+	public String toString() {
+		return "Conflict [key=" + key + "]";
+	}
+}
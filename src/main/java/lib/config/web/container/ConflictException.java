@@ -0,0 +1,54 @@
+package lib.config.web.container;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown when a transaction based on an earlier version of a configuration
+ * would overwrite keys that have changed since that version. None of the
+ * transaction's changes are applied.
+ *
+ * @author Benjamin Leov
+ *
+ */
+public class ConflictException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String id;
+	private final ConfigurationVersion version;
+	private final List<Conflict> conflicts;
+
+	public ConflictException(String id, ConfigurationVersion version,
+			List<Conflict> conflicts) {
+		super("Configuration " + id + " has changed since it was read: "
+				+ conflicts);
+		this.id = id;
+		this.version = version;
+		this.conflicts = Collections.unmodifiableList(new ArrayList<Conflict>(
+				conflicts));
+	}
+
+	/**
+	 * @return Id the configuration is hashed on in the container.
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return The current version of the configuration.
+	 */
+	public ConfigurationVersion getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return The keys that had changed, in the order the transaction would
+	 *         have changed them.
+	 */
+	public List<Conflict> getConflicts() {
+		return conflicts;
+	}
+}
@@ -19,7 +19,9 @@ public interface ContainerListener {
 	void onAdd(Configuration config, String key);
 
 	/**
-	 * Called when the container has received a command.
+	 * Called when the container has received a command. For the ADD, UPDATE
+	 * and DELETE commands this is called once every change made by the
+	 * command has been applied (and notified).
 	 * 
 	 * @param command
 	 *            The command.
@@ -4,12 +4,14 @@ import lib.config.base.configuration.Configuration;
 
 /**
  * 
- * Adapter class for ContainerListener.
+ * Adapter class for ContainerListener. Change sets are delivered to
+ * {@link #onAdd}, {@link #onModifed} and {@link #onDelete} one key at a time,
+ * unless {@link #onChangeSet(ChangeSet)} is overridden.
  * 
  * @author Benjamin Leov
  *
  */
-public abstract class ContainerListenerAdapter implements ContainerListener {
+public abstract class ContainerListenerAdapter implements ChangeSetListener {
 
 	public void onModifed(Configuration config, String key) {
 		// override
@@ -26,4 +28,23 @@ public abstract class ContainerListenerAdapter implements ContainerListener {
 	public void onCommand(Command command) {
 		// override
 	}
+
+	public void onChangeSet(ChangeSet changes) {
+		Configuration config = changes.getConfiguration();
+
+		for (Change curr : changes.getChanges()) {
+			switch (curr.getType()) {
+			case ADD:
+				onAdd(config, curr.getKey());
+				break;
+			case DELETE:
+				onDelete(config, curr.getKey());
+				break;
+			case MODIFY:
+			default:
+				onModifed(config, curr.getKey());
+				break;
+			}
+		}
+	}
 }
@@ -0,0 +1,127 @@
+package lib.config.web.container;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The content codings a response can be sent with, and negotiation of them
+ * from an <code>Accept-Encoding</code> header.
+ * 
+ * @author Benjamin Leov
+ * 
+ */
+enum ContentEncoding {
+
+	IDENTITY("identity"), GZIP("gzip"), DEFLATE("deflate");
+
+	private final String token;
+
+	private ContentEncoding(String token) {
+		this.token = token;
+	}
+
+	/**
+	 * @return The name of the coding, as used in HTTP headers.
+	 */
+	String getToken() {
+		return token;
+	}
+
+	/**
+	 * Chooses the coding the client most prefers. When gzip and deflate are
+	 * equally preferred gzip is chosen, as some clients send raw deflate
+	 * data as deflate.
+	 * 
+	 * @param header
+	 *            The <code>Accept-Encoding</code> header, or null.
+	 */
+	static ContentEncoding negotiate(String header) {
+
+		if (header == null) {
+			return IDENTITY;
+		}
+
+		float gzip = -1;
+		float deflate = -1;
+		float any = -1;
+
+		for (String part : header.split(",")) {
+			String[] params = part.split(";");
+			String name = params[0].trim().toLowerCase();
+			float quality = 1;
+
+			for (int i = 1; i < params.length; i++) {
+				String param = params[i].trim();
+
+				if (param.startsWith("q=")) {
+					try {
+						quality = Float.parseFloat(param.substring(2));
+					} catch (NumberFormatException e) {
+						quality = 0;
+					}
+				}
+			}
+
+			if (name.equals("gzip") || name.equals("x-gzip")) {
+				gzip = quality;
+			} else if (name.equals("deflate")) {
+				deflate = quality;
+			} else if (name.equals("*")) {
+				any = quality;
+			}
+		}
+
+		// codings not listed take the quality of the wildcard, if any
+		if (gzip < 0) {
+			gzip = any;
+		}
+		if (deflate < 0) {
+			deflate = any;
+		}
+
+		if (gzip > 0 && gzip >= deflate) {
+			return GZIP;
+		} else if (deflate > 0) {
+			return DEFLATE;
+		}
+
+		return IDENTITY;
+	}
+
+	/**
+	 * @return A stream encoding what is written to it before passing it on.
+	 */
+	OutputStream wrap(OutputStream out) throws IOException {
+		switch (this) {
+		case GZIP:
+			return new GZIPOutputStream(out);
+		case DEFLATE:
+			return new DeflaterOutputStream(out);
+		case IDENTITY:
+		default:
+			return out;
+		}
+	}
+
+	/**
+	 * @return The content, encoded with this coding.
+	 */
+	byte[] encode(byte[] content) throws IOException {
+
+		if (this == IDENTITY) {
+			return content;
+		}
+
+		// repetitive markup typically compresses to a tenth of its size
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				content.length / 8 + 64);
+		OutputStream out = wrap(bytes);
+		out.write(content);
+		out.close();
+
+		return bytes.toByteArray();
+	}
+}
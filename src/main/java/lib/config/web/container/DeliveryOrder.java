@@ -0,0 +1,23 @@
+package lib.config.web.container;
+
+/**
+ * Order in which an {@link AsyncContainerListener} delivers notifications.
+ * 
+ * @author Benjamin Leov
+ *
+ */
+public enum DeliveryOrder {
+
+	/**
+	 * Notifications for the same configuration are delivered one at a time,
+	 * in the order they occurred. Notifications for different configurations
+	 * may be delivered in parallel.
+	 */
+	PER_CONFIGURATION,
+
+	/**
+	 * Notifications are delivered by whichever thread is free, so may be
+	 * delivered out of order.
+	 */
+	PARALLEL;
+}
@@ -0,0 +1,100 @@
+package lib.config.web.container;
+
+/**
+ * Minimal helpers for writing JSON documents without pulling in a JSON
+ * library.
+ * 
+ * @author Benjamin Leov
+ *
+ */
+public final class Json {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private Json() {
+	}
+
+	/**
+	 * Appends the value as a quoted and escaped JSON string, or
+	 * <code>null</code> if the value is null.
+	 */
+	public static StringBuilder appendString(StringBuilder json, String value) {
+
+		if (value == null) {
+			return json.append("null");
+		}
+
+		json.append('"');
+
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+
+			switch (c) {
+			case '"':
+				json.append("\\\"");
+				break;
+			case '\\':
+				json.append("\\\\");
+				break;
+			case '\n':
+				json.append("\\n");
+				break;
+			case '\r':
+				json.append("\\r");
+				break;
+			case '\t':
+				json.append("\\t");
+				break;
+			default:
+				if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+					json.append("\\u");
+					json.append(HEX[(c >> 12) & 0xf]);
+					json.append(HEX[(c >> 8) & 0xf]);
+					json.append(HEX[(c >> 4) & 0xf]);
+					json.append(HEX[c & 0xf]);
+				} else {
+					json.append(c);
+				}
+				break;
+			}
+		}
+
+		return json.append('"');
+	}
+
+	/**
+	 * Appends <code>"name":</code> to the document.
+	 */
+	public static StringBuilder appendName(StringBuilder json, String name) {
+		return appendString(json, name).append(':');
+	}
+
+	/**
+	 * Appends a change as an object, in the form used by the changes
+	 * endpoint and by webhooks.
+	 */
+	public static StringBuilder appendEvent(StringBuilder json,
+			ChangeEvent event) {
+
+		json.append('{');
+		appendName(json, "sequence");
+		json.append(event.getSequence());
+		json.append(',');
+		appendName(json, "config");
+		appendString(json, event.getId());
+		json.append(',');
+		appendName(json, "type");
+		appendString(json, event.getType() == null ? "reload" : event
+				.getType().toString().toLowerCase());
+		json.append(',');
+		appendName(json, "key");
+		appendString(json, event.getKey());
+		json.append(',');
+		appendName(json, "value");
+		appendString(json, event.getValue());
+		json.append(',');
+		appendName(json, "version");
+		json.append(event.getVersion());
+		return json.append('}');
+	}
+}
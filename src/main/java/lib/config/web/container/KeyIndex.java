@@ -0,0 +1,205 @@
+package lib.config.web.container;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable, sorted index of the keys of a configuration. Keys with a
+ * prefix are found by binary search, so a page of them costs O(log n + page)
+ * however many keys there are. Substring searches have to look at every
+ * key.
+ * 
+ * A new index is derived from the previous one as keys are added and
+ * deleted, by merging the changed keys in rather than sorting again.
+ * 
+ * @author Benjamin Leov
+ * 
+ */
+class KeyIndex {
+
+	private static final KeyIndex EMPTY = new KeyIndex(new String[0]);
+
+	private final String[] keys;
+
+	private KeyIndex(String[] keys) {
+		this.keys = keys;
+	}
+
+	static KeyIndex of(Collection<String> keys) {
+
+		if (keys.isEmpty()) {
+			return EMPTY;
+		}
+
+		String[] sorted = keys.toArray(new String[keys.size()]);
+		Arrays.sort(sorted);
+		return new KeyIndex(sorted);
+	}
+
+	/**
+	 * @return The index once the keys added and deleted by the changes have
+	 *         been merged in. Modified keys do not change the index.
+	 */
+	KeyIndex apply(Collection<Change> changes) {
+
+		// the last change to a key decides whether it is present
+		Map<String, Boolean> present = new LinkedHashMap<String, Boolean>();
+
+		for (Change curr : changes) {
+			if (curr.getType() == ChangeType.ADD) {
+				present.put(curr.getKey(), Boolean.TRUE);
+			} else if (curr.getType() == ChangeType.DELETE) {
+				present.put(curr.getKey(), Boolean.FALSE);
+			}
+		}
+
+		if (present.isEmpty()) {
+			return this;
+		}
+
+		List<String> added = new ArrayList<String>();
+		List<String> removed = new ArrayList<String>();
+
+		for (Map.Entry<String, Boolean> curr : present.entrySet()) {
+			boolean indexed = Arrays.binarySearch(keys, curr.getKey()) >= 0;
+
+			if (curr.getValue() && !indexed) {
+				added.add(curr.getKey());
+			} else if (!curr.getValue() && indexed) {
+				removed.add(curr.getKey());
+			}
+		}
+
+		Collections.sort(added);
+		Collections.sort(removed);
+
+		String[] merged = new String[keys.length + added.size()
+				- removed.size()];
+
+		int from = 0;
+		int to = 0;
+		int add = 0;
+		int remove = 0;
+
+		while (from < keys.length || add < added.size()) {
+
+			if (from < keys.length && remove < removed.size()
+					&& keys[from].equals(removed.get(remove))) {
+				from++;
+				remove++;
+			} else if (from < keys.length
+					&& (add == added.size() || keys[from].compareTo(added
+							.get(add)) < 0)) {
+				merged[to++] = keys[from++];
+			} else {
+				merged[to++] = added.get(add++);
+			}
+		}
+
+		return new KeyIndex(merged);
+	}
+
+	int size() {
+		return keys.length;
+	}
+
+	/**
+	 * @param prefix
+	 *            Prefix of the keys, or null or empty for every key.
+	 */
+	KeyPage findByPrefix(String prefix, int offset, int limit) {
+
+		int start = lowerBound(prefix);
+		int end = upperBound(prefix);
+
+		// long, so that an offset near Integer.MAX_VALUE cannot overflow
+		int first = (int) Math.min((long) start + offset, end);
+		int last = (int) Math.min((long) first + limit, end);
+
+		return new KeyPage(Collections.unmodifiableList(Arrays.asList(
+				Arrays.copyOfRange(keys, first, last))), offset, end - start);
+	}
+
+	/**
+	 * @param prefix
+	 *            Prefix of the keys, or null or empty for every key.
+	 * @return The keys containing the text, in order. Every key with the
+	 *         prefix is examined.
+	 */
+	KeyPage findBySubstring(String prefix, String text, int offset, int limit) {
+
+		List<String> page = new ArrayList<String>(Math.min(limit, 256));
+		int total = 0;
+		int end = upperBound(prefix);
+
+		for (int i = lowerBound(prefix); i < end; i++) {
+			String key = keys[i];
+
+			if (key.contains(text)) {
+				if (total >= offset && page.size() < limit) {
+					page.add(key);
+				}
+				total++;
+			}
+		}
+
+		return new KeyPage(Collections.unmodifiableList(page), offset, total);
+	}
+
+	/**
+	 * @return Position of the first key not less than the prefix, or 0 for no
+	 *         prefix.
+	 */
+	private int lowerBound(String prefix) {
+
+		if (prefix == null) {
+			return 0;
+		}
+
+		int low = 0;
+		int high = keys.length;
+
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+
+			if (keys[mid].compareTo(prefix) < 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * @return Position of the first key after those starting with the prefix,
+	 *         or the number of keys for no prefix.
+	 */
+	private int upperBound(String prefix) {
+
+		if (prefix == null) {
+			return keys.length;
+		}
+
+		int low = lowerBound(prefix);
+		int high = keys.length;
+
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+
+			if (keys[mid].startsWith(prefix)) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+
+		return low;
+	}
+}
@@ -0,0 +1,51 @@
+package lib.config.web.container;
+
+import java.util.List;
+
+/**
+ * One page of the keys of a configuration that match a search.
+ * 
+ * @author Benjamin Leov
+ * 
+ */
+public final class KeyPage {
+
+	private final List<String> keys;
+	private final int offset;
+	private final int total;
+
+	KeyPage(List<String> keys, int offset, int total) {
+		this.keys = keys;
+		this.offset = offset;
+		this.total = total;
+	}
+
+	/**
+	 * @return The keys on this page, in sorted order.
+	 */
+	public List<String> getKeys() {
+		return keys;
+	}
+
+	/**
+	 * @return Position of the first key on this page among all matches.
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return Number of keys matching the search, on every page.
+	 */
+	public int getTotal() {
+		return total;
+	}
+
+	public boolean hasPrevious() {
+		return offset > 0;
+	}
+
+	public boolean hasNext() {
+		return offset + keys.size() < total;
+	}
+}
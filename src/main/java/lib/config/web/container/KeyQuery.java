@@ -0,0 +1,95 @@
+package lib.config.web.container;
+
+import java.util.Map;
+
+/**
+ * The part of a request selecting which keys of a configuration to display:
+ * a prefix or text to search for, and the page of matches to show.
+ * 
+ * @author Benjamin Leov
+ * 
+ */
+class KeyQuery {
+
+	static final String PREFIX = "prefix";
+	static final String SEARCH = "search";
+	static final String OFFSET = "offset";
+	static final String LIMIT = "limit";
+
+	private final String prefix;
+	private final String search;
+	private final int offset;
+	private final int limit;
+
+	KeyQuery(String prefix, String search, int offset, int limit) {
+		this.prefix = prefix;
+		this.search = search;
+		this.offset = offset;
+		this.limit = limit;
+	}
+
+	/**
+	 * @param defaultLimit
+	 *            Number of keys shown when the request does not say.
+	 * @return The query, or null if the request does not search or page.
+	 */
+	static KeyQuery parse(Map<String, String> params, int defaultLimit) {
+
+		String prefix = emptyToNull(params.get(PREFIX));
+		String search = emptyToNull(params.get(SEARCH));
+		String offset = params.get(OFFSET);
+		String limit = params.get(LIMIT);
+
+		if (prefix == null && search == null && offset == null
+				&& limit == null) {
+			return null;
+		}
+
+		return new KeyQuery(prefix, search, parse(offset, 0), Math.max(1,
+				parse(limit, defaultLimit)));
+	}
+
+	KeyPage find(ConfigurationSnapshot config) {
+		return config.findKeys(prefix, search, offset, limit);
+	}
+
+	/**
+	 * @return The same search, starting at another offset.
+	 */
+	KeyQuery atOffset(int offset) {
+		return new KeyQuery(prefix, search, Math.max(0, offset), limit);
+	}
+
+	String getPrefix() {
+		return prefix;
+	}
+
+	String getSearch() {
+		return search;
+	}
+
+	int getOffset() {
+		return offset;
+	}
+
+	int getLimit() {
+		return limit;
+	}
+
+	private static int parse(String value, int defaultValue) {
+
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			return Math.max(0, Integer.parseInt(value.trim()));
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	private static String emptyToNull(String value) {
+		return value == null || value.length() == 0 ? null : value;
+	}
+}
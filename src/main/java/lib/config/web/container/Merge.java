@@ -0,0 +1,21 @@
+package lib.config.web.container;
+
+/**
+ * Decides the changes to make to a configuration from its current state, for
+ * {@link ConfigurationContainer#commit(String, Merge)}. It is called while
+ * the configuration's write lock is held, so nothing else changes the
+ * configuration between it reading the state and its changes being applied.
+ * It should not block.
+ * 
+ * @author Benjamin Leov
+ *
+ */
+public interface Merge {
+
+	/**
+	 * @param current
+	 *            The configuration as it is now.
+	 * @return The changes to apply. May be empty.
+	 */
+	Transaction merge(ConfigurationSnapshot current);
+}
@@ -0,0 +1,86 @@
+package lib.config.web.container;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds rendered pages keyed on (config id, command). The index page is held
+ * under a null id, and the JSON document of a configuration under a null
+ * command.
+ * 
+ * An entry is only returned while the version it was rendered from is still
+ * the current version, so a page rendered concurrently with a change can
+ * never be served once the change has been applied.
+ * 
+ * @author Benjamin Leov
+ *
+ */
+class PageCache {
+
+	private final ConcurrentMap<PageKey, CachedPage> pages;
+
+	PageCache() {
+		this.pages = new ConcurrentHashMap<PageKey, CachedPage>();
+	}
+
+	/**
+	 * @return The cached page, or null if there is none for the current
+	 *         version.
+	 */
+	CachedPage get(String id, Command command, ConfigurationVersion current) {
+		CachedPage page = pages.get(new PageKey(id, command));
+
+		if (page != null && page.getVersion() != current) {
+			return null;
+		}
+
+		return page;
+	}
+
+	void put(String id, Command command, CachedPage page) {
+		pages.put(new PageKey(id, command), page);
+	}
+
+	/**
+	 * Removes every page of the configuration, and its JSON document.
+	 */
+	void invalidate(String id) {
+		for (Command command : Command.values()) {
+			pages.remove(new PageKey(id, command));
+		}
+		pages.remove(new PageKey(id, null));
+	}
+
+	private static final class PageKey {
+
+		private final String id;
+		private final Command command;
+
+		PageKey(String id, Command command) {
+			this.id = id;
+			this.command = command;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = 31 + (id == null ? 0 : id.hashCode());
+			return 31 * result + (command == null ? 0 : command.hashCode());
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+
+			if (!(obj instanceof PageKey)) {
+				return false;
+			}
+
+			PageKey other = (PageKey) obj;
+
+			return command == other.command
+					&& (id == null ? other.id == null : id.equals(other.id));
+		}
+	}
+}
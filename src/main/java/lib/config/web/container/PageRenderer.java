@@ -0,0 +1,403 @@
+package lib.config.web.container;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Collection;
+
+import lib.config.web.ConfigurationRegistry;
+
+/**
+ * Renders the HTML pages of the web interface. Pages are written to an
+ * {@link Appendable}, so they can be rendered either into a buffer to be
+ * cached, or straight to the response.
+ * 
+ * @author Benjamin Leov
+ *
+ */
+class PageRenderer {
+
+	static final String HEADER = "<html>\n<title>Simple Configuration Server</title>\n";
+	static final String FOOTER = "</html>\n";
+
+	/**
+	 * Creation time of the container, which the version of each form is
+	 * issued by.
+	 */
+	private final long created;
+
+	PageRenderer(long created) {
+		this.created = created;
+	}
+
+	/**
+	 * Lists all of the configurations.
+	 */
+	void appendIndex(Appendable html, ConfigurationRegistry registry)
+			throws IOException {
+
+		html.append("<h2>Configurations</h2>");
+		html.append("<ul>");
+
+		// only names are needed, so nothing is loaded
+		for (String key : registry.getIds()) {
+
+			html.append("<li>");
+			html.append("<a href='?config=");
+			html.append(key);
+			html.append("'>");
+			html.append(registry.getDisplayName(key));
+			html.append("</a>");
+			html.append("</li>");
+		}
+
+		html.append("</ul>");
+
+		appendCommandsForm(html, null, Command.EXIT);
+	}
+
+	/**
+	 * Displays the page for a command on a configuration.
+	 */
+	void appendConfigPage(Appendable html, ConfigurationSnapshot curr,
+			Command command) throws IOException {
+		appendConfigPage(html, curr, command, null);
+	}
+
+	/**
+	 * Displays the page for a command on a configuration, showing only the
+	 * keys selected by the query.
+	 * 
+	 * @param query
+	 *            The keys to show, or null for every key.
+	 */
+	void appendConfigPage(Appendable html, ConfigurationSnapshot curr,
+			Command command, KeyQuery query) throws IOException {
+
+		switch (command) {
+		case ADD:
+			appendAddForm(html, curr, query);
+			break;
+		case UPDATE:
+			// TODO display update form
+			html.append("Display update form");
+			// appendUpdateForm(html, curr);
+			break;
+		case DELETE:
+			// TODO display delete form
+			html.append("Dispaly delete form");
+			// appendDeleteForm(html, curr);
+			break;
+		case VIEW:
+		default:
+			appendConfigForm(html, curr, query);
+			appendAllCommandsForm(html, curr.getId());
+			break;
+		}
+	}
+
+	void appendError(Appendable html, String errorMessage) throws IOException {
+		html.append("<h2>Error</h2>");
+		html.append("<p>");
+		html.append(errorMessage);
+		html.append("</p>");
+	}
+
+	/**
+	 * Lists the keys that could not be saved because they were changed by
+	 * someone else after the form was displayed.
+	 */
+	void appendConflict(Appendable html, ConflictException conflict)
+			throws IOException {
+
+		html.append("<h2>Conflict</h2>");
+		html.append("<p>");
+		html.append("These settings were changed after the form was displayed. ");
+		html.append("None of your changes have been saved.");
+		html.append("</p>");
+
+		html.append("<table>");
+		html.append("<tr><th>Setting</th><th>Current value</th><th>Your value</th></tr>");
+
+		for (Conflict curr : conflict.getConflicts()) {
+			html.append("<tr><td>");
+			html.append(curr.getKey());
+			html.append("</td><td>");
+			html.append(curr.getCurrentValue() == null ? "(deleted)" : curr
+					.getCurrentValue());
+			html.append("</td><td>");
+			html.append(curr.getRequestedValue() == null ? "(deleted)" : curr
+					.getRequestedValue());
+			html.append("</td></tr>");
+		}
+
+		html.append("</table>");
+
+		html.append("<a href='?config=");
+		html.append(conflict.getId());
+		html.append("'>Reload</a>");
+	}
+
+	private void appendAddForm(Appendable html, ConfigurationSnapshot curr,
+			KeyQuery query) throws IOException {
+
+		appendConfigForm(html, curr, query);
+
+		html.append("<h3>Add Setting</h3>");
+
+		html.append("<form action='.' method='post'>\n");
+
+		html.append("<input type='hidden' name='command' value='");
+		html.append(Command.ADD.toString());
+		html.append("' />");
+
+		// add the config id into the form
+		html.append("<input type='hidden' name='config_id' value='");
+		html.append(curr.getId());
+		html.append("' />\n");
+
+		appendVersionField(html, curr);
+
+		// add form
+		html.append("<input type='text' name='key' value='' />");
+		html.append("<input type='text' name='value' value='' />");
+		html.append("<input type='submit' />");
+
+		html.append("</form>");
+
+	}
+
+	private void appendConfigForm(Appendable html,
+			ConfigurationSnapshot config, KeyQuery query) throws IOException {
+
+		html.append("<h3>");
+		html.append("Configuration Form for ");
+		html.append(config.getDisplayName());
+		html.append("</h3>");
+
+		appendSearchForm(html, config, query);
+
+		Collection<String> keys = config.getKeys();
+		KeyPage page = null;
+
+		if (query != null) {
+			page = query.find(config);
+			keys = page.getKeys();
+		}
+
+		html.append("<form action='.' method='post'>\n");
+
+		html.append("<input type='hidden' name='command' value='");
+		html.append(Command.UPDATE.toString());
+		html.append("' />");
+
+		// add the config id into the form
+		html.append("<input type='hidden' name='config_id' value='");
+		html.append(config.getId());
+		html.append("' />\n");
+
+		appendVersionField(html, config);
+
+		for (String key : keys) {
+			html.append("<br />");
+			html.append("<label>");
+			html.append(key);
+			html.append("</label>");
+			html.append("<input type='text' name='");
+			html.append(key);
+			html.append("' ");
+
+			String value = config.getProperty(key);
+
+			if (value != null) {
+				html.append("value='");
+				html.append(value);
+				html.append("'");
+			}
+
+			html.append("/>");
+		}
+		html.append("<br />");
+		html.append("<input type='submit'/>");
+
+		html.append("</form>");
+
+		if (page != null) {
+			appendPageLinks(html, config, query, page);
+		}
+	}
+
+	/**
+	 * Adds the version the form was rendered from, so that changes made
+	 * since are not overwritten when it is posted. The version is tagged
+	 * with the container, like an ETag, so a form rendered before a restart
+	 * conflicts rather than matching the same version number.
+	 */
+	private void appendVersionField(Appendable html,
+			ConfigurationSnapshot config) throws IOException {
+		html.append("<input type='hidden' name='");
+		html.append(ConfigurationContainer.VERSION_PARAMETER);
+		html.append("' value='");
+		html.append(ConfigurationContainer.versionToken(created,
+				config.getVersion()));
+		html.append("' />\n");
+	}
+
+	private void appendSearchForm(Appendable html,
+			ConfigurationSnapshot config, KeyQuery query) throws IOException {
+
+		html.append("<form action='.' method='get'>");
+
+		html.append("<input type='hidden' name='config' value='");
+		html.append(config.getId());
+		html.append("' />");
+
+		html.append("<label>Prefix</label>");
+		html.append("<input type='text' name='" + KeyQuery.PREFIX
+				+ "' value='");
+		if (query != null && query.getPrefix() != null) {
+			appendEscaped(html, query.getPrefix());
+		}
+		html.append("' />");
+
+		html.append("<label>Contains</label>");
+		html.append("<input type='text' name='" + KeyQuery.SEARCH
+				+ "' value='");
+		if (query != null && query.getSearch() != null) {
+			appendEscaped(html, query.getSearch());
+		}
+		html.append("' />");
+
+		html.append("<input type='submit' value='Search' />");
+		html.append("</form>\n");
+	}
+
+	private void appendPageLinks(Appendable html, ConfigurationSnapshot config,
+			KeyQuery query, KeyPage page) throws IOException {
+
+		html.append("<p>");
+
+		if (page.getKeys().isEmpty()) {
+			html.append("No matching keys.");
+		} else {
+			html.append("Keys ");
+			html.append(String.valueOf(page.getOffset() + 1));
+			html.append(" to ");
+			html.append(String.valueOf(page.getOffset() + page.getKeys().size()));
+			html.append(" of ");
+			html.append(String.valueOf(page.getTotal()));
+		}
+
+		if (page.hasPrevious()) {
+			html.append(" <a href='");
+			appendPageLink(html, config, query.atOffset(page.getOffset()
+					- query.getLimit()));
+			html.append("'>Previous</a>");
+		}
+
+		if (page.hasNext()) {
+			html.append(" <a href='");
+			appendPageLink(html, config, query.atOffset(page.getOffset()
+					+ query.getLimit()));
+			html.append("'>Next</a>");
+		}
+
+		html.append("</p>");
+	}
+
+	private void appendPageLink(Appendable html, ConfigurationSnapshot config,
+			KeyQuery query) throws IOException {
+
+		html.append("?config=");
+		html.append(encode(config.getId()));
+
+		if (query.getPrefix() != null) {
+			html.append("&amp;" + KeyQuery.PREFIX + "=");
+			html.append(encode(query.getPrefix()));
+		}
+
+		if (query.getSearch() != null) {
+			html.append("&amp;" + KeyQuery.SEARCH + "=");
+			html.append(encode(query.getSearch()));
+		}
+
+		html.append("&amp;" + KeyQuery.OFFSET + "=");
+		html.append(String.valueOf(query.getOffset()));
+		html.append("&amp;" + KeyQuery.LIMIT + "=");
+		html.append(String.valueOf(query.getLimit()));
+	}
+
+	/**
+	 * Appends text taken from the request so that it is shown as text, and
+	 * cannot close the attribute or element it is written into.
+	 */
+	private static void appendEscaped(Appendable html, String value)
+			throws IOException {
+
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+
+			switch (c) {
+			case '&':
+				html.append("&amp;");
+				break;
+			case '<':
+				html.append("&lt;");
+				break;
+			case '>':
+				html.append("&gt;");
+				break;
+			case '\'':
+				html.append("&#39;");
+				break;
+			case '"':
+				html.append("&quot;");
+				break;
+			default:
+				html.append(c);
+				break;
+			}
+		}
+	}
+
+	private static String encode(String value)
+			throws UnsupportedEncodingException {
+		return URLEncoder.encode(value, "UTF-8");
+	}
+
+	private void appendCommandsForm(Appendable html, String configId,
+			Command... commands) throws IOException {
+
+		html.append("<h2>Server Commands</h2>");
+
+		// VIEW is an alias for a standard get request, so doesn't need to be
+		// displayed
+		// to the user
+		for (Command curr : commands) {
+
+			if (curr != Command.VIEW) {
+
+				html.append("<form action='.' method='get'>");
+				html.append("<input type='hidden' name='command' value='");
+				html.append(curr.toString());
+				html.append("' />");
+
+				if (configId != null) {
+					html.append("<input type='hidden' name='config' value='");
+					html.append(configId);
+					html.append("' />");
+				}
+
+				html.append("<input type='submit' value='");
+				html.append(curr.toString());
+				html.append("' />");
+				html.append("</form>");
+			}
+		}
+	}
+
+	private void appendAllCommandsForm(Appendable html, String parameters)
+			throws IOException {
+		appendCommandsForm(html, parameters, Command.values());
+	}
+}
@@ -0,0 +1,195 @@
+package lib.config.web.container;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lib.config.web.metrics.ServerMetrics;
+
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+import org.simpleframework.http.core.Container;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands requests to worker threads: either a fixed number of threads behind
+ * a bounded queue, or any executor (such as one starting a virtual thread per
+ * request) with a limit on the requests in progress. When the limit is
+ * reached, or once the container is shutting down, requests are answered
+ * with <code>503 Service Unavailable</code> rather than queued without
+ * limit.
+ * 
+ * @author Benjamin Leov
+ * 
+ */
+public class PooledContainer implements Container {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(PooledContainer.class);
+
+	/**
+	 * Seconds a client is asked to wait before retrying a rejected request.
+	 */
+	private static final String RETRY_AFTER = "1";
+
+	private final Container delegate;
+	private final ServerMetrics metrics;
+	private final ExecutorService workers;
+
+	/**
+	 * Limits the requests in progress when the executor does not, otherwise
+	 * null.
+	 */
+	private final Semaphore permits;
+
+	/**
+	 * @param delegate
+	 *            Handles the requests on the worker threads.
+	 * @param metrics
+	 *            Where rejected requests are counted.
+	 * @param threads
+	 *            Number of worker threads.
+	 * @param queueSize
+	 *            Number of requests that may wait for a worker.
+	 */
+	public PooledContainer(Container delegate, ServerMetrics metrics,
+			int threads, int queueSize) {
+
+		if (threads < 1) {
+			throw new IllegalArgumentException(
+					"At least one worker thread is required.");
+		}
+
+		if (queueSize < 1) {
+			throw new IllegalArgumentException(
+					"Queue size must be at least one.");
+		}
+
+		this.delegate = delegate;
+		this.metrics = metrics;
+		this.permits = null;
+		this.workers = new ThreadPoolExecutor(threads, threads, 0L,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						queueSize), new ThreadFactory() {
+
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "config-worker-"
+								+ count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * @param delegate
+	 *            Handles the requests on the executor's threads.
+	 * @param metrics
+	 *            Where rejected requests are counted.
+	 * @param workers
+	 *            Runs each request. Shut down with this container.
+	 * @param maxRequests
+	 *            Number of requests that may be in progress at once.
+	 */
+	public PooledContainer(Container delegate, ServerMetrics metrics,
+			ExecutorService workers, int maxRequests) {
+
+		if (maxRequests < 1) {
+			throw new IllegalArgumentException(
+					"At least one request must be allowed.");
+		}
+
+		this.delegate = delegate;
+		this.metrics = metrics;
+		this.workers = workers;
+		this.permits = new Semaphore(maxRequests);
+	}
+
+	@Override
+	public void handle(final Request request, final Response response) {
+
+		if (permits != null && !permits.tryAcquire()) {
+			metrics.recordError(ServerMetrics.REJECTED);
+			sendUnavailable(response);
+			return;
+		}
+
+		try {
+			workers.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						delegate.handle(request, response);
+					} finally {
+						if (permits != null) {
+							permits.release();
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			if (permits != null) {
+				permits.release();
+			}
+			metrics.recordError(ServerMetrics.REJECTED);
+			sendUnavailable(response);
+		}
+	}
+
+	/**
+	 * Stops accepting requests, and waits for those already accepted
+	 * (including any still queued) to complete. Requests that arrive after
+	 * this is called are rejected.
+	 * 
+	 * @return True if every accepted request completed within the timeout.
+	 *         Otherwise the workers are interrupted and false is returned.
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit)
+			throws InterruptedException {
+
+		workers.shutdown();
+
+		if (workers.awaitTermination(timeout, unit)) {
+			return true;
+		}
+
+		int abandoned = workers.shutdownNow().size();
+		logger.warn("Requests still in progress at shutdown, " + abandoned
+				+ " queued requests abandoned.");
+		return false;
+	}
+
+	/**
+	 * @return Number of requests waiting for a worker.
+	 */
+	public int getQueueDepth() {
+		if (workers instanceof ThreadPoolExecutor) {
+			return ((ThreadPoolExecutor) workers).getQueue().size();
+		}
+		// every request has its own thread
+		return 0;
+	}
+
+	private void sendUnavailable(Response response) {
+		try {
+			response.setCode(503);
+			response.setDescription("Service Unavailable");
+			response.setValue("Retry-After", RETRY_AFTER);
+			response.setContentLength(0);
+			response.close();
+		} catch (IOException e) {
+			logger.debug("Could not send rejection.", e);
+		}
+	}
+}
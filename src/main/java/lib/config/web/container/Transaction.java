@@ -0,0 +1,108 @@
+package lib.config.web.container;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A group of changes to be applied to a configuration atomically, with
+ * {@link ConfigurationContainer#commit(String, Transaction)}.
+ * 
+ * @author Benjamin Leov
+ *
+ */
+public class Transaction {
+
+	enum Operation {
+		SET, UPDATE, REMOVE;
+	}
+
+	static final class Step {
+
+		final Operation operation;
+		final String key;
+		final String value;
+
+		Step(Operation operation, String key, String value) {
+			this.operation = operation;
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	private final List<Step> steps = new ArrayList<Step>();
+
+	private boolean conditional;
+	private long baseVersion;
+	private String origin;
+
+	/**
+	 * Makes the transaction conditional on the version of the configuration
+	 * it was based on. If any key it would change has been changed since that
+	 * version, the commit fails with a {@link ConflictException} and nothing
+	 * is applied. Changes to other keys do not conflict.
+	 *
+	 * @param version
+	 *            {@link ConfigurationVersion#getVersion()} of the
+	 *            configuration when it was read.
+	 */
+	public Transaction basedOn(long version) {
+		this.conditional = true;
+		this.baseVersion = version;
+		return this;
+	}
+
+	/**
+	 * Records where the changes came from, so that listeners can tell them
+	 * apart from edits made on this server. Returned by
+	 * {@link ChangeSet#getOrigin()}.
+	 */
+	public Transaction from(String origin) {
+		this.origin = origin;
+		return this;
+	}
+
+	/**
+	 * Sets the value of a key, adding the key if it does not exist.
+	 */
+	public Transaction set(String key, String value) {
+		steps.add(new Step(Operation.SET, key, value));
+		return this;
+	}
+
+	/**
+	 * Sets the value of a key only if the key already exists.
+	 */
+	public Transaction update(String key, String value) {
+		steps.add(new Step(Operation.UPDATE, key, value));
+		return this;
+	}
+
+	/**
+	 * Removes a key, if it exists.
+	 */
+	public Transaction remove(String key) {
+		steps.add(new Step(Operation.REMOVE, key, null));
+		return this;
+	}
+
+	public boolean isEmpty() {
+		return steps.isEmpty();
+	}
+
+	boolean isConditional() {
+		return conditional;
+	}
+
+	long getBaseVersion() {
+		return baseVersion;
+	}
+
+	String getOrigin() {
+		return origin;
+	}
+
+	List<Step> getSteps() {
+		return Collections.unmodifiableList(steps);
+	}
+}
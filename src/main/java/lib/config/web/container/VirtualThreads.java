@@ -0,0 +1,58 @@
+package lib.config.web.container;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates executors that run each task on its own virtual thread. Virtual
+ * threads need Java 21 or later; they are looked up reflectively so the
+ * library still runs on older versions, where {@link #isAvailable()} is
+ * false.
+ * 
+ * @author Benjamin Leov
+ * 
+ */
+public final class VirtualThreads {
+
+	private static final Method FACTORY = findFactory();
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * @return True if this JVM supports virtual threads.
+	 */
+	public static boolean isAvailable() {
+		return FACTORY != null;
+	}
+
+	/**
+	 * @return An executor starting a new virtual thread for every task.
+	 * @throws UnsupportedOperationException
+	 *             If this JVM does not support virtual threads.
+	 */
+	public static ExecutorService newExecutor() {
+
+		if (FACTORY == null) {
+			throw new UnsupportedOperationException(
+					"Virtual threads require Java 21 or later (running "
+							+ System.getProperty("java.version") + ").");
+		}
+
+		try {
+			return (ExecutorService) FACTORY.invoke(null);
+		} catch (Exception e) {
+			throw new UnsupportedOperationException(
+					"Could not create a virtual thread executor.", e);
+		}
+	}
+
+	private static Method findFactory() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
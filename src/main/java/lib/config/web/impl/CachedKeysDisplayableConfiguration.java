@@ -0,0 +1,169 @@
+package lib.config.web.impl;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lib.config.base.configuration.impl.BasicConfiguration;
+import lib.config.web.DisplayableConfiguration;
+
+/**
+ * A displayable configuration that keeps an immutable, ordered copy of its
+ * keys. The copy is only rebuilt when a key is added or removed, so
+ * {@link #getKeys()} does not allocate when the keys have not changed.
+ * 
+ * The container renders pages from its own snapshots, and only reads the keys
+ * when it takes one, so this helps code that reads the keys of a hosted
+ * configuration itself, such as a listener or persister that walks every key
+ * on each change. The returned set must not be modified.
+ * 
+ * @author Benjamin Leov
+ *
+ */
+public class CachedKeysDisplayableConfiguration extends BasicConfiguration
+		implements DisplayableConfiguration {
+
+	private transient volatile KeySnapshot keys;
+
+	/**
+	 * Incremented whenever a key is added or removed.
+	 */
+	private final AtomicLong generation = new AtomicLong();
+
+	@Override
+	public String getDisplayName() {
+		return getId();
+	}
+
+	@Override
+	public void setProperty(String key, String value) {
+		boolean added = !super.hasProperty(key);
+
+		super.setProperty(key, value);
+
+		if (added) {
+			generation.incrementAndGet();
+		}
+	}
+
+	@Override
+	public boolean removeProperty(String key) {
+		boolean removed = super.removeProperty(key);
+
+		if (removed) {
+			generation.incrementAndGet();
+		}
+
+		return removed;
+	}
+
+	@Override
+	public LinkedHashSet<String> getKeys() {
+		KeySnapshot curr = keys;
+
+		// read before copying, so that a key added during the copy forces
+		// another copy on the next call
+		long current = generation.get();
+
+		if (curr == null || curr.generation != current) {
+			curr = new KeySnapshot(super.getKeys(), current);
+			keys = curr;
+		}
+
+		return curr;
+	}
+
+	/**
+	 * An ordered set of keys that cannot be modified.
+	 */
+	private static final class KeySnapshot extends LinkedHashSet<String> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final long generation;
+
+		/**
+		 * The keys in order, iterated directly rather than through the
+		 * iterator of the set, which would have to be wrapped to stop it
+		 * removing keys.
+		 */
+		private final String[] order;
+
+		KeySnapshot(Collection<String> keys, long generation) {
+			super(Math.max(16, keys.size() * 2));
+
+			this.order = keys.toArray(new String[keys.size()]);
+			this.generation = generation;
+
+			for (String curr : order) {
+				super.add(curr);
+			}
+		}
+
+		@Override
+		public Iterator<String> iterator() {
+			return new KeyIterator(order);
+		}
+
+		@Override
+		public boolean add(String e) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean addAll(Collection<? extends String> c) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean removeAll(Collection<?> c) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean retainAll(Collection<?> c) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void clear() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private static final class KeyIterator implements Iterator<String> {
+
+		private final String[] keys;
+		private int next;
+
+		KeyIterator(String[] keys) {
+			this.keys = keys;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next < keys.length;
+		}
+
+		@Override
+		public String next() {
+			if (next >= keys.length) {
+				throw new NoSuchElementException();
+			}
+
+			return keys[next++];
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,402 @@
+package lib.config.web.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lib.config.base.configuration.Configuration;
+import lib.config.web.BulkConfiguration;
+import lib.config.web.DisplayableConfiguration;
+import lib.config.web.container.Change;
+import lib.config.web.container.ChangeSet;
+import lib.config.web.container.ChangeSetListener;
+import lib.config.web.container.Command;
+
+/**
+ * Caches the values of a configuration that is slow to read, such as one
+ * backed by a database. Values are kept for a fixed time, and once the cache
+ * holds its maximum number of keys the least recently read are dropped.
+ *
+ * Changes made through the cache are written to the underlying configuration
+ * and cached. Add the cache as a listener to the container to also drop keys
+ * changed through any other configuration with the same id:
+ *
+ * <pre>
+ * CachingDisplayableConfiguration cached = new CachingDisplayableConfiguration(
+ * 		databaseConfig, 10000, 30, TimeUnit.SECONDS);
+ *
+ * configs.put(cached.getId(), cached);
+ * server.addListener(cached);
+ * </pre>
+ *
+ * Snapshots taken by the container read every key through
+ * {@link #getProperties(Collection)}, which reads the keys that are not
+ * cached in one call when the underlying configuration is a
+ * {@link BulkConfiguration}.
+ *
+ * @author Benjamin Leov
+ *
+ */
+public class CachingDisplayableConfiguration implements BulkConfiguration,
+		ChangeSetListener {
+
+	private final DisplayableConfiguration delegate;
+	private final int maxEntries;
+	private final long ttl;
+
+	/**
+	 * Ordered by access, least recently read first.
+	 */
+	private final LinkedHashMap<String, Entry> cache;
+
+	/**
+	 * Incremented by every write and invalidation, so that a value read from
+	 * the underlying configuration before one is not cached after it.
+	 * Guarded by {@link #cache}.
+	 */
+	private long generation;
+
+	/**
+	 * Newest generation of an entry dropped from the cache, which a read that
+	 * began before it can no longer be compared with. Guarded by
+	 * {@link #cache}.
+	 */
+	private long forgotten;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param delegate
+	 *            The configuration to cache.
+	 * @param maxEntries
+	 *            Most keys to cache.
+	 * @param ttl
+	 *            Time a value is cached for.
+	 * @param unit
+	 *            Unit of the time to live.
+	 */
+	public CachingDisplayableConfiguration(DisplayableConfiguration delegate,
+			final int maxEntries, long ttl, TimeUnit unit) {
+		this.delegate = delegate;
+		this.maxEntries = maxEntries;
+		this.ttl = unit.toNanos(ttl);
+		this.cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+
+				if (size() > CachingDisplayableConfiguration.this.maxEntries) {
+					evictions.incrementAndGet();
+					forget(eldest.getValue());
+					return true;
+				}
+
+				return false;
+			}
+		};
+	}
+
+	@Override
+	public String getProperty(String key) {
+		Entry entry = lookup(key);
+
+		if (entry != null) {
+			return entry.value;
+		}
+
+		long read = currentGeneration();
+		String value = delegate.getProperty(key);
+		storeRead(key, value, System.nanoTime(), read);
+		return value;
+	}
+
+	@Override
+	public Map<String, String> getProperties(Collection<String> keys) {
+		Map<String, String> values = new HashMap<String, String>(
+				keys.size() * 2);
+		List<String> missing = new ArrayList<String>();
+
+		for (String key : keys) {
+			Entry entry = lookup(key);
+
+			if (entry != null) {
+				values.put(key, entry.value);
+			} else {
+				missing.add(key);
+			}
+		}
+
+		if (missing.isEmpty()) {
+			return values;
+		}
+
+		long read = currentGeneration();
+
+		if (delegate instanceof BulkConfiguration) {
+			Map<String, String> loaded = ((BulkConfiguration) delegate)
+					.getProperties(missing);
+			long now = System.nanoTime();
+
+			for (String key : missing) {
+				String value = loaded.get(key);
+				values.put(key, value);
+				storeRead(key, value, now, read);
+			}
+		} else {
+			for (String key : missing) {
+				String value = delegate.getProperty(key);
+				values.put(key, value);
+				storeRead(key, value, System.nanoTime(), read);
+			}
+		}
+
+		return values;
+	}
+
+	/**
+	 * Reads every key into the cache.
+	 */
+	public void prefetch() {
+		getProperties(getKeys());
+	}
+
+	@Override
+	public void setProperty(String key, String value) {
+		delegate.setProperty(key, value);
+		store(key, value, System.nanoTime());
+	}
+
+	@Override
+	public boolean removeProperty(String key) {
+		boolean removed = delegate.removeProperty(key);
+		store(key, null, System.nanoTime());
+		return removed;
+	}
+
+	@Override
+	public boolean hasProperty(String key) {
+		Entry entry = lookup(key);
+
+		if (entry != null) {
+			return entry.value != null;
+		}
+
+		return delegate.hasProperty(key);
+	}
+
+	@Override
+	public String getId() {
+		return delegate.getId();
+	}
+
+	@Override
+	public void setId(String id) {
+		delegate.setId(id);
+	}
+
+	@Override
+	public String getDisplayName() {
+		return delegate.getDisplayName();
+	}
+
+	@Override
+	public LinkedHashSet<String> getKeys() {
+		return delegate.getKeys();
+	}
+
+	/**
+	 * Drops a key from the cache, so that it is read again.
+	 */
+	public void invalidate(String key) {
+		synchronized (cache) {
+			// expired at once, but remembers when it was invalidated
+			cache.put(key, new Entry(null, System.nanoTime(), ++generation));
+		}
+	}
+
+	/**
+	 * Drops every key from the cache.
+	 */
+	public void invalidateAll() {
+		synchronized (cache) {
+			forgotten = ++generation;
+			cache.clear();
+		}
+	}
+
+	@Override
+	public void onChangeSet(ChangeSet changes) {
+
+		// changes made through this cache are already cached
+		if (changes.getConfiguration() == this || !isSame(changes.getId())) {
+			return;
+		}
+
+		for (Change curr : changes.getChanges()) {
+			invalidate(curr.getKey());
+		}
+	}
+
+	@Override
+	public void onModifed(Configuration config, String key) {
+		invalidate(config, key);
+	}
+
+	@Override
+	public void onDelete(Configuration config, String key) {
+		invalidate(config, key);
+	}
+
+	@Override
+	public void onAdd(Configuration config, String key) {
+		invalidate(config, key);
+	}
+
+	@Override
+	public void onCommand(Command command) {
+	}
+
+	/**
+	 * @return Number of reads answered from the cache.
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return Number of reads passed to the underlying configuration.
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return Number of keys dropped to keep the cache within its size.
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return Number of keys cached, including any that have expired or
+	 *         been invalidated.
+	 */
+	public int size() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	/**
+	 * @return The cached entry, or null if it is not cached or has expired.
+	 */
+	private Entry lookup(String key) {
+		long now = System.nanoTime();
+
+		synchronized (cache) {
+			Entry entry = cache.get(key);
+
+			if (entry != null && now - entry.expires < 0) {
+				hits.incrementAndGet();
+				return entry;
+			}
+
+			if (entry != null) {
+				cache.remove(key);
+				forget(entry);
+			}
+		}
+
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Caches a value written through the cache.
+	 */
+	private void store(String key, String value, long now) {
+		synchronized (cache) {
+			cache.put(key, new Entry(value, now + ttl, ++generation));
+		}
+	}
+
+	/**
+	 * Caches a value read from the underlying configuration, unless the key
+	 * has been written or invalidated since the read began, in which case the
+	 * value may be older than the one the cache has been told of.
+	 * 
+	 * @param read
+	 *            Generation when the read began.
+	 */
+	private void storeRead(String key, String value, long now, long read) {
+		synchronized (cache) {
+			Entry existing = cache.get(key);
+
+			if (existing == null ? forgotten > read : existing.written > read) {
+				return;
+			}
+
+			cache.put(key, new Entry(value, now + ttl, read));
+		}
+	}
+
+	private long currentGeneration() {
+		synchronized (cache) {
+			return generation;
+		}
+	}
+
+	/**
+	 * Records that an entry has been dropped. Guarded by {@link #cache}.
+	 */
+	private void forget(Entry entry) {
+		forgotten = Math.max(forgotten, entry.written);
+	}
+
+	private void invalidate(Configuration config, String key) {
+		if (config != this && isSame(config.getId())) {
+			invalidate(key);
+		}
+	}
+
+	private boolean isSame(String id) {
+		return id != null && id.equals(getId());
+	}
+
+	@Override
+	public String toString() {
+		return "CachingDisplayableConfiguration [delegate=" + delegate
+				+ ", hits=" + hits + ", misses=" + misses + "]";
+	}
+
+	/**
+	 * A cached value, which may be null for a key that does not exist.
+	 */
+	private static final class Entry {
+
+		private final String value;
+		private final long expires;
+
+		/**
+		 * Generation of the write or invalidation that made the entry, or
+		 * when the read that made it began.
+		 */
+		private final long written;
+
+		private Entry(String value, long expires, long written) {
+			this.value = value;
+			this.expires = expires;
+			this.written = written;
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package lib.config.web.impl;
+
+import java.util.Map;
+import java.util.Set;
+
+import lib.config.web.ConfigurationProvider;
+import lib.config.web.DisplayableConfiguration;
+
+/**
+ * Provides configurations that have already been loaded into a map. Nothing
+ * is loaded or saved, so a registry of these never needs to evict.
+ * 
+ * @author Benjamin Leov
+ * 
+ */
+public class MapConfigurationProvider implements ConfigurationProvider {
+
+	private final Map<String, DisplayableConfiguration> configs;
+
+	/**
+	 * @param configs
+	 *            Displayable configurations, hashed on an Id. This does not
+	 *            have to be the id of the configuration.
+	 */
+	public MapConfigurationProvider(
+			Map<String, DisplayableConfiguration> configs) {
+		this.configs = configs;
+	}
+
+	@Override
+	public Set<String> getIds() {
+		return configs.keySet();
+	}
+
+	@Override
+	public String getDisplayName(String id) {
+		DisplayableConfiguration config = configs.get(id);
+		return config == null ? null : config.getDisplayName();
+	}
+
+	@Override
+	public DisplayableConfiguration load(String id) {
+		return configs.get(id);
+	}
+
+	@Override
+	public void unload(String id, DisplayableConfiguration config) {
+		// still held by the map
+	}
+}
@@ -0,0 +1,135 @@
+package lib.config.web.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations with fixed, roughly exponential buckets. Recording
+ * only increments atomic counters, so it never blocks and can be left on in
+ * production.
+ * 
+ * @author Benjamin Leov
+ *
+ */
+public class LatencyHistogram {
+
+	/**
+	 * Upper bounds of the buckets, in nanoseconds. A final bucket holds
+	 * everything above the last bound.
+	 */
+	private static final long[] BOUNDS = { 50000L, 100000L, 250000L, 500000L,
+			1000000L, 2500000L, 5000000L, 10000000L, 25000000L, 50000000L,
+			100000000L, 250000000L, 500000000L, 1000000000L, 2500000000L,
+			5000000000L };
+
+	private final AtomicLongArray buckets;
+	private final AtomicLong count;
+	private final AtomicLong sum;
+
+	public LatencyHistogram() {
+		this.buckets = new AtomicLongArray(BOUNDS.length + 1);
+		this.count = new AtomicLong();
+		this.sum = new AtomicLong();
+	}
+
+	/**
+	 * @param nanos
+	 *            Duration to record, in nanoseconds.
+	 */
+	public void record(long nanos) {
+		int bucket = 0;
+
+		while (bucket < BOUNDS.length && nanos > BOUNDS[bucket]) {
+			bucket++;
+		}
+
+		buckets.incrementAndGet(bucket);
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+	}
+
+	/**
+	 * @return Number of durations recorded.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return Total of the durations recorded, in nanoseconds.
+	 */
+	public long getSumNanos() {
+		return sum.get();
+	}
+
+	/**
+	 * @return Mean duration, in milliseconds.
+	 */
+	public double getMeanMillis() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n / 1000000;
+	}
+
+	/**
+	 * Estimates a percentile from the buckets.
+	 * 
+	 * @param percentile
+	 *            Between 0 and 100.
+	 * @return The upper bound of the bucket holding the percentile, in
+	 *         nanoseconds, or {@link Long#MAX_VALUE} if it lies above the
+	 *         largest bound.
+	 */
+	public long getPercentileNanos(double percentile) {
+		long target = (long) Math.ceil(count.get() * percentile / 100);
+		long seen = 0;
+
+		for (int i = 0; i < BOUNDS.length; i++) {
+			seen += buckets.get(i);
+
+			if (seen >= target) {
+				return BOUNDS[i];
+			}
+		}
+
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * Appends the histogram in the Prometheus text format.
+	 * 
+	 * @param name
+	 *            Metric name, without the _bucket, _sum or _count suffix.
+	 * @param labels
+	 *            Labels to add to every sample, such as
+	 *            <code>method="GET"</code>, or an empty string.
+	 */
+	void appendPrometheus(StringBuilder out, String name, String labels) {
+
+		String prefix = labels.length() == 0 ? "" : labels + ",";
+		long cumulative = 0;
+
+		for (int i = 0; i < BOUNDS.length; i++) {
+			cumulative += buckets.get(i);
+			out.append(name).append("_bucket{").append(prefix).append("le=\"")
+					.append(seconds(BOUNDS[i])).append("\"} ")
+					.append(cumulative).append('\n');
+		}
+
+		cumulative += buckets.get(BOUNDS.length);
+
+		out.append(name).append("_bucket{").append(prefix)
+				.append("le=\"+Inf\"} ").append(cumulative).append('\n');
+
+		String suffix = labels.length() == 0 ? " " : "{" + labels + "} ";
+
+		out.append(name).append("_sum").append(suffix)
+				.append(seconds(sum.get())).append('\n');
+		out.append(name).append("_count").append(suffix).append(cumulative)
+				.append('\n');
+	}
+
+	private static String seconds(long nanos) {
+		return Double.toString((double) nanos / TimeUnit.SECONDS.toNanos(1));
+	}
+}
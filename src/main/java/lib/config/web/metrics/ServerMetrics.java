@@ -0,0 +1,241 @@
+package lib.config.web.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms describing the work done by a
+ * configuration server. Everything is recorded with atomic counters, so
+ * recording is cheap enough to leave on in production.
+ * 
+ * Metrics can be read programmatically, or rendered in the Prometheus text
+ * format with {@link #toPrometheus()}.
+ * 
+ * @author Benjamin Leov
+ *
+ */
+public class ServerMetrics {
+
+	/**
+	 * An I/O error while reading a request or writing a response.
+	 */
+	public static final String IO_ERROR = "io";
+
+	/**
+	 * An unexpected exception while handling a request.
+	 */
+	public static final String INTERNAL_ERROR = "internal";
+
+	/**
+	 * A request for a configuration that does not exist, or with an invalid
+	 * command.
+	 */
+	public static final String CLIENT_ERROR = "client";
+
+	/**
+	 * A request turned away because every worker was busy and the queue of
+	 * waiting requests was full, or because the server was stopping.
+	 */
+	public static final String REJECTED = "rejected";
+
+	private final ConcurrentMap<String, LatencyHistogram> requests;
+	private final ConcurrentMap<String, AtomicLong> errors;
+
+	private final LatencyHistogram render;
+	private final LatencyHistogram dispatch;
+
+	private final AtomicLong bytesWritten;
+	private final AtomicLong cacheHits;
+	private final AtomicLong cacheMisses;
+
+	public ServerMetrics() {
+		this.requests = new ConcurrentHashMap<String, LatencyHistogram>();
+		this.errors = new ConcurrentHashMap<String, AtomicLong>();
+		this.render = new LatencyHistogram();
+		this.dispatch = new LatencyHistogram();
+		this.bytesWritten = new AtomicLong();
+		this.cacheHits = new AtomicLong();
+		this.cacheMisses = new AtomicLong();
+	}
+
+	/**
+	 * @param method
+	 *            HTTP method.
+	 * @param command
+	 *            Command, or the name of the endpoint for requests that are
+	 *            not commands.
+	 * @param nanos
+	 *            Time taken to handle the request.
+	 */
+	public void recordRequest(String method, String command, long nanos) {
+		getOrCreate(requests, key(method, command)).record(nanos);
+	}
+
+	/**
+	 * @param nanos
+	 *            Time taken to render a page or document.
+	 */
+	public void recordRender(long nanos) {
+		render.record(nanos);
+	}
+
+	/**
+	 * @param nanos
+	 *            Time taken to notify the listeners of a change or command.
+	 */
+	public void recordDispatch(long nanos) {
+		dispatch.record(nanos);
+	}
+
+	public void recordBytesWritten(long bytes) {
+		bytesWritten.addAndGet(bytes);
+	}
+
+	public void recordCacheHit() {
+		cacheHits.incrementAndGet();
+	}
+
+	public void recordCacheMiss() {
+		cacheMisses.incrementAndGet();
+	}
+
+	/**
+	 * @param type
+	 *            One of {@link #IO_ERROR}, {@link #INTERNAL_ERROR} or
+	 *            {@link #CLIENT_ERROR}.
+	 */
+	public void recordError(String type) {
+		AtomicLong count = errors.get(type);
+
+		if (count == null) {
+			count = new AtomicLong();
+			AtomicLong prev = errors.putIfAbsent(type, count);
+
+			if (prev != null) {
+				count = prev;
+			}
+		}
+
+		count.incrementAndGet();
+	}
+
+	/**
+	 * @return Latency of the requests with the method and command, or null if
+	 *         there have been none.
+	 */
+	public LatencyHistogram getRequestLatency(String method, String command) {
+		return requests.get(key(method, command));
+	}
+
+	/**
+	 * @return Number of requests handled.
+	 */
+	public long getRequestCount() {
+		long count = 0;
+
+		for (LatencyHistogram curr : requests.values()) {
+			count += curr.getCount();
+		}
+
+		return count;
+	}
+
+	public LatencyHistogram getRenderLatency() {
+		return render;
+	}
+
+	public LatencyHistogram getDispatchLatency() {
+		return dispatch;
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	public long getCacheMisses() {
+		return cacheMisses.get();
+	}
+
+	/**
+	 * @return Number of errors of a type.
+	 */
+	public long getErrorCount(String type) {
+		AtomicLong count = errors.get(type);
+		return count == null ? 0 : count.get();
+	}
+
+	/**
+	 * @return All of the metrics, in the Prometheus text exposition format.
+	 */
+	public String toPrometheus() {
+		StringBuilder out = new StringBuilder();
+
+		out.append("# HELP config_request_duration_seconds Time taken to handle requests.\n");
+		out.append("# TYPE config_request_duration_seconds histogram\n");
+
+		for (Map.Entry<String, LatencyHistogram> curr : requests.entrySet()) {
+			String[] parts = curr.getKey().split(" ", 2);
+			curr.getValue().appendPrometheus(
+					out,
+					"config_request_duration_seconds",
+					"method=\"" + parts[0] + "\",command=\"" + parts[1]
+							+ "\"");
+		}
+
+		out.append("# HELP config_render_duration_seconds Time taken to render pages.\n");
+		out.append("# TYPE config_render_duration_seconds histogram\n");
+		render.appendPrometheus(out, "config_render_duration_seconds", "");
+
+		out.append("# HELP config_dispatch_duration_seconds Time taken to notify listeners.\n");
+		out.append("# TYPE config_dispatch_duration_seconds histogram\n");
+		dispatch.appendPrometheus(out, "config_dispatch_duration_seconds", "");
+
+		out.append("# HELP config_response_bytes_total Bytes written in response bodies.\n");
+		out.append("# TYPE config_response_bytes_total counter\n");
+		out.append("config_response_bytes_total ").append(bytesWritten.get())
+				.append('\n');
+
+		out.append("# HELP config_page_cache_requests_total Page cache lookups.\n");
+		out.append("# TYPE config_page_cache_requests_total counter\n");
+		out.append("config_page_cache_requests_total{result=\"hit\"} ")
+				.append(cacheHits.get()).append('\n');
+		out.append("config_page_cache_requests_total{result=\"miss\"} ")
+				.append(cacheMisses.get()).append('\n');
+
+		out.append("# HELP config_errors_total Errors while handling requests.\n");
+		out.append("# TYPE config_errors_total counter\n");
+
+		for (Map.Entry<String, AtomicLong> curr : errors.entrySet()) {
+			out.append("config_errors_total{type=\"").append(curr.getKey())
+					.append("\"} ").append(curr.getValue().get()).append('\n');
+		}
+
+		return out.toString();
+	}
+
+	private static String key(String method, String command) {
+		return method + " " + command;
+	}
+
+	private static LatencyHistogram getOrCreate(
+			ConcurrentMap<String, LatencyHistogram> map, String key) {
+		LatencyHistogram histogram = map.get(key);
+
+		if (histogram == null) {
+			histogram = new LatencyHistogram();
+			LatencyHistogram prev = map.putIfAbsent(key, histogram);
+
+			if (prev != null) {
+				histogram = prev;
+			}
+		}
+
+		return histogram;
+	}
+}
@@ -0,0 +1,275 @@
+package lib.config.web.persist;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import lib.config.base.configuration.Configuration;
+import lib.config.base.configuration.factory.ConfigurationFactory;
+import lib.config.web.DisplayableConfiguration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A binary copy of the configurations read from a settings file, which is
+ * much quicker to load than parsing the INI or XML it was written from.
+ *
+ * The snapshot records the size and modification time of the settings file
+ * it was written alongside, and is only read while they still match. Write it
+ * whenever the settings file is written, and read the settings file itself
+ * when the snapshot is missing or stale:
+ *
+ * <pre>
+ * BinarySnapshot snapshot = new BinarySnapshot(new File(&quot;my_settings.snapshot&quot;),
+ * 		settingsFile);
+ * List&lt;DisplayableConfiguration&gt; loaded = snapshot.read(factory);
+ *
+ * if (loaded == null) {
+ * 	loaded = persister.read().getConfigurations();
+ * 	snapshot.write(loaded);
+ * }
+ * </pre>
+ *
+ * @author Benjamin Leov
+ *
+ */
+public class BinarySnapshot {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(BinarySnapshot.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * "CFGS"
+	 */
+	private static final int MAGIC = 0x43464753;
+
+	/**
+	 * Incremented whenever the layout changes, so that older snapshots are
+	 * treated as stale.
+	 */
+	private static final int FORMAT_VERSION = 1;
+
+	private final File file;
+	private final File source;
+
+	/**
+	 * @param file
+	 *            The snapshot file.
+	 * @param source
+	 *            The settings file the snapshot is a copy of.
+	 */
+	public BinarySnapshot(File file, File source) {
+		this.file = file;
+		this.source = source;
+	}
+
+	/**
+	 * Writes the configurations, as they are in the settings file. Call this
+	 * after the settings file has been written.
+	 */
+	public void write(Collection<? extends Configuration> configs)
+			throws IOException {
+
+		File target = new File(file.getPath() + ".tmp");
+		CRC32 crc = new CRC32();
+		DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+				new BufferedOutputStream(new FileOutputStream(target)), crc));
+
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeLong(source.lastModified());
+			out.writeLong(source.length());
+			out.writeInt(configs.size());
+
+			for (Configuration config : configs) {
+				String name = config instanceof DisplayableConfiguration ? ((DisplayableConfiguration) config)
+						.getDisplayName() : config.getId();
+
+				writeString(out, config.getId());
+				writeString(out, name);
+
+				Collection<String> keys = config.getKeys();
+				out.writeInt(keys.size());
+
+				for (String key : keys) {
+					writeString(out, key);
+					writeString(out, config.getProperty(key));
+				}
+			}
+
+			out.flush();
+
+			// not part of its own checksum
+			out.writeInt((int) crc.getValue());
+		} finally {
+			out.close();
+		}
+
+		try {
+			Files.move(target.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(target.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		logger.debug("Wrote a snapshot of {} configuration(s) to {}.",
+				configs.size(), file);
+	}
+
+	/**
+	 * Reads the configurations, if the snapshot is still a copy of the
+	 * settings file.
+	 *
+	 * @param factory
+	 *            Builds each configuration from its display name, as the
+	 *            persister that reads the settings file does.
+	 * @return The configurations, or null if the snapshot is missing, stale
+	 *         or corrupt.
+	 */
+	public <T extends Configuration> List<T> read(
+			ConfigurationFactory<T> factory) throws IOException {
+
+		if (!file.exists() || !source.exists()) {
+			return null;
+		}
+
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+
+		try {
+			FileChannel channel = in.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+					0, channel.size());
+
+			return read(buffer, factory);
+		} catch (BufferUnderflowException e) {
+			logger.warn("Ignoring the truncated snapshot " + file);
+			return null;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return True if the snapshot exists, and is a copy of the settings file
+	 *         as it is now.
+	 */
+	public boolean isCurrent() throws IOException {
+
+		if (!file.exists() || !source.exists()) {
+			return false;
+		}
+
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+
+		try {
+			ByteBuffer header = ByteBuffer.allocate(24);
+			in.getChannel().read(header, 0);
+			header.flip();
+
+			return header.remaining() == 24 && isCurrent(header);
+		} finally {
+			in.close();
+		}
+	}
+
+	private <T extends Configuration> List<T> read(ByteBuffer buffer,
+			ConfigurationFactory<T> factory) {
+
+		if (buffer.remaining() < 28 || !isCurrent(buffer.duplicate())) {
+			logger.debug("The snapshot {} is stale.", file);
+			return null;
+		}
+
+		ByteBuffer body = buffer.duplicate();
+		body.limit(buffer.limit() - 4);
+
+		CRC32 crc = new CRC32();
+		crc.update(body);
+
+		if ((int) crc.getValue() != buffer.getInt(buffer.limit() - 4)) {
+			logger.warn("Ignoring the corrupt snapshot " + file);
+			return null;
+		}
+
+		buffer.position(24);
+
+		int count = buffer.getInt();
+		List<T> configs = new ArrayList<T>(count);
+		byte[] scratch = new byte[256];
+
+		for (int i = 0; i < count; i++) {
+			String id = readString(buffer, scratch);
+			T config = factory.buildConfiguration(readString(buffer, scratch));
+			config.setId(id);
+
+			int keys = buffer.getInt();
+
+			for (int j = 0; j < keys; j++) {
+				String key = readString(buffer, scratch);
+				config.setProperty(key, readString(buffer, scratch));
+			}
+
+			configs.add(config);
+		}
+
+		logger.debug("Read a snapshot of {} configuration(s) from {}.", count,
+				file);
+		return configs;
+	}
+
+	private boolean isCurrent(ByteBuffer header) {
+		return header.getInt() == MAGIC && header.getInt() == FORMAT_VERSION
+				&& header.getLong() == source.lastModified()
+				&& header.getLong() == source.length();
+	}
+
+	private static void writeString(DataOutputStream out, String value)
+			throws IOException {
+
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+
+		byte[] bytes = value.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer, byte[] scratch) {
+		int length = buffer.getInt();
+
+		if (length < 0) {
+			return null;
+		}
+
+		if (length > scratch.length) {
+			scratch = new byte[length];
+		}
+
+		buffer.get(scratch, 0, length);
+		return new String(scratch, 0, length, UTF8);
+	}
+}
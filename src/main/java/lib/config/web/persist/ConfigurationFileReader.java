@@ -0,0 +1,34 @@
+package lib.config.web.persist;
+
+import java.util.List;
+
+import lib.config.base.configuration.Configuration;
+import lib.config.base.configuration.ConfigurationException;
+
+/**
+ * Reads the configurations held in a settings file, for
+ * {@link FileReloader}. Typically this wraps a persister:
+ * 
+ * <pre>
+ * new ConfigurationFileReader() {
+ * 
+ * 	&#064;Override
+ * 	public List&lt;? extends Configuration&gt; read()
+ * 			throws ConfigurationException {
+ * 		return new IniPersister&lt;DisplayableConfiguration&gt;(factory, file)
+ * 				.read().getConfigurations();
+ * 	}
+ * }
+ * </pre>
+ * 
+ * @author Benjamin Leov
+ * 
+ */
+public interface ConfigurationFileReader {
+
+	/**
+	 * @return Freshly read configurations. These are only compared against
+	 *         the configurations being served, never served themselves.
+	 */
+	List<? extends Configuration> read() throws ConfigurationException;
+}
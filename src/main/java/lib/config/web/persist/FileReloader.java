@@ -0,0 +1,365 @@
+package lib.config.web.persist;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import lib.config.base.configuration.Configuration;
+import lib.config.base.configuration.ConfigurationException;
+import lib.config.web.ConfigurationRegistry;
+import lib.config.web.container.ChangeSet;
+import lib.config.web.container.ConfigurationContainer;
+import lib.config.web.container.ConfigurationSnapshot;
+import lib.config.web.container.Merge;
+import lib.config.web.container.Transaction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reloads settings files when they are edited on disk, applying only what
+ * changed.
+ * 
+ * When a watched file changes, it is read again and each configuration in it
+ * is compared with the one being served (matched on
+ * {@link Configuration#getId()}). The keys that differ are applied as a
+ * single transaction, so listeners are notified through
+ * <code>onAdd</code>, <code>onModifed</code> and <code>onDelete</code> for
+ * those keys only, and a file that has not really changed notifies nobody.
+ * 
+ * Editors often save a file in several steps, so a file is only read once it
+ * has stopped changing for the debounce period. Writes made by the server
+ * itself are ignored, provided {@link #written(File)} is called after each
+ * one:
+ * 
+ * <pre>
+ * persister.write(list);
+ * reloader.written(settingsFile);
+ * </pre>
+ * 
+ * @author Benjamin Leov
+ * 
+ */
+public class FileReloader implements Closeable {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(FileReloader.class);
+
+	private final ConfigurationContainer container;
+	private final long debounce;
+
+	private final WatchService watcher;
+	private final Thread watchThread;
+	private final ScheduledThreadPoolExecutor executor;
+
+	/**
+	 * Watched files, keyed on their absolute path.
+	 */
+	private final Map<Path, ConfigurationFileReader> readers;
+	private final Map<Path, ScheduledFuture<?>> pending;
+
+	/**
+	 * Checksum of each file as it was last read or written by the server.
+	 */
+	private final Map<Path, Long> checksums;
+
+	private final AtomicLong reloadCount = new AtomicLong();
+	private final AtomicLong ignoredCount = new AtomicLong();
+
+	/**
+	 * @param container
+	 *            Serves the configurations to reload. Changes are committed to
+	 *            it, so the reloader should be created after the server has
+	 *            started.
+	 * @param debounce
+	 *            How long a file must go unchanged before it is read.
+	 */
+	public FileReloader(ConfigurationContainer container, long debounce,
+			TimeUnit unit) throws IOException {
+
+		this.container = container;
+		this.debounce = unit.toMillis(debounce);
+		this.watcher = FileSystems.getDefault().newWatchService();
+		this.readers = new ConcurrentHashMap<Path, ConfigurationFileReader>();
+		this.pending = new ConcurrentHashMap<Path, ScheduledFuture<?>>();
+		this.checksums = new ConcurrentHashMap<Path, Long>();
+
+		this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "config-file-reloader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		this.watchThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				watch();
+			}
+		}, "config-file-watcher");
+		this.watchThread.setDaemon(true);
+		this.watchThread.start();
+	}
+
+	/**
+	 * Starts watching a settings file. Its current contents are taken to be
+	 * what is being served.
+	 */
+	public void watch(File file, ConfigurationFileReader reader)
+			throws IOException {
+
+		Path path = file.getAbsoluteFile().toPath();
+
+		readers.put(path, reader);
+		checksums.put(path, checksum(path));
+
+		register(path.getParent());
+	}
+
+	/**
+	 * Records that the server has just written a file, so that the change is
+	 * not read back in.
+	 */
+	public void written(File file) {
+		Path path = file.getAbsoluteFile().toPath();
+
+		try {
+			checksums.put(path, checksum(path));
+		} catch (IOException e) {
+			logger.warn("Could not read back written file " + file, e);
+		}
+	}
+
+	/**
+	 * @return Number of times a file has been read and applied.
+	 */
+	public long getReloadCount() {
+		return reloadCount.get();
+	}
+
+	/**
+	 * @return Number of times a changed file turned out to be the server's
+	 *         own write.
+	 */
+	public long getIgnoredCount() {
+		return ignoredCount.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		watcher.close();
+		executor.shutdownNow();
+	}
+
+	private void watch() {
+		while (true) {
+			WatchKey key;
+
+			try {
+				key = watcher.take();
+			} catch (InterruptedException e) {
+				return;
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+
+			Path dir = (Path) key.watchable();
+
+			for (WatchEvent<?> event : key.pollEvents()) {
+				changed(dir, event.kind(), (Path) event.context());
+			}
+
+			key.reset();
+		}
+	}
+
+	/**
+	 * Watches the directory of a file. Watches are per directory, and
+	 * registering one twice is harmless.
+	 */
+	void register(Path dir) throws IOException {
+		dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+	}
+
+	/**
+	 * Handles an event in a watched directory.
+	 * 
+	 * @param name
+	 *            Name of the file that changed, which is not given when
+	 *            events have been lost.
+	 */
+	void changed(Path dir, WatchEvent.Kind<?> kind, Path name) {
+
+		if (kind == StandardWatchEventKinds.OVERFLOW) {
+			// events were lost, so check every file in the directory
+			for (Path path : readers.keySet()) {
+				if (path.getParent().equals(dir)) {
+					schedule(path);
+				}
+			}
+			return;
+		}
+
+		Path path = dir.resolve(name);
+
+		if (readers.containsKey(path)) {
+			schedule(path);
+		}
+	}
+
+	/**
+	 * Reads the file once it has stopped changing, restarting the wait on
+	 * every change.
+	 */
+	private void schedule(final Path path) {
+
+		ScheduledFuture<?> previous = pending.put(path, executor.schedule(
+				new Runnable() {
+
+					@Override
+					public void run() {
+						pending.remove(path);
+						reload(path);
+					}
+				}, debounce, TimeUnit.MILLISECONDS));
+
+		if (previous != null) {
+			previous.cancel(false);
+		}
+	}
+
+	private void reload(Path path) {
+
+		try {
+			long checksum = checksum(path);
+			Long last = checksums.get(path);
+
+			if (last != null && last.longValue() == checksum) {
+				// written by the server, or saved without changes
+				ignoredCount.incrementAndGet();
+				return;
+			}
+
+			List<? extends Configuration> configs = readers.get(path).read();
+
+			for (Configuration curr : configs) {
+				apply(curr);
+			}
+
+			checksums.put(path, checksum);
+			reloadCount.incrementAndGet();
+		} catch (IOException e) {
+			logger.warn("Could not read changed file " + path, e);
+		} catch (ConfigurationException e) {
+			logger.warn("Could not parse changed file " + path, e);
+		} catch (RuntimeException e) {
+			logger.error("Could not reload " + path, e);
+		}
+	}
+
+	/**
+	 * Commits the keys of a freshly read configuration that differ from
+	 * those being served. The difference is taken while the configuration's
+	 * write lock is held, so that changes committed meanwhile are not undone.
+	 * A configuration that is served but not loaded is loaded to take the
+	 * difference, as its provider may hold it in memory rather than read the
+	 * file.
+	 */
+	private void apply(final Configuration read) {
+
+		String id = read.getId();
+		ConfigurationRegistry registry = container.getRegistry();
+
+		// asks the registry, so that nothing is loaded for other ids
+		if (!registry.contains(id)) {
+			logger.debug("Ignoring configuration " + id
+					+ ", which is not being served.");
+			return;
+		}
+
+		if (registry.getIfLoaded(id) == null) {
+			logger.debug("Loading configuration " + id
+					+ " to apply the changes to its file.");
+		}
+
+		ChangeSet changes = container.commit(id, new Merge() {
+
+			@Override
+			public Transaction merge(ConfigurationSnapshot current) {
+				Transaction transaction = new Transaction();
+
+				for (String key : read.getKeys()) {
+					String value = read.getProperty(key);
+
+					if (!current.hasProperty(key)
+							|| !equal(value, current.getProperty(key))) {
+						transaction.set(key, value);
+					}
+				}
+
+				for (String key : current.getKeys()) {
+					if (!read.hasProperty(key)) {
+						transaction.remove(key);
+					}
+				}
+
+				return transaction;
+			}
+		});
+
+		if (!changes.getChanges().isEmpty()) {
+			logger.info("Reloaded " + changes.getChanges().size()
+					+ " changed keys of " + id + ".");
+		}
+	}
+
+	private static long checksum(Path path) throws IOException {
+		CRC32 crc = new CRC32();
+
+		if (!Files.exists(path)) {
+			return -1;
+		}
+
+		InputStream in = Files.newInputStream(path);
+
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+
+			while ((read = in.read(buffer)) != -1) {
+				crc.update(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+
+		return crc.getValue();
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
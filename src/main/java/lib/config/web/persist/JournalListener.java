@@ -0,0 +1,578 @@
+package lib.config.web.persist;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import lib.config.base.configuration.Configuration;
+import lib.config.base.configuration.ConfigurationException;
+import lib.config.web.container.Change;
+import lib.config.web.container.ChangeSet;
+import lib.config.web.container.ChangeType;
+import lib.config.web.container.ContainerListenerAdapter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persists changes by appending them to a journal next to the settings file,
+ * so that each change costs the size of the change rather than the size of
+ * the file.
+ *
+ * Each transaction is appended as a single record with a checksum. The
+ * journal is synced to disk once per sync interval rather than once per
+ * record, so a crash loses at most the changes made during the last interval.
+ * Once the journal grows past the compaction size it is compacted: the
+ * settings file is written to a temporary file in its original format, moved
+ * over the settings file, and the journaled records it now contains are
+ * discarded.
+ *
+ * On startup, read the settings file as before and then {@link #replay(Map)}
+ * the journal into the configurations before the server is started.
+ *
+ * <pre>
+ * JournalListener journal = new JournalListener(file, 100,
+ * 		TimeUnit.MILLISECONDS, 1024 * 1024) {
+ *
+ * 	&#064;Override
+ * 	protected void writeSnapshot(File target) throws ConfigurationException {
+ * 		List&lt;DisplayableConfiguration&gt; copies = new ArrayList&lt;DisplayableConfiguration&gt;();
+ *
+ * 		for (String id : container.getRegistry().getIds()) {
+ * 			copies.add(container.getSnapshot(id).toConfiguration());
+ * 		}
+ *
+ * 		new IniPersister(factory, target).write(copies);
+ * 	}
+ * };
+ *
+ * journal.replay(configs);
+ * server.addListener(journal);
+ * </pre>
+ *
+ * @author Benjamin Leov
+ *
+ */
+public abstract class JournalListener extends ContainerListenerAdapter
+		implements Closeable, Flushable {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(JournalListener.class);
+
+	/**
+	 * Records larger than this are treated as corrupt.
+	 */
+	private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * Codes each type of change is written as. These are part of the journal
+	 * format, so they are fixed here rather than taken from the order of
+	 * {@link ChangeType}.
+	 */
+	private static final byte ADD = 0;
+	private static final byte MODIFY = 1;
+	private static final byte DELETE = 2;
+
+	private final File settings;
+	private final File journal;
+	private final File compacting;
+	private final long compactSize;
+
+	private final ScheduledExecutorService executor;
+	private final Object lock = new Object();
+	private final Object compactLock = new Object();
+
+	private FileChannel channel;
+	private boolean unsynced;
+	private boolean closed;
+
+	private final AtomicLong appendCount = new AtomicLong();
+	private final AtomicLong syncCount = new AtomicLong();
+	private final AtomicLong compactionCount = new AtomicLong();
+	private final AtomicLong failureCount = new AtomicLong();
+
+	/**
+	 * Opens the journal, discarding any record left incomplete by a crash.
+	 *
+	 * @param settings
+	 *            The settings file. The journal is kept beside it, with a
+	 *            ".journal" extension.
+	 * @param syncInterval
+	 *            Longest time an appended change waits before it is synced
+	 *            to disk.
+	 * @param unit
+	 *            Unit of the sync interval.
+	 * @param compactSize
+	 *            Size in bytes the journal may reach before it is compacted
+	 *            into the settings file.
+	 */
+	public JournalListener(File settings, long syncInterval, TimeUnit unit,
+			long compactSize) throws IOException {
+		this.settings = settings;
+		this.journal = new File(settings.getPath() + ".journal");
+		this.compacting = new File(settings.getPath() + ".journal.old");
+		this.compactSize = compactSize;
+
+		this.channel = open(journal);
+
+		this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "config-journal");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		executor.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					sync();
+
+					if (getJournalSize() >= JournalListener.this.compactSize) {
+						compact();
+					}
+				} catch (Exception e) {
+					failureCount.incrementAndGet();
+					logger.error("Exception occured maintaining the journal.",
+							e);
+				}
+			}
+		}, syncInterval, syncInterval, unit);
+	}
+
+	/**
+	 * Writes the configurations in the settings file's format. Only called
+	 * from one thread at a time.
+	 * <p>
+	 * This is called on the journal's thread while changes are being
+	 * committed, so write the configurations from
+	 * {@link lib.config.web.container.ConfigurationContainer#getSnapshot(String)}
+	 * rather than reading the live configurations, which may be part way
+	 * through a transaction. Every journaled change has reached the snapshots
+	 * by the time it is compacted, and changes made after the snapshot was
+	 * taken are kept in the journal.
+	 *
+	 * @param target
+	 *            File to write to. It is moved over the settings file once
+	 *            written.
+	 */
+	protected abstract void writeSnapshot(File target)
+			throws ConfigurationException;
+
+	@Override
+	public void onChangeSet(ChangeSet changes) {
+
+		if (changes.isEmpty()) {
+			return;
+		}
+
+		try {
+			append(encode(changes));
+		} catch (IOException e) {
+			failureCount.incrementAndGet();
+			logger.error("Exception occured appending to the journal.", e);
+		}
+	}
+
+	/**
+	 * Applies the journaled changes to the configurations they were made to.
+	 * Call this once the settings file has been read, and before any changes
+	 * are made.
+	 *
+	 * @param configs
+	 *            Configurations read from the settings file, keyed by id.
+	 * @return Number of records applied.
+	 */
+	public int replay(Map<String, ? extends Configuration> configs)
+			throws IOException {
+
+		synchronized (compactLock) {
+			int count = 0;
+
+			// a compaction that did not finish
+			if (compacting.exists()) {
+				count += replay(compacting, configs);
+			}
+
+			return count + replay(journal, configs);
+		}
+	}
+
+	/**
+	 * Syncs appended changes to disk now, on the calling thread.
+	 */
+	public void sync() throws IOException {
+
+		synchronized (lock) {
+
+			if (!unsynced || closed) {
+				return;
+			}
+
+			channel.force(false);
+			unsynced = false;
+		}
+
+		syncCount.incrementAndGet();
+	}
+
+	/**
+	 * Same as {@link #sync()}, so that the server syncs the journal when it
+	 * is stopped.
+	 */
+	@Override
+	public void flush() throws IOException {
+		sync();
+	}
+
+	/**
+	 * Writes the settings file and discards the journal, on the calling
+	 * thread.
+	 */
+	public void compact() throws IOException, ConfigurationException {
+
+		synchronized (compactLock) {
+
+			// a previous compaction failed before its records were discarded,
+			// and so still needs to be written along with the current journal
+			if (!compacting.exists()) {
+				synchronized (lock) {
+
+					if (closed) {
+						return;
+					}
+
+					channel.force(false);
+					channel.close();
+
+					if (!journal.renameTo(compacting)) {
+						channel = open(journal);
+						throw new IOException("Unable to rename " + journal
+								+ " to " + compacting);
+					}
+
+					channel = open(journal);
+					unsynced = false;
+				}
+			}
+
+			File target = new File(settings.getPath() + ".tmp");
+
+			writeSnapshot(target);
+			move(target, settings);
+
+			if (!compacting.delete()) {
+				throw new IOException("Unable to delete " + compacting);
+			}
+
+			compactionCount.incrementAndGet();
+			logger.debug("Compacted the journal into {}.", settings);
+		}
+	}
+
+	/**
+	 * Syncs any appended changes and stops the background thread. The
+	 * journal is not compacted.
+	 */
+	@Override
+	public void close() throws IOException {
+		executor.shutdownNow();
+
+		synchronized (lock) {
+
+			if (closed) {
+				return;
+			}
+
+			try {
+				if (unsynced) {
+					channel.force(false);
+					syncCount.incrementAndGet();
+				}
+			} finally {
+				closed = true;
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 * @return Number of records appended.
+	 */
+	public long getAppendCount() {
+		return appendCount.get();
+	}
+
+	/**
+	 * @return Number of times the journal was synced to disk.
+	 */
+	public long getSyncCount() {
+		return syncCount.get();
+	}
+
+	/**
+	 * @return Number of times the journal was compacted.
+	 */
+	public long getCompactionCount() {
+		return compactionCount.get();
+	}
+
+	/**
+	 * @return Number of appends, syncs and compactions that failed.
+	 */
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+
+	/**
+	 * @return Size of the journal, in bytes.
+	 */
+	public long getJournalSize() {
+		return journal.length();
+	}
+
+	private void append(byte[] payload) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+
+		ByteBuffer record = ByteBuffer.allocate(8 + payload.length);
+		record.putInt(payload.length);
+		record.putInt((int) crc.getValue());
+		record.put(payload);
+		record.flip();
+
+		synchronized (lock) {
+
+			if (closed) {
+				throw new IOException("The journal is closed.");
+			}
+
+			while (record.hasRemaining()) {
+				channel.write(record);
+			}
+
+			unsynced = true;
+		}
+
+		appendCount.incrementAndGet();
+	}
+
+	private static byte[] encode(ChangeSet changes) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		writeString(out, changes.getId());
+		out.writeInt(changes.getChanges().size());
+
+		for (Change curr : changes.getChanges()) {
+			out.writeByte(encode(curr.getType()));
+			writeString(out, curr.getKey());
+			writeString(out, curr.getNewValue());
+		}
+
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static byte encode(ChangeType type) {
+		switch (type) {
+		case ADD:
+			return ADD;
+		case MODIFY:
+			return MODIFY;
+		case DELETE:
+			return DELETE;
+		default:
+			throw new IllegalArgumentException("Unknown change type " + type);
+		}
+	}
+
+	private static ChangeType decode(byte code) throws IOException {
+		switch (code) {
+		case ADD:
+			return ChangeType.ADD;
+		case MODIFY:
+			return ChangeType.MODIFY;
+		case DELETE:
+			return ChangeType.DELETE;
+		default:
+			throw new IOException("Unknown change type " + code
+					+ " in the journal.");
+		}
+	}
+
+	private static void apply(byte[] payload,
+			Map<String, ? extends Configuration> configs) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+		String id = readString(in);
+		Configuration config = configs.get(id);
+
+		if (config == null) {
+			logger.warn("Ignoring journaled changes to unknown configuration "
+					+ id);
+			return;
+		}
+
+		int count = in.readInt();
+
+		for (int i = 0; i < count; i++) {
+			ChangeType type = decode(in.readByte());
+			String key = readString(in);
+			String value = readString(in);
+
+			if (type == ChangeType.DELETE) {
+				config.removeProperty(key);
+			} else {
+				config.setProperty(key, value);
+			}
+		}
+	}
+
+	private static int replay(File file,
+			Map<String, ? extends Configuration> configs) throws IOException {
+
+		if (!file.exists()) {
+			return 0;
+		}
+
+		int count = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+
+		try {
+			byte[] payload;
+
+			while ((payload = readRecord(in)) != null) {
+				apply(payload, configs);
+				count++;
+			}
+		} finally {
+			in.close();
+		}
+
+		logger.debug("Replayed {} record(s) from {}.", count, file);
+		return count;
+	}
+
+	/**
+	 * Opens a journal for appending, truncating it after its last complete
+	 * record.
+	 */
+	private static FileChannel open(File file) throws IOException {
+		long valid = 0;
+
+		if (file.exists()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+
+			try {
+				byte[] payload;
+
+				while ((payload = readRecord(in)) != null) {
+					valid += 8 + payload.length;
+				}
+			} finally {
+				in.close();
+			}
+		}
+
+		FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+
+		if (channel.size() > valid) {
+			logger.warn("Discarding " + (channel.size() - valid)
+					+ " byte(s) of incomplete records from " + file);
+			channel.truncate(valid);
+		}
+
+		channel.position(valid);
+		return channel;
+	}
+
+	/**
+	 * @return The payload of the next record, or null at the end of the
+	 *         journal or at a record that was not completely written.
+	 */
+	private static byte[] readRecord(DataInputStream in) throws IOException {
+
+		try {
+			int length = in.readInt();
+			int checksum = in.readInt();
+
+			if (length < 0 || length > MAX_RECORD_SIZE) {
+				return null;
+			}
+
+			byte[] payload = new byte[length];
+			in.readFully(payload);
+
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+
+			return (int) crc.getValue() == checksum ? payload : null;
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	private static void move(File source, File target) throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value)
+			throws IOException {
+
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+
+		if (length < 0) {
+			return null;
+		}
+
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
@@ -0,0 +1,247 @@
+package lib.config.web.persist;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lib.config.base.configuration.ConfigurationException;
+import lib.config.web.container.ChangeSet;
+import lib.config.web.container.Command;
+import lib.config.web.container.ContainerListenerAdapter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persists configurations in the background, coalescing changes so that the
+ * settings file is written once rather than once per changed key.
+ * 
+ * Changes mark their configuration as dirty. Dirty configurations are written
+ * as soon as the request that changed them has completed, or once the write
+ * window has elapsed for changes that were not made by a request. Pending
+ * changes are written when the server is stopped, and when the listener is
+ * closed, which {@link lib.config.web.ConfigurationServer#close()} does for
+ * every listener that is {@link Closeable}.
+ * 
+ * <pre>
+ * server.addListener(new WriteBehindListener(1, TimeUnit.SECONDS) {
+ * 
+ * 	&#064;Override
+ * 	protected void write(Set&lt;String&gt; ids) throws ConfigurationException {
+ * 		persister.write(list);
+ * 	}
+ * });
+ * </pre>
+ * 
+ * @author Benjamin Leov
+ *
+ */
+public abstract class WriteBehindListener extends ContainerListenerAdapter
+		implements Closeable, Flushable {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(WriteBehindListener.class);
+
+	private final long window;
+	private final TimeUnit unit;
+
+	private final Set<String> dirty;
+	private final AtomicBoolean scheduled;
+	private final ScheduledExecutorService executor;
+	private final Object flushLock = new Object();
+
+	private final AtomicLong flushCount = new AtomicLong();
+	private final AtomicLong failureCount = new AtomicLong();
+	private final AtomicLong totalLatency = new AtomicLong();
+	private volatile long lastLatency;
+	private volatile long maxLatency;
+
+	/**
+	 * @param window
+	 *            Longest time a change waits before it is written.
+	 * @param unit
+	 *            Unit of the window.
+	 */
+	public WriteBehindListener(long window, TimeUnit unit) {
+		this.window = window;
+		this.unit = unit;
+		this.dirty = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		this.scheduled = new AtomicBoolean();
+
+		this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "config-write-behind");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Writes the configurations to their persistent store. Only called from
+	 * one thread at a time.
+	 * 
+	 * @param ids
+	 *            Ids of the configurations that have changed since the last
+	 *            successful write.
+	 */
+	protected abstract void write(Set<String> ids)
+			throws ConfigurationException;
+
+	/**
+	 * Called when a write fails. The configurations remain dirty, and the
+	 * write is attempted again after the write window.
+	 */
+	protected void onWriteFailed(Set<String> ids, Exception e) {
+		logger.error(
+				"There was a problem trying to write to the settings file.", e);
+	}
+
+	@Override
+	public void onChangeSet(ChangeSet changes) {
+		markDirty(changes.getId());
+	}
+
+	@Override
+	public void onCommand(Command command) {
+
+		// the request has applied all of its changes
+		if (command == Command.ADD || command == Command.UPDATE
+				|| command == Command.DELETE) {
+			schedule(0);
+		}
+	}
+
+	/**
+	 * Writes any dirty configurations now, on the calling thread.
+	 */
+	public void flush() {
+
+		synchronized (flushLock) {
+
+			// changes from here on need a new write
+			scheduled.set(false);
+
+			Set<String> ids = new HashSet<String>(dirty);
+
+			if (ids.isEmpty()) {
+				return;
+			}
+
+			dirty.removeAll(ids);
+
+			long start = System.nanoTime();
+
+			try {
+				write(ids);
+
+				long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+						- start);
+
+				flushCount.incrementAndGet();
+				totalLatency.addAndGet(latency);
+				lastLatency = latency;
+				maxLatency = Math.max(maxLatency, latency);
+
+				logger.debug("Wrote {} configuration(s) in {}ms.", ids.size(),
+						latency);
+			} catch (Exception e) {
+				failureCount.incrementAndGet();
+				dirty.addAll(ids);
+				onWriteFailed(ids, e);
+			}
+		}
+
+		if (!dirty.isEmpty()) {
+			schedule(window);
+		}
+	}
+
+	/**
+	 * Writes any dirty configurations and stops the background thread.
+	 */
+	@Override
+	public void close() {
+		executor.shutdownNow();
+		flush();
+	}
+
+	/**
+	 * @return Number of ids waiting to be written.
+	 */
+	public int getDirtyCount() {
+		return dirty.size();
+	}
+
+	/**
+	 * @return Number of successful writes.
+	 */
+	public long getFlushCount() {
+		return flushCount.get();
+	}
+
+	/**
+	 * @return Number of writes that failed.
+	 */
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+
+	/**
+	 * @return Time taken by the last successful write, in milliseconds.
+	 */
+	public long getLastFlushLatency() {
+		return lastLatency;
+	}
+
+	/**
+	 * @return Longest time taken by a successful write, in milliseconds.
+	 */
+	public long getMaxFlushLatency() {
+		return maxLatency;
+	}
+
+	/**
+	 * @return Average time taken by a successful write, in milliseconds.
+	 */
+	public double getAverageFlushLatency() {
+		long count = flushCount.get();
+		return count == 0 ? 0 : (double) totalLatency.get() / count;
+	}
+
+	private void markDirty(String id) {
+		dirty.add(id);
+		schedule(window);
+	}
+
+	private void schedule(long delay) {
+
+		if (delay == 0 || scheduled.compareAndSet(false, true)) {
+
+			try {
+				executor.schedule(new Runnable() {
+
+					@Override
+					public void run() {
+						flush();
+					}
+				}, delay, unit);
+			} catch (RejectedExecutionException e) {
+				// closed, which writes any pending changes itself
+			}
+		}
+	}
+}
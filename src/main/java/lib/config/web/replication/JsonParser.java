@@ -0,0 +1,273 @@
+package lib.config.web.replication;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal reader for the JSON documents peers exchange, without pulling in a
+ * JSON library. Objects are read as maps, arrays as lists, and numbers as
+ * longs or doubles.
+ *
+ * @author Benjamin Leov
+ *
+ */
+final class JsonParser {
+
+	/**
+	 * Deepest nesting of objects and arrays read, so that a hostile document
+	 * cannot exhaust the stack.
+	 */
+	static final int MAX_DEPTH = 32;
+
+	private final String json;
+	private int pos;
+	private int depth;
+
+	private JsonParser(String json) {
+		this.json = json;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             If the document is not valid JSON.
+	 */
+	static Object parse(String json) {
+
+		if (json == null) {
+			throw new IllegalArgumentException("No document.");
+		}
+
+		JsonParser parser = new JsonParser(json);
+		Object result = parser.readValue();
+
+		parser.skipWhitespace();
+
+		if (parser.pos != json.length()) {
+			throw parser.error("Unexpected content");
+		}
+
+		return result;
+	}
+
+	private Object readValue() {
+		skipWhitespace();
+
+		if (pos >= json.length()) {
+			throw error("Unexpected end of document");
+		}
+
+		char c = json.charAt(pos);
+
+		switch (c) {
+		case '{':
+			enter();
+			Map<String, Object> object = readObject();
+			depth--;
+			return object;
+		case '[':
+			enter();
+			List<Object> array = readArray();
+			depth--;
+			return array;
+		case '"':
+			return readString();
+		case 't':
+			expect("true");
+			return Boolean.TRUE;
+		case 'f':
+			expect("false");
+			return Boolean.FALSE;
+		case 'n':
+			expect("null");
+			return null;
+		default:
+			return readNumber();
+		}
+	}
+
+	private Map<String, Object> readObject() {
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		pos++;
+		skipWhitespace();
+
+		if (peek() == '}') {
+			pos++;
+			return result;
+		}
+
+		while (true) {
+			skipWhitespace();
+
+			if (peek() != '"') {
+				throw error("Expected a name");
+			}
+
+			String name = readString();
+			skipWhitespace();
+
+			if (peek() != ':') {
+				throw error("Expected ':'");
+			}
+
+			pos++;
+			result.put(name, readValue());
+			skipWhitespace();
+
+			char c = next();
+
+			if (c == '}') {
+				return result;
+			} else if (c != ',') {
+				throw error("Expected ',' or '}'");
+			}
+		}
+	}
+
+	private List<Object> readArray() {
+		List<Object> result = new ArrayList<Object>();
+		pos++;
+		skipWhitespace();
+
+		if (peek() == ']') {
+			pos++;
+			return result;
+		}
+
+		while (true) {
+			result.add(readValue());
+			skipWhitespace();
+
+			char c = next();
+
+			if (c == ']') {
+				return result;
+			} else if (c != ',') {
+				throw error("Expected ',' or ']'");
+			}
+		}
+	}
+
+	private String readString() {
+		StringBuilder result = new StringBuilder();
+		pos++;
+
+		while (true) {
+			char c = next();
+
+			if (c == '"') {
+				return result.toString();
+			}
+
+			if (c != '\\') {
+				result.append(c);
+				continue;
+			}
+
+			c = next();
+
+			switch (c) {
+			case 'b':
+				result.append('\b');
+				break;
+			case 'f':
+				result.append('\f');
+				break;
+			case 'n':
+				result.append('\n');
+				break;
+			case 'r':
+				result.append('\r');
+				break;
+			case 't':
+				result.append('\t');
+				break;
+			case 'u':
+				if (pos + 4 > json.length()) {
+					throw error("Unexpected end of document");
+				}
+
+				try {
+					result.append((char) Integer.parseInt(
+							json.substring(pos, pos + 4), 16));
+				} catch (NumberFormatException e) {
+					throw error("Invalid escape");
+				}
+
+				pos += 4;
+				break;
+			default:
+				// \" \\ and \/
+				result.append(c);
+				break;
+			}
+		}
+	}
+
+	private Number readNumber() {
+		int start = pos;
+
+		while (pos < json.length()
+				&& "+-0123456789.eE".indexOf(json.charAt(pos)) >= 0) {
+			pos++;
+		}
+
+		String number = json.substring(start, pos);
+
+		try {
+			if (number.indexOf('.') >= 0 || number.indexOf('e') >= 0
+					|| number.indexOf('E') >= 0) {
+				return Double.valueOf(number);
+			}
+
+			return Long.valueOf(number);
+		} catch (NumberFormatException e) {
+			pos = start;
+			throw error("Unexpected character");
+		}
+	}
+
+	private void enter() {
+
+		if (++depth > MAX_DEPTH) {
+			throw error("Nested more than " + MAX_DEPTH + " deep");
+		}
+	}
+
+	private void expect(String literal) {
+
+		if (!json.startsWith(literal, pos)) {
+			throw error("Unexpected character");
+		}
+
+		pos += literal.length();
+	}
+
+	private void skipWhitespace() {
+		while (pos < json.length()
+				&& Character.isWhitespace(json.charAt(pos))) {
+			pos++;
+		}
+	}
+
+	private char peek() {
+
+		if (pos >= json.length()) {
+			throw error("Unexpected end of document");
+		}
+
+		return json.charAt(pos);
+	}
+
+	private char next() {
+		char c = peek();
+		pos++;
+		return c;
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at position " + pos
+				+ ".");
+	}
+}
@@ -0,0 +1,306 @@
+package lib.config.web.replication;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lib.config.web.container.ConfigurationContainer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Another server that changes are pushed to. Each peer has its own queue and
+ * thread, so a slow or unreachable peer does not hold up the others.
+ *
+ * When the peer is started, it first reads a snapshot from the peer and
+ * pushes one to it, so that servers catch up with changes made while they
+ * were apart. If the peer cannot be reached for long enough that its queue
+ * fills, the queued changes are dropped, and a snapshot is pushed instead
+ * once it can be reached again.
+ *
+ * @author Benjamin Leov
+ *
+ */
+final class Peer {
+
+	private static final Logger logger = LoggerFactory.getLogger(Peer.class);
+
+	private static final String CHARSET = "UTF-8";
+
+	private static final int TIMEOUT_MILLIS = 5000;
+
+	private static final long STOP_TIMEOUT_MILLIS = 5000;
+
+	private final Replicator replicator;
+	private final URL url;
+	private final URL endpoint;
+	private final int batchSize;
+
+	private final BlockingQueue<StampedValue> queue;
+
+	/**
+	 * Set when queued changes have been dropped, so that a snapshot must be
+	 * pushed.
+	 */
+	private volatile boolean resync;
+
+	/**
+	 * Set when started, so that changes made on the peer while apart are
+	 * read.
+	 */
+	private volatile boolean pull;
+
+	private volatile boolean running;
+	private Thread worker;
+
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong snapshots = new AtomicLong();
+
+	Peer(Replicator replicator, URL url, int batchSize, int capacity) {
+		this.replicator = replicator;
+		this.url = url;
+		this.batchSize = batchSize;
+		this.queue = new ArrayBlockingQueue<StampedValue>(capacity);
+
+		try {
+			this.endpoint = new URL(url,
+					ConfigurationContainer.REPLICATION_PATH);
+		} catch (MalformedURLException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	synchronized void start() {
+
+		if (running) {
+			return;
+		}
+
+		running = true;
+		pull = true;
+		resync = true;
+
+		worker = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				replicate();
+			}
+		}, "config-replication-" + url.getHost() + ":" + url.getPort());
+
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	synchronized void stop() {
+
+		if (!running) {
+			return;
+		}
+
+		running = false;
+		worker.interrupt();
+
+		try {
+			worker.join(STOP_TIMEOUT_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		worker = null;
+	}
+
+	/**
+	 * Queues a change to be pushed. Never blocks.
+	 */
+	void offer(StampedValue value) {
+
+		if (!queue.offer(value)) {
+			// the snapshot will include everything queued
+			resync = true;
+			queue.clear();
+		}
+	}
+
+	URL getUrl() {
+		return url;
+	}
+
+	long getSentCount() {
+		return sent.get();
+	}
+
+	long getFailureCount() {
+		return failures.get();
+	}
+
+	long getSnapshotCount() {
+		return snapshots.get();
+	}
+
+	int getQueueDepth() {
+		return queue.size();
+	}
+
+	private void replicate() {
+
+		List<StampedValue> batch = new ArrayList<StampedValue>(batchSize);
+		long backoff = replicator.getInitialBackoff();
+
+		while (running) {
+			try {
+				if (pull) {
+					replicator.receive(get());
+					pull = false;
+					snapshots.incrementAndGet();
+				}
+
+				if (resync) {
+					resync = false;
+					queue.clear();
+					batch.clear();
+
+					List<StampedValue> snapshot = replicator.getWrites();
+					post(Replicator.encode(replicator.getNodeId(), snapshot,
+							true));
+
+					sent.addAndGet(snapshot.size());
+					snapshots.incrementAndGet();
+				}
+
+				if (batch.isEmpty()) {
+					StampedValue first = queue.poll(100,
+							TimeUnit.MILLISECONDS);
+
+					if (first == null) {
+						continue;
+					}
+
+					batch.add(first);
+					queue.drainTo(batch, batchSize - 1);
+				}
+
+				post(Replicator.encode(replicator.getNodeId(), batch, false));
+
+				sent.addAndGet(batch.size());
+				batch.clear();
+				backoff = replicator.getInitialBackoff();
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				failures.incrementAndGet();
+				logger.warn("Exception occured replicating to " + url
+						+ "; retrying in "
+						+ TimeUnit.NANOSECONDS.toMillis(backoff) + "ms.", e);
+
+				// a snapshot that was not pushed must be pushed again
+				if (batch.isEmpty() && !pull) {
+					resync = true;
+				}
+
+				try {
+					TimeUnit.NANOSECONDS.sleep(backoff);
+				} catch (InterruptedException e1) {
+					return;
+				}
+
+				backoff = Math.min(backoff * 2, replicator.getMaxBackoff());
+			} catch (IllegalArgumentException e) {
+				// a peer that sends an invalid snapshot is not retried
+				failures.incrementAndGet();
+				pull = false;
+				logger.error("Exception occured reading snapshot from " + url,
+						e);
+			}
+		}
+	}
+
+	private String get() throws IOException {
+		return read(open());
+	}
+
+	private void post(String json) throws IOException {
+
+		byte[] body = json.getBytes(CHARSET);
+		HttpURLConnection connection = open();
+
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setFixedLengthStreamingMode(body.length);
+		connection.setRequestProperty("Content-Type",
+				"application/json; charset=" + CHARSET);
+
+		OutputStream out = connection.getOutputStream();
+
+		try {
+			out.write(body);
+		} finally {
+			out.close();
+		}
+
+		read(connection);
+	}
+
+	private HttpURLConnection open() throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) endpoint
+				.openConnection();
+		connection.setConnectTimeout(TIMEOUT_MILLIS);
+		connection.setReadTimeout(TIMEOUT_MILLIS);
+		return connection;
+	}
+
+	/**
+	 * Reads the response to the end, without disconnecting, so that the
+	 * connection is kept alive for the next request.
+	 *
+	 * @return The response body.
+	 * @throws IOException
+	 *             If the response status is not 2xx.
+	 */
+	private static String read(HttpURLConnection connection)
+			throws IOException {
+
+		int code = connection.getResponseCode();
+
+		if (code < 200 || code >= 300) {
+			InputStream error = connection.getErrorStream();
+
+			if (error != null) {
+				drain(error);
+			}
+
+			throw new IOException("Peer responded with status " + code + ".");
+		}
+
+		return drain(connection.getInputStream());
+	}
+
+	private static String drain(InputStream in) throws IOException {
+
+		try {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+
+			while ((read = in.read(buffer)) != -1) {
+				body.write(buffer, 0, read);
+			}
+
+			return body.toString(CHARSET);
+		} finally {
+			in.close();
+		}
+	}
+}
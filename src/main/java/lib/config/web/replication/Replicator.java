@@ -0,0 +1,604 @@
+package lib.config.web.replication;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lib.config.web.container.Change;
+import lib.config.web.container.ChangeSet;
+import lib.config.web.container.ConfigurationContainer;
+import lib.config.web.container.ConfigurationSnapshot;
+import lib.config.web.container.ContainerListenerAdapter;
+import lib.config.web.container.Json;
+import lib.config.web.container.Merge;
+import lib.config.web.container.Transaction;
+import lib.config.web.metrics.LatencyHistogram;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the configurations of several servers in step. Every change made on
+ * this server is pushed to each peer, and changes pushed by peers are applied
+ * here.
+ *
+ * Each write to a key is stamped with the time it was made, from a clock that
+ * never runs behind any stamp this server has seen, and the id of the server
+ * it was made on. A server applies a write only if its stamp is later than
+ * that of the last write to the key, so servers that have seen the same
+ * writes hold the same values, whatever order the writes arrived in. A key
+ * written on two servers at once ends up with whichever write was stamped
+ * later (last writer wins).
+ *
+ * Only changes made through the container are replicated, and only to the
+ * servers listed as peers: changes applied from a peer are not passed on, so
+ * every server should list every other server.
+ *
+ * Deleted keys are remembered for a day, so that an older write to them
+ * arriving later is not applied. After that they are forgotten, so that
+ * repeated deletes do not grow every snapshot without bound; a server that
+ * has been apart from its peers for longer may bring deleted keys back.
+ *
+ * @author Benjamin Leov
+ *
+ */
+public class Replicator extends ContainerListenerAdapter {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(Replicator.class);
+
+	/**
+	 * Origin of transactions applying changes from peers.
+	 */
+	public static final String ORIGIN = "replication";
+
+	public static final int DEFAULT_BATCH_SIZE = 500;
+	public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+	private static final long DEFAULT_INITIAL_BACKOFF = 100;
+	private static final long DEFAULT_MAX_BACKOFF = 10000;
+
+	private static final long DEFAULT_DELETE_RETENTION = TimeUnit.DAYS
+			.toMillis(1);
+
+	/**
+	 * Longest time between looking for deletes to forget.
+	 */
+	private static final long PRUNE_INTERVAL = 60000;
+
+	private final String nodeId;
+
+	private final List<Peer> peers;
+
+	/**
+	 * Last write to each key written since this replicator was created, by
+	 * configuration id. Deleted keys are kept until the delete retention has
+	 * passed, so that an older write cannot bring them back. Only changed
+	 * while the configuration's write lock is held, except that expired
+	 * deletes are removed only if they are still the last write.
+	 */
+	private final ConcurrentMap<String, ConcurrentMap<String, StampedValue>> writes;
+
+	/**
+	 * Hybrid clock: the current time, unless a later stamp has been seen.
+	 */
+	private final AtomicLong clock = new AtomicLong();
+
+	/**
+	 * Time after which expired deletes are next looked for.
+	 */
+	private final AtomicLong nextPrune = new AtomicLong();
+
+	private volatile ConfigurationContainer container;
+
+	private volatile int batchSize = DEFAULT_BATCH_SIZE;
+	private volatile int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+	private volatile long initialBackoff = TimeUnit.MILLISECONDS
+			.toNanos(DEFAULT_INITIAL_BACKOFF);
+	private volatile long maxBackoff = TimeUnit.MILLISECONDS
+			.toNanos(DEFAULT_MAX_BACKOFF);
+	private volatile long deleteRetention = DEFAULT_DELETE_RETENTION;
+
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong applied = new AtomicLong();
+	private final AtomicLong superseded = new AtomicLong();
+	private final LatencyHistogram lag = new LatencyHistogram();
+
+	/**
+	 * Replicates as a server with a random id.
+	 */
+	public Replicator() {
+		this(UUID.randomUUID().toString());
+	}
+
+	/**
+	 * @param nodeId
+	 *            Id of this server, unique among its peers.
+	 */
+	public Replicator(String nodeId) {
+		this.nodeId = nodeId;
+		this.peers = new CopyOnWriteArrayList<Peer>();
+		this.writes = new ConcurrentHashMap<String, ConcurrentMap<String, StampedValue>>();
+	}
+
+	/**
+	 * Adds a server to push changes to. If replicating, changes are pushed to
+	 * it from now on.
+	 *
+	 * @param url
+	 *            Address of the peer's web interface, such as
+	 *            <code>http://host:8080/</code>.
+	 */
+	public synchronized void addPeer(URL url) {
+		Peer peer = new Peer(this, url, batchSize, queueCapacity);
+		peers.add(peer);
+
+		if (container != null) {
+			peer.start();
+		}
+	}
+
+	/**
+	 * Starts replicating the configurations of a container. Changes made on
+	 * peers while apart from this server are read from them, and changes made
+	 * here are pushed to them.
+	 */
+	public synchronized void start(ConfigurationContainer container) {
+		this.container = container;
+
+		for (Peer curr : peers) {
+			curr.start();
+		}
+	}
+
+	/**
+	 * Stops pushing changes. Those not yet pushed are pushed once started
+	 * again.
+	 */
+	public synchronized void stop() {
+
+		for (Peer curr : peers) {
+			curr.stop();
+		}
+
+		this.container = null;
+	}
+
+	/**
+	 * Sets how many changes are pushed to a peer in one request, and how many
+	 * may be queued for a peer before they are dropped in favour of a
+	 * snapshot. Applies to peers added afterwards.
+	 */
+	public void setQueue(int batchSize, int capacity) {
+
+		if (batchSize < 1 || capacity < 1) {
+			throw new IllegalArgumentException(
+					"Batch size and capacity must be at least one.");
+		}
+
+		this.batchSize = batchSize;
+		this.queueCapacity = capacity;
+	}
+
+	/**
+	 * Sets how long to wait before retrying a peer that could not be reached.
+	 * The wait doubles after each failure, up to the maximum.
+	 */
+	public void setRetryBackoff(long initial, long max, TimeUnit unit) {
+		this.initialBackoff = unit.toNanos(initial);
+		this.maxBackoff = unit.toNanos(max);
+	}
+
+	/**
+	 * Sets how long a deleted key is remembered. Every server should remember
+	 * deletes for longer than its peers are expected to be apart.
+	 */
+	public void setDeleteRetention(long time, TimeUnit unit) {
+		this.deleteRetention = unit.toMillis(time);
+	}
+
+	@Override
+	public void onChangeSet(ChangeSet changes) {
+
+		// applied from a peer, and already stamped
+		if (ORIGIN.equals(changes.getOrigin()) || container == null) {
+			return;
+		}
+
+		ConcurrentMap<String, StampedValue> known = writesFor(changes.getId());
+
+		for (Change curr : changes.getChanges()) {
+			StampedValue write = new StampedValue(changes.getId(),
+					curr.getKey(), curr.getNewValue(), tick(), nodeId);
+
+			known.put(write.getKey(), write);
+
+			for (Peer peer : peers) {
+				peer.offer(write);
+			}
+		}
+
+		pruneIfDue();
+	}
+
+	/**
+	 * Applies changes pushed by a peer. Each is applied only if it was
+	 * written later than the last write to its key.
+	 *
+	 * @param json
+	 *            The document the peer pushed.
+	 * @throws IllegalArgumentException
+	 *             If the document cannot be read.
+	 */
+	public void receive(String json) {
+
+		ConfigurationContainer curr = container;
+
+		if (curr == null) {
+			throw new IllegalStateException("Not replicating.");
+		}
+
+		Object document = JsonParser.parse(json);
+
+		if (!(document instanceof Map)) {
+			throw new IllegalArgumentException("Expected an object.");
+		}
+
+		Map<?, ?> fields = (Map<?, ?>) document;
+		boolean snapshot = Boolean.TRUE.equals(fields.get("snapshot"));
+		Object list = fields.get("writes");
+
+		if (!(list instanceof List)) {
+			throw new IllegalArgumentException("Expected a list of writes.");
+		}
+
+		// applied a configuration at a time, in the order they were written
+		Map<String, List<StampedValue>> byId = new LinkedHashMap<String, List<StampedValue>>();
+
+		for (Object item : (List<?>) list) {
+			StampedValue write = decode(item);
+			List<StampedValue> group = byId.get(write.getId());
+
+			if (group == null) {
+				group = new ArrayList<StampedValue>();
+				byId.put(write.getId(), group);
+			}
+
+			group.add(write);
+		}
+
+		for (Map.Entry<String, List<StampedValue>> entry : byId.entrySet()) {
+			merge(curr, entry.getKey(), entry.getValue(), snapshot);
+		}
+
+		pruneIfDue();
+	}
+
+	/**
+	 * @return Every write this server knows of, as pushed to a peer catching
+	 *         up.
+	 */
+	public String snapshot() {
+		return encode(nodeId, getWrites(), true);
+	}
+
+	private void merge(ConfigurationContainer container, final String id,
+			final List<StampedValue> incoming, final boolean snapshot) {
+
+		received.addAndGet(incoming.size());
+
+		for (StampedValue curr : incoming) {
+			observe(curr.getTime());
+		}
+
+		try {
+			container.commit(id, new Merge() {
+
+				@Override
+				public Transaction merge(ConfigurationSnapshot current) {
+					Transaction transaction = new Transaction().from(ORIGIN);
+					ConcurrentMap<String, StampedValue> known = writesFor(id);
+					long now = System.currentTimeMillis();
+
+					for (StampedValue curr : incoming) {
+						StampedValue last = known.get(curr.getKey());
+
+						if (last != null && !curr.isNewerThan(last)) {
+							superseded.incrementAndGet();
+							continue;
+						}
+
+						known.put(curr.getKey(), curr);
+
+						if (curr.getValue() == null) {
+							transaction.remove(curr.getKey());
+						} else {
+							transaction.set(curr.getKey(), curr.getValue());
+						}
+
+						applied.incrementAndGet();
+
+						// snapshots hold writes of any age
+						if (!snapshot) {
+							lag.record(TimeUnit.MILLISECONDS.toNanos(Math
+									.max(0, now - curr.getTime())));
+						}
+					}
+
+					return transaction;
+				}
+			});
+		} catch (IllegalArgumentException e) {
+			superseded.addAndGet(incoming.size());
+			logger.warn("Ignored " + incoming.size()
+					+ " replicated change(s) to " + id
+					+ ", which is not served here.");
+		}
+	}
+
+	private ConcurrentMap<String, StampedValue> writesFor(String id) {
+		ConcurrentMap<String, StampedValue> result = writes.get(id);
+
+		if (result == null) {
+			result = new ConcurrentHashMap<String, StampedValue>();
+			ConcurrentMap<String, StampedValue> existing = writes.putIfAbsent(
+					id, result);
+
+			if (existing != null) {
+				result = existing;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Forgets deletes older than the retention, at most once per interval.
+	 */
+	private void pruneIfDue() {
+		long now = System.currentTimeMillis();
+		long next = nextPrune.get();
+
+		if (now < next
+				|| !nextPrune.compareAndSet(next,
+						now + Math.min(deleteRetention, PRUNE_INTERVAL))) {
+			return;
+		}
+
+		long oldest = now - deleteRetention;
+
+		for (ConcurrentMap<String, StampedValue> known : writes.values()) {
+			for (StampedValue curr : known.values()) {
+
+				// unless written again since
+				if (curr.getValue() == null && curr.getTime() < oldest) {
+					known.remove(curr.getKey(), curr);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return A stamp later than any issued or seen so far.
+	 */
+	private long tick() {
+
+		while (true) {
+			long curr = clock.get();
+			long next = Math.max(curr + 1, System.currentTimeMillis());
+
+			if (clock.compareAndSet(curr, next)) {
+				return next;
+			}
+		}
+	}
+
+	private void observe(long time) {
+
+		while (true) {
+			long curr = clock.get();
+
+			if (curr >= time || clock.compareAndSet(curr, time)) {
+				return;
+			}
+		}
+	}
+
+	List<StampedValue> getWrites() {
+		List<StampedValue> result = new ArrayList<StampedValue>();
+
+		for (ConcurrentMap<String, StampedValue> curr : writes.values()) {
+			result.addAll(curr.values());
+		}
+
+		return result;
+	}
+
+	static String encode(String nodeId, Collection<StampedValue> values,
+			boolean snapshot) {
+
+		StringBuilder json = new StringBuilder("{");
+		Json.appendName(json, "node");
+		Json.appendString(json, nodeId);
+		json.append(',');
+		Json.appendName(json, "snapshot");
+		json.append(snapshot);
+		json.append(',');
+		Json.appendName(json, "writes");
+		json.append('[');
+
+		boolean first = true;
+
+		for (StampedValue curr : values) {
+			if (!first) {
+				json.append(',');
+			}
+			first = false;
+
+			json.append('{');
+			Json.appendName(json, "config");
+			Json.appendString(json, curr.getId());
+			json.append(',');
+			Json.appendName(json, "key");
+			Json.appendString(json, curr.getKey());
+			json.append(',');
+			Json.appendName(json, "value");
+			Json.appendString(json, curr.getValue());
+			json.append(',');
+			Json.appendName(json, "time");
+			json.append(curr.getTime());
+			json.append(',');
+			Json.appendName(json, "node");
+			Json.appendString(json, curr.getNode());
+			json.append('}');
+		}
+
+		return json.append("]}").toString();
+	}
+
+	private static StampedValue decode(Object item) {
+
+		if (!(item instanceof Map)) {
+			throw new IllegalArgumentException("Expected a write.");
+		}
+
+		Map<?, ?> fields = (Map<?, ?>) item;
+		Object id = fields.get("config");
+		Object key = fields.get("key");
+		Object value = fields.get("value");
+		Object time = fields.get("time");
+		Object node = fields.get("node");
+
+		if (!(id instanceof String) || !(key instanceof String)
+				|| (value != null && !(value instanceof String))
+				|| !(time instanceof Long) || !(node instanceof String)) {
+			throw new IllegalArgumentException(
+					"A write needs a config, key, value, time and node.");
+		}
+
+		return new StampedValue((String) id, (String) key, (String) value,
+				(Long) time, (String) node);
+	}
+
+	/**
+	 * @return Id of this server, unique among its peers.
+	 */
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * @return Addresses of the peers.
+	 */
+	public List<URL> getPeers() {
+		List<URL> result = new ArrayList<URL>();
+
+		for (Peer curr : peers) {
+			result.add(curr.getUrl());
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return Number of changes peers have acknowledged, including those in
+	 *         snapshots.
+	 */
+	public long getSentCount() {
+		long result = 0;
+
+		for (Peer curr : peers) {
+			result += curr.getSentCount();
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return Number of requests to peers that failed.
+	 */
+	public long getFailureCount() {
+		long result = 0;
+
+		for (Peer curr : peers) {
+			result += curr.getFailureCount();
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return Number of snapshots read from or pushed to peers.
+	 */
+	public long getSnapshotCount() {
+		long result = 0;
+
+		for (Peer curr : peers) {
+			result += curr.getSnapshotCount();
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return Number of changes waiting to be pushed, over every peer.
+	 */
+	public int getQueueDepth() {
+		int result = 0;
+
+		for (Peer curr : peers) {
+			result += curr.getQueueDepth();
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return Number of changes received from peers.
+	 */
+	public long getReceivedCount() {
+		return received.get();
+	}
+
+	/**
+	 * @return Number of changes from peers that were applied here.
+	 */
+	public long getAppliedCount() {
+		return applied.get();
+	}
+
+	/**
+	 * @return Number of changes from peers that were not applied, because a
+	 *         later write to the key had already been seen, or the
+	 *         configuration is not served here.
+	 */
+	public long getSupersededCount() {
+		return superseded.get();
+	}
+
+	/**
+	 * @return Time from a change being made on a peer to it being applied
+	 *         here. Measured with each server's own clock, so only accurate
+	 *         to within the difference between the clocks.
+	 */
+	public LatencyHistogram getReplicationLag() {
+		return lag;
+	}
+
+	long getInitialBackoff() {
+		return initialBackoff;
+	}
+
+	long getMaxBackoff() {
+		return maxBackoff;
+	}
+}
@@ -0,0 +1,76 @@
+package lib.config.web.replication;
+
+/**
+ * The last value written to a key, stamped with when and where it was
+ * written. Of two writes to the same key, the one with the later stamp wins
+ * on every server, whatever order they arrive in.
+ *
+ * @author Benjamin Leov
+ *
+ */
+final class StampedValue {
+
+	private final String id;
+	private final String key;
+	private final String value;
+	private final long time;
+	private final String node;
+
+	/**
+	 * @param value
+	 *            The value, or null if the key was deleted.
+	 * @param time
+	 *            Hybrid clock time of the write, in milliseconds.
+	 * @param node
+	 *            Id of the server the write was made on, which breaks ties
+	 *            between writes made in the same millisecond.
+	 */
+	StampedValue(String id, String key, String value, long time, String node) {
+		this.id = id;
+		this.key = key;
+		this.value = value;
+		this.time = time;
+		this.node = node;
+	}
+
+	String getId() {
+		return id;
+	}
+
+	String getKey() {
+		return key;
+	}
+
+	/**
+	 * @return The value, or null if the key was deleted.
+	 */
+	String getValue() {
+		return value;
+	}
+
+	long getTime() {
+		return time;
+	}
+
+	String getNode() {
+		return node;
+	}
+
+	/**
+	 * @return True if this write wins over the other.
+	 */
+	boolean isNewerThan(StampedValue other) {
+
+		if (time != other.time) {
+			return time > other.time;
+		}
+
+		return node.compareTo(other.node) > 0;
+	}
+
+	@Override
+	public String toString() {
+		return "StampedValue [id=" + id + ", key=" + key + ", time=" + time
+				+ ", node=" + node + "]";
+	}
+}
@@ -0,0 +1,433 @@
+package lib.config.web.webhook;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lib.config.web.container.Change;
+import lib.config.web.container.ChangeEvent;
+import lib.config.web.container.ChangeSet;
+import lib.config.web.container.ContainerListenerAdapter;
+import lib.config.web.container.Json;
+import lib.config.web.metrics.LatencyHistogram;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Posts changes to a URL, so that services in other processes are told about
+ * them. Add one webhook per receiving service:
+ *
+ * <pre>
+ * server.addListener(new Webhook(new URL(&quot;http://service:9000/config-changed&quot;)));
+ * </pre>
+ *
+ * Changes are queued and sent on a thread of the webhook's own, so a slow
+ * receiver never delays the container or any other receiver. Changes made
+ * within the batch window are sent together, as a JSON document:
+ *
+ * <pre>
+ * {"events":[{"sequence":42,"config":"my_settings_here","type":"modify","key":"my_first_property","value":"two","version":7}]}
+ * </pre>
+ *
+ * A receiver acknowledges a batch by responding with any 2xx status. Other
+ * statuses and connection failures are retried, waiting twice as long after
+ * each failure, until the batch is delivered; a 4xx other than 408 or 429
+ * means the receiver will never accept the batch, so it is dropped. While a
+ * receiver is failing its queue fills; once full, the oldest changes are
+ * dropped. A receiver that sees a gap in the sequence numbers can fetch the
+ * missing changes from {@link lib.config.web.container.ConfigurationContainer#CHANGES_PATH}.
+ *
+ * @author Benjamin Leov
+ *
+ */
+public class Webhook extends ContainerListenerAdapter implements Closeable {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(Webhook.class);
+
+	private static final String CHARSET = "UTF-8";
+
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	public static final long DEFAULT_BATCH_WINDOW = 200;
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	private static final long DEFAULT_INITIAL_BACKOFF = 500;
+	private static final long DEFAULT_MAX_BACKOFF = 60000;
+
+	private static final int TIMEOUT_MILLIS = 5000;
+
+	/**
+	 * Longest time {@link #close()} waits for queued changes to be sent.
+	 */
+	private static final long CLOSE_TIMEOUT_SECONDS = 5;
+
+	private final URL url;
+	private final int batchSize;
+	private final long batchWindow;
+
+	private final BlockingQueue<Pending> queue;
+	private final Thread worker;
+
+	private volatile long initialBackoff = TimeUnit.MILLISECONDS
+			.toNanos(DEFAULT_INITIAL_BACKOFF);
+	private volatile long maxBackoff = TimeUnit.MILLISECONDS
+			.toNanos(DEFAULT_MAX_BACKOFF);
+
+	private volatile boolean closed;
+
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	/**
+	 * Sends batches of up to 100 changes, made within 200ms of each other,
+	 * queueing at most 10000.
+	 */
+	public Webhook(URL url) {
+		this(url, DEFAULT_BATCH_SIZE, DEFAULT_BATCH_WINDOW,
+				TimeUnit.MILLISECONDS, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param url
+	 *            Where to post the changes.
+	 * @param batchSize
+	 *            Most changes to send in one request.
+	 * @param batchWindow
+	 *            Longest time to wait for more changes once the first change
+	 *            of a batch is queued.
+	 * @param unit
+	 *            Unit of the batch window.
+	 * @param capacity
+	 *            Most changes to queue. Once full, the oldest are dropped.
+	 */
+	public Webhook(URL url, int batchSize, long batchWindow, TimeUnit unit,
+			int capacity) {
+
+		if (batchSize < 1 || capacity < 1) {
+			throw new IllegalArgumentException(
+					"Batch size and capacity must be at least one.");
+		}
+
+		this.url = url;
+		this.batchSize = batchSize;
+		this.batchWindow = unit.toNanos(batchWindow);
+		this.queue = new ArrayBlockingQueue<Pending>(capacity);
+
+		this.worker = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				deliver();
+			}
+		}, "config-webhook-" + url.getHost());
+
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Sets how long to wait before retrying a failed request. The wait
+	 * doubles after each failure, up to the maximum.
+	 */
+	public void setRetryBackoff(long initial, long max, TimeUnit unit) {
+		this.initialBackoff = unit.toNanos(initial);
+		this.maxBackoff = unit.toNanos(max);
+	}
+
+	@Override
+	public void onChangeSet(ChangeSet changes) {
+
+		if (closed) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		long version = changes.getVersion().getVersion();
+		long sequence = changes.getSequence();
+
+		for (Change curr : changes.getChanges()) {
+			ChangeEvent event = new ChangeEvent(sequence, changes.getId(),
+					curr.getType(), curr.getKey(), curr.getNewValue(), version);
+
+			// unnumbered changes stay unnumbered
+			if (sequence > 0) {
+				sequence++;
+			}
+
+			enqueue(new Pending(event, now));
+		}
+	}
+
+	/**
+	 * Sends the changes that are queued, waiting up to five seconds, and
+	 * stops the delivery thread. Failed requests are not retried once closed.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+
+		try {
+			worker.join(TimeUnit.SECONDS.toMillis(CLOSE_TIMEOUT_SECONDS));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		worker.interrupt();
+
+		if (!queue.isEmpty()) {
+			logger.warn("{} change(s) were not sent to {} before close.",
+					queue.size(), url);
+		}
+	}
+
+	/**
+	 * @return Where the changes are posted.
+	 */
+	public URL getUrl() {
+		return url;
+	}
+
+	/**
+	 * @return Number of changes the receiver has acknowledged.
+	 */
+	public long getDeliveredCount() {
+		return delivered.get();
+	}
+
+	/**
+	 * @return Number of requests the receiver has acknowledged.
+	 */
+	public long getBatchCount() {
+		return batches.get();
+	}
+
+	/**
+	 * @return Number of requests that failed.
+	 */
+	public long getFailureCount() {
+		return failures.get();
+	}
+
+	/**
+	 * @return Number of changes dropped, because the queue was full or the
+	 *         receiver rejected them.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return Number of changes waiting to be sent, not counting the batch
+	 *         being sent.
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return Time from each change being made to the receiver acknowledging
+	 *         it, including any retries.
+	 */
+	public LatencyHistogram getDeliveryLatency() {
+		return latency;
+	}
+
+	private void enqueue(Pending pending) {
+
+		// producers drop the oldest one at a time, so the newest are kept
+		synchronized (queue) {
+			while (!queue.offer(pending)) {
+				if (queue.poll() != null) {
+					dropped.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	private void deliver() {
+
+		List<Pending> batch = new ArrayList<Pending>(batchSize);
+
+		while (!closed || !queue.isEmpty()) {
+			try {
+				Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+
+				if (first == null) {
+					continue;
+				}
+
+				batch.add(first);
+
+				long deadline = first.queued + batchWindow;
+
+				while (batch.size() < batchSize) {
+					long remaining = deadline - System.nanoTime();
+					Pending next = remaining > 0 ? queue.poll(remaining,
+							TimeUnit.NANOSECONDS) : queue.poll();
+
+					if (next == null) {
+						break;
+					}
+
+					batch.add(next);
+				}
+
+				send(batch);
+				batch.clear();
+			} catch (InterruptedException e) {
+				dropped.addAndGet(batch.size());
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Sends a batch, retrying until it is acknowledged, rejected, or the
+	 * webhook is closed.
+	 */
+	private void send(List<Pending> batch) throws InterruptedException {
+
+		byte[] body = encode(batch);
+		long backoff = initialBackoff;
+
+		while (true) {
+			int code;
+
+			try {
+				code = post(body);
+			} catch (IOException e) {
+				code = -1;
+				logger.debug("Exception occured posting changes to " + url, e);
+			}
+
+			if (code >= 200 && code < 300) {
+				long now = System.nanoTime();
+
+				for (Pending curr : batch) {
+					latency.record(now - curr.queued);
+				}
+
+				delivered.addAndGet(batch.size());
+				batches.incrementAndGet();
+				return;
+			}
+
+			failures.incrementAndGet();
+
+			if (code >= 400 && code < 500 && code != 408 && code != 429) {
+				logger.error("{} rejected {} change(s) with status {}.",
+						new Object[] { url, batch.size(), code });
+				dropped.addAndGet(batch.size());
+				return;
+			}
+
+			if (closed) {
+				dropped.addAndGet(batch.size());
+				return;
+			}
+
+			logger.warn("Posting changes to {} failed with status {}; "
+					+ "retrying in {}ms.", new Object[] { url, code,
+					TimeUnit.NANOSECONDS.toMillis(backoff) });
+
+			TimeUnit.NANOSECONDS.sleep(backoff);
+			backoff = Math.min(backoff * 2, maxBackoff);
+		}
+	}
+
+	/**
+	 * @return The response status.
+	 */
+	private int post(byte[] body) throws IOException {
+
+		HttpURLConnection connection = (HttpURLConnection) url
+				.openConnection();
+
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setConnectTimeout(TIMEOUT_MILLIS);
+		connection.setReadTimeout(TIMEOUT_MILLIS);
+		connection.setFixedLengthStreamingMode(body.length);
+		connection.setRequestProperty("Content-Type",
+				"application/json; charset=" + CHARSET);
+
+		OutputStream out = connection.getOutputStream();
+
+		try {
+			out.write(body);
+		} finally {
+			out.close();
+		}
+
+		int code = connection.getResponseCode();
+
+		// read the response, without disconnecting, so that the connection
+		// is kept alive for the next batch
+		InputStream in = code < 400 ? connection.getInputStream() : connection
+				.getErrorStream();
+
+		if (in != null) {
+			try {
+				byte[] buffer = new byte[1024];
+
+				while (in.read(buffer) != -1) {
+					// discard
+				}
+			} finally {
+				in.close();
+			}
+		}
+
+		return code;
+	}
+
+	private static byte[] encode(List<Pending> batch) {
+
+		StringBuilder json = new StringBuilder("{");
+		Json.appendName(json, "events");
+		json.append('[');
+
+		for (int i = 0; i < batch.size(); i++) {
+			if (i > 0) {
+				json.append(',');
+			}
+
+			Json.appendEvent(json, batch.get(i).event);
+		}
+
+		json.append("]}");
+
+		try {
+			return json.toString().getBytes(CHARSET);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A change waiting to be sent.
+	 */
+	private static final class Pending {
+
+		private final ChangeEvent event;
+		private final long queued;
+
+		private Pending(ChangeEvent event, long queued) {
+			this.event = event;
+			this.queued = queued;
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package lib.config.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import lib.config.web.container.ConfigurationContainer;
+import lib.config.web.container.FakeHttp;
+import lib.config.web.container.FakeHttp.Exchange;
+import lib.config.web.container.Transaction;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+import lib.config.web.metrics.ServerMetrics;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that configurations are loaded on first access and evicted when
+ * over the limit or idle.
+ */
+public class ConfigurationRegistryTest {
+
+	private CountingProvider provider;
+
+	@Before
+	public void setUp() throws Exception {
+		provider = new CountingProvider(10);
+	}
+
+	@Test
+	public void testLoadsOnFirstAccess() {
+
+		ConfigurationRegistry registry = new ConfigurationRegistry(provider);
+
+		assertEquals(10, registry.getIds().size());
+		assertEquals("Config 3", registry.getDisplayName("config_3"));
+		assertEquals(0, provider.loaded.size());
+
+		DisplayableConfiguration config = registry.get("config_3");
+		assertNotNull(config);
+		assertSame(config, registry.get("config_3"));
+		assertEquals(1, registry.getLoadCount());
+
+		assertNull(registry.get("missing"));
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() {
+
+		ConfigurationRegistry registry = new ConfigurationRegistry(provider,
+				2, 0, TimeUnit.MILLISECONDS);
+
+		registry.get("config_0");
+		registry.get("config_1");
+		registry.get("config_0");
+		registry.get("config_2");
+
+		assertEquals(2, registry.getLoadedCount());
+		assertNull(registry.getIfLoaded("config_1"));
+		assertNotNull(registry.getIfLoaded("config_0"));
+		assertEquals(1, provider.unloaded.size());
+		assertEquals("config_1", provider.unloaded.get(0));
+	}
+
+	@Test
+	public void testEvictsIdle() throws InterruptedException {
+
+		ConfigurationRegistry registry = new ConfigurationRegistry(provider,
+				ConfigurationRegistry.UNLIMITED, 20, TimeUnit.MILLISECONDS);
+
+		registry.get("config_0");
+		Thread.sleep(50);
+		registry.get("config_1");
+
+		assertNull(registry.getIfLoaded("config_0"));
+		assertNotNull(registry.getIfLoaded("config_1"));
+	}
+
+	@Test
+	public void testPinnedIsNotEvicted() {
+
+		ConfigurationRegistry registry = new ConfigurationRegistry(provider,
+				1, 0, TimeUnit.MILLISECONDS);
+
+		registry.pin("config_0");
+		registry.get("config_0");
+		DisplayableConfiguration loaded = registry.get("config_1");
+
+		// neither the pinned nor the one just loaded is evicted
+		assertNotNull(registry.getIfLoaded("config_0"));
+		assertSame(loaded, registry.getIfLoaded("config_1"));
+		assertTrue(provider.unloaded.isEmpty());
+
+		registry.unpin("config_0");
+		registry.get("config_2");
+
+		assertNull(registry.getIfLoaded("config_0"));
+		assertNull(registry.getIfLoaded("config_1"));
+		assertEquals(Arrays.asList("config_0", "config_1"), provider.unloaded);
+	}
+
+	@Test
+	public void testLoadsInParallel() throws Exception {
+
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		final CountingProvider slow = new CountingProvider(10) {
+
+			@Override
+			public DisplayableConfiguration load(String id) {
+
+				if (id.equals("config_0")) {
+					started.countDown();
+
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+
+				synchronized (this) {
+					return super.load(id);
+				}
+			}
+		};
+
+		final ConfigurationRegistry registry = new ConfigurationRegistry(slow);
+		final DisplayableConfiguration[] results = new DisplayableConfiguration[2];
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for (int i = 0; i < results.length; i++) {
+			final int index = i;
+
+			Thread thread = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					results[index] = registry.get("config_0");
+				}
+			});
+
+			thread.start();
+			threads.add(thread);
+		}
+
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		// not held up by the load of another configuration
+		assertNotNull(registry.get("config_1"));
+
+		release.countDown();
+
+		for (Thread thread : threads) {
+			thread.join(5000);
+		}
+
+		assertNotNull(results[0]);
+		assertSame(results[0], results[1]);
+		assertEquals(2, registry.getLoadCount());
+	}
+
+	@Test
+	public void testIndexDoesNotLoad() {
+
+		ConfigurationRegistry registry = new ConfigurationRegistry(provider,
+				2, 0, TimeUnit.MILLISECONDS);
+		ConfigurationContainer container = new ConfigurationContainer(
+				registry, new ServerMetrics());
+
+		try {
+			Exchange index = get(container, new HashMap<String, String>());
+
+			assertTrue(index.getBodyAsString().contains("Config 9"));
+			assertEquals(0, registry.getLoadCount());
+
+			get(container, FakeHttp.params("config", "config_4"));
+			assertEquals(1, registry.getLoadCount());
+		} finally {
+			container.close();
+		}
+	}
+
+	@Test
+	public void testVersionSurvivesEviction() {
+
+		ConfigurationRegistry registry = new ConfigurationRegistry(provider,
+				1, 0, TimeUnit.MILLISECONDS);
+		ConfigurationContainer container = new ConfigurationContainer(
+				registry, new ServerMetrics());
+
+		try {
+			container.commit("config_0", new Transaction().set("a", "1"));
+			long before = container.getVersion("config_0").getVersion();
+
+			// evicts config_0
+			container.getSnapshot("config_1");
+			assertNull(registry.getIfLoaded("config_0"));
+
+			assertTrue(container.getVersion("config_0").getVersion() > before);
+		} finally {
+			container.close();
+		}
+	}
+
+	private Exchange get(ConfigurationContainer container,
+			Map<String, String> params) {
+		Exchange exchange = new Exchange();
+		container.handle(FakeHttp.request("GET", "/", params, null),
+				FakeHttp.response(exchange));
+		return exchange;
+	}
+
+	private static class CountingProvider implements ConfigurationProvider {
+
+		private final Set<String> ids = new LinkedHashSet<String>();
+		private final List<String> loaded = new ArrayList<String>();
+		private final List<String> unloaded = new ArrayList<String>();
+
+		CountingProvider(int count) {
+			for (int i = 0; i < count; i++) {
+				ids.add("config_" + i);
+			}
+		}
+
+		@Override
+		public Set<String> getIds() {
+			return ids;
+		}
+
+		@Override
+		public String getDisplayName(String id) {
+			return "Config " + id.substring(id.indexOf('_') + 1);
+		}
+
+		@Override
+		public DisplayableConfiguration load(String id) {
+
+			if (!ids.contains(id)) {
+				return null;
+			}
+
+			loaded.add(id);
+
+			DisplayableBasicConfiguration config = new DisplayableBasicConfiguration();
+			config.setId(id);
+			config.setProperty("loaded", String.valueOf(loaded.size()));
+			return config;
+		}
+
+		@Override
+		public void unload(String id, DisplayableConfiguration config) {
+			unloaded.add(id);
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package lib.config.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import lib.config.web.container.Transaction;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+import lib.config.web.persist.WriteBehindListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Starts and stops a server on a real socket, measuring how long it takes to
+ * start listening.
+ */
+public class ConfigurationServerLifecycleTest {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ConfigurationServerLifecycleTest.class);
+
+	/**
+	 * Generous, so that a slow build machine does not fail the test, but low
+	 * enough to notice a start that has started blocking.
+	 */
+	private static final long MAX_STARTUP_MILLIS = 2000;
+
+	private ConfigurationServer server;
+	private int port;
+
+	@Before
+	public void setUp() throws Exception {
+		Map<String, DisplayableConfiguration> configs = new HashMap<String, DisplayableConfiguration>();
+
+		DisplayableBasicConfiguration config = new DisplayableBasicConfiguration();
+		config.setId("settings");
+		config.setProperty("colour", "blue");
+		configs.put(config.getId(), config);
+
+		port = freePort();
+		server = new ConfigurationServer(port, configs);
+		server.setWorkerThreads(2);
+		server.setShutdownTimeout(1, TimeUnit.SECONDS);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.close();
+	}
+
+	@Test
+	public void testStartupTime() throws Exception {
+
+		long start = System.nanoTime();
+		Future<Void> stopped = server.start();
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+				- start);
+
+		logger.info("Server started in " + elapsed + "ms.");
+
+		assertTrue("Startup took " + elapsed + "ms", elapsed < MAX_STARTUP_MILLIS);
+		assertEquals(false, stopped.isDone());
+		assertEquals(200, get("/?config=settings"));
+	}
+
+	@Test
+	public void testStopReleasesPort() throws Exception {
+
+		Future<Void> stopped = server.start();
+		assertEquals(200, get("/"));
+
+		server.stop();
+		stopped.get(5, TimeUnit.SECONDS);
+
+		// would fail to bind if the socket were still open
+		ServerSocket socket = new ServerSocket();
+		try {
+			socket.bind(new InetSocketAddress(port));
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testExitCommandStops() throws Exception {
+
+		Future<Void> stopped = server.start();
+		assertEquals(200, get("/?config=settings&command=EXIT"));
+
+		stopped.get(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testRestart() throws Exception {
+
+		server.start();
+		server.stop();
+
+		server.start();
+		assertEquals(200, get("/"));
+	}
+
+	@Test
+	public void testListenersPersistAfterRestart() throws Exception {
+		final Set<String> written = Collections
+				.synchronizedSet(new HashSet<String>());
+
+		server.addListener(new WriteBehindListener(10, TimeUnit.MILLISECONDS) {
+
+			@Override
+			protected void write(Set<String> ids) {
+				written.addAll(ids);
+			}
+		});
+
+		server.start();
+		server.stop();
+
+		server.start();
+		server.getContainer().commit("settings",
+				new Transaction().set("colour", "red"));
+
+		// written by the listener's own thread, while still running
+		long deadline = System.currentTimeMillis() + 5000;
+
+		while (!written.contains("settings")
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertTrue(written.contains("settings"));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testClosedServerCannotStart() throws Exception {
+		server.close();
+		server.start();
+	}
+
+	private int get(String path) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(
+				"http://localhost:" + port + path).openConnection();
+		try {
+			return connection.getResponseCode();
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+}
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 import lib.config.base.configuration.Configuration;
 import lib.config.base.configuration.ConfigurationException;
@@ -36,7 +37,8 @@ public class INIPersistentConfigServerTest {
 
 	// TODO:
 	@Test
-	public void testStart() throws IOException, InterruptedException {
+	public void testStart() throws IOException, InterruptedException,
+			ExecutionException {
 
 		/*
 		 * The settings file the settings server will modify.
@@ -150,7 +152,9 @@ public class INIPersistentConfigServerTest {
 			
 			});
 
-			server.start();
+			// start returns once the server is listening, the future completes
+			// when it has stopped (through the exit command)
+			server.start().get();
 
 			logger.debug("Server finished.");
 		} catch (ConfigurationException e) {
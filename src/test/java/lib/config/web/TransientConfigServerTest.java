@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 import lib.config.base.configuration.Configuration;
 import lib.config.web.container.Command;
@@ -30,7 +31,8 @@ public class TransientConfigServerTest {
 	}
 
 	@Test
-	public void testStart() throws IOException, InterruptedException {
+	public void testStart() throws IOException, InterruptedException,
+			ExecutionException {
 
 		/*
 		 * 
@@ -135,7 +137,9 @@ public class TransientConfigServerTest {
 			}
 		});
 		
-		server.start();
+		// start returns once the server is listening, the future completes
+		// when it has stopped (through the exit command)
+		server.start().get();
 
 		logger.debug("Server finished.");
 	}
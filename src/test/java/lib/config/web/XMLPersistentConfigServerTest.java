@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 import lib.config.base.configuration.Configuration;
 import lib.config.base.configuration.ConfigurationException;
@@ -43,7 +44,8 @@ public class XMLPersistentConfigServerTest {
 	}
 
 	@Test
-	public void testStart() throws IOException, InterruptedException {
+	public void testStart() throws IOException, InterruptedException,
+			ExecutionException {
 
 		/*
 		 * The settings file the settings server will modify.
@@ -123,7 +125,9 @@ public class XMLPersistentConfigServerTest {
 
 			});
 
-			server.start();
+			// start returns once the server is listening, the future completes
+			// when it has stopped (through the exit command)
+			server.start().get();
 
 			logger.debug("Server finished.");
 		} catch (ConfigurationException e) {
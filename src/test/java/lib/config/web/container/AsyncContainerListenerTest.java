@@ -0,0 +1,276 @@
+package lib.config.web.container;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Flushable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import lib.config.base.configuration.Configuration;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks each backpressure policy and delivery order, and that flushing
+ * waits for queued notifications.
+ */
+public class AsyncContainerListenerTest {
+
+	private AsyncContainerListener listener;
+
+	@After
+	public void tearDown() throws Exception {
+		if (listener != null) {
+			listener.close();
+		}
+	}
+
+	@Test
+	public void testBlockWaitsForRoom() throws Exception {
+		Recorder recorder = new Recorder();
+		listener = new AsyncContainerListener(recorder,
+				DeliveryOrder.PER_CONFIGURATION, 1, 1,
+				BackpressurePolicy.BLOCK);
+
+		// the first is being delivered, and the second fills the queue
+		listener.onModifed(config("one"), "a");
+		assertTrue(recorder.started.await(5, TimeUnit.SECONDS));
+		listener.onModifed(config("one"), "b");
+
+		Thread blocked = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				listener.onModifed(config("one"), "c");
+			}
+		});
+		blocked.start();
+
+		Thread.sleep(100);
+		assertTrue(blocked.isAlive());
+
+		recorder.release.countDown();
+		blocked.join(5000);
+
+		listener.flush();
+		assertEquals(Arrays.asList("a", "b", "c"), recorder.keys("one"));
+		assertEquals(0, listener.getDroppedCount());
+		assertEquals(0, listener.getRejectedCount());
+	}
+
+	@Test
+	public void testDropOldestKeepsNewest() throws Exception {
+		Recorder recorder = new Recorder();
+		listener = new AsyncContainerListener(recorder,
+				DeliveryOrder.PER_CONFIGURATION, 1, 2,
+				BackpressurePolicy.DROP_OLDEST);
+
+		listener.onModifed(config("one"), "a");
+		assertTrue(recorder.started.await(5, TimeUnit.SECONDS));
+
+		for (String key : new String[] { "b", "c", "d" }) {
+			listener.onModifed(config("one"), key);
+		}
+
+		recorder.release.countDown();
+
+		listener.flush();
+		assertEquals(Arrays.asList("a", "c", "d"), recorder.keys("one"));
+		assertEquals(1, listener.getDroppedCount());
+	}
+
+	@Test
+	public void testRejectDiscardsNewest() throws Exception {
+		Recorder recorder = new Recorder();
+		listener = new AsyncContainerListener(recorder,
+				DeliveryOrder.PER_CONFIGURATION, 1, 2,
+				BackpressurePolicy.REJECT);
+
+		listener.onModifed(config("one"), "a");
+		assertTrue(recorder.started.await(5, TimeUnit.SECONDS));
+
+		for (String key : new String[] { "b", "c", "d" }) {
+			listener.onModifed(config("one"), key);
+		}
+
+		recorder.release.countDown();
+
+		listener.flush();
+		assertEquals(Arrays.asList("a", "b", "c"), recorder.keys("one"));
+		assertEquals(1, listener.getRejectedCount());
+	}
+
+	@Test
+	public void testPerConfigurationKeepsOrder() throws Exception {
+		Recorder recorder = new Recorder();
+		recorder.release.countDown();
+
+		listener = new AsyncContainerListener(recorder,
+				DeliveryOrder.PER_CONFIGURATION, 4, 1000,
+				BackpressurePolicy.BLOCK);
+
+		List<String> expected = new ArrayList<String>();
+
+		for (int i = 0; i < 200; i++) {
+			expected.add("key_" + i);
+
+			for (int j = 0; j < 8; j++) {
+				listener.onModifed(config("config_" + j), "key_" + i);
+			}
+		}
+
+		listener.flush();
+
+		for (int j = 0; j < 8; j++) {
+			assertEquals(expected, recorder.keys("config_" + j));
+			assertEquals(1, recorder.threads("config_" + j).size());
+		}
+
+		assertEquals(1600, listener.getDispatchedCount());
+	}
+
+	@Test
+	public void testParallelDeliversAtOnce() throws Exception {
+		final CyclicBarrier together = new CyclicBarrier(2);
+
+		listener = new AsyncContainerListener(new ContainerListenerAdapter() {
+
+			@Override
+			public void onModifed(Configuration config, String key) {
+				try {
+					// only passes if both are delivered at the same time
+					together.await(5, TimeUnit.SECONDS);
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}, DeliveryOrder.PARALLEL, 2, 10, BackpressurePolicy.BLOCK);
+
+		// the same configuration, which would be delivered by one thread
+		// in order
+		listener.onModifed(config("one"), "a");
+		listener.onModifed(config("one"), "b");
+
+		listener.flush();
+		assertEquals(2, listener.getDispatchedCount());
+		assertEquals(0, together.getNumberWaiting());
+		assertFalse(together.isBroken());
+	}
+
+	@Test
+	public void testFlushDeliversQueuedAndFlushesDelegate() throws Exception {
+		Recorder recorder = new Recorder();
+		listener = new AsyncContainerListener(recorder,
+				DeliveryOrder.PARALLEL, 3, 100, BackpressurePolicy.BLOCK);
+
+		for (int i = 0; i < 20; i++) {
+			listener.onModifed(config("one"), "key_" + i);
+		}
+
+		recorder.release.countDown();
+		listener.flush();
+
+		assertEquals(20, recorder.keys("one").size());
+		assertEquals(20, recorder.deliveredBeforeFlush);
+	}
+
+	@Test
+	public void testNotificationAfterCloseIsRejected() throws Exception {
+		Recorder recorder = new Recorder();
+		recorder.release.countDown();
+
+		listener = new AsyncContainerListener(recorder);
+		listener.close();
+
+		listener.onModifed(config("one"), "a");
+
+		assertEquals(1, listener.getRejectedCount());
+		assertTrue(recorder.keys("one").isEmpty());
+	}
+
+	private static Configuration config(String id) {
+		DisplayableBasicConfiguration config = new DisplayableBasicConfiguration();
+		config.setId(id);
+		return config;
+	}
+
+	/**
+	 * Records the keys it is told of, by configuration, waiting to be
+	 * released before the first.
+	 */
+	private static class Recorder extends ContainerListenerAdapter implements
+			Flushable {
+
+		private final CountDownLatch started = new CountDownLatch(1);
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		private final Map<String, List<String>> keys = new HashMap<String, List<String>>();
+		private final Map<String, List<Thread>> threads = new HashMap<String, List<Thread>>();
+
+		private volatile int deliveredBeforeFlush = -1;
+
+		@Override
+		public void onModifed(Configuration config, String key) {
+			started.countDown();
+
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			synchronized (this) {
+				get(keys, config.getId()).add(key);
+
+				List<Thread> seen = get(threads, config.getId());
+
+				if (!seen.contains(Thread.currentThread())) {
+					seen.add(Thread.currentThread());
+				}
+			}
+		}
+
+		@Override
+		public synchronized void flush() {
+			int count = 0;
+
+			for (List<String> curr : keys.values()) {
+				count += curr.size();
+			}
+
+			deliveredBeforeFlush = count;
+		}
+
+		synchronized List<String> keys(String id) {
+			List<String> result = keys.get(id);
+			return result == null ? Collections.<String> emptyList()
+					: new ArrayList<String>(result);
+		}
+
+		synchronized List<Thread> threads(String id) {
+			return new ArrayList<Thread>(get(threads, id));
+		}
+
+		private static <T> List<T> get(Map<String, List<T>> map, String id) {
+			List<T> result = map.get(id);
+
+			if (result == null) {
+				result = new ArrayList<T>();
+				map.put(id, result);
+			}
+
+			return result;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package lib.config.web.container;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lib.config.web.DisplayableConfiguration;
+import lib.config.web.container.FakeHttp.Exchange;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Numbers changes, and serves them to clients catching up.
+ */
+public class ChangeLogTest {
+
+	private ConfigurationContainer container;
+
+	@Before
+	public void setUp() throws Exception {
+		Map<String, DisplayableConfiguration> configs = new HashMap<String, DisplayableConfiguration>();
+
+		for (String id : new String[] { "one", "two" }) {
+			DisplayableBasicConfiguration config = new DisplayableBasicConfiguration();
+			config.setId(id);
+			config.setProperty("colour", "blue");
+			configs.put(id, config);
+		}
+
+		container = new ConfigurationContainer(configs);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		container.close();
+	}
+
+	@Test
+	public void testOldEventsAreEvicted() {
+		ChangeLog log = new ChangeLog(3);
+
+		for (int i = 0; i < 5; i++) {
+			log.append("one", new ConfigurationVersion(i, 0), Collections
+					.singletonList(new Change(ChangeType.MODIFY, "key", null,
+							String.valueOf(i))));
+		}
+
+		assertEquals(5, log.getLatestSequence());
+		assertEquals(3, log.getOldestSequence());
+
+		List<ChangeEvent> events = log.read(2, 10);
+		assertEquals(3, events.size());
+		assertEquals(3, events.get(0).getSequence());
+		assertEquals("4", events.get(2).getValue());
+
+		assertEquals(1, log.read(3, 1).size());
+		assertTrue(log.read(5, 10).isEmpty());
+		assertNull(log.read(1, 10));
+		assertNull(log.read(6, 10));
+	}
+
+	@Test
+	public void testChangesSince() throws IOException {
+		container.commit("one",
+				new Transaction().set("colour", "red").set("size", "10"));
+		container.commit("two", new Transaction().remove("colour"));
+		container.commit("one", new Transaction().set("size", "20"));
+
+		Exchange exchange = changes("since", "1", "limit", "2");
+		String epoch = epoch(exchange);
+
+		assertEquals(200, exchange.getCode());
+		assertEquals("{\"epoch\":\"" + epoch + "\",\"last\":3,"
+				+ "\"latest\":4,\"more\":true,\"changes\":["
+				+ "{\"sequence\":2,\"config\":\"one\",\"type\":\"add\","
+				+ "\"key\":\"size\",\"value\":\"10\",\"version\":1},"
+				+ "{\"sequence\":3,\"config\":\"two\",\"type\":\"delete\","
+				+ "\"key\":\"colour\",\"value\":null,\"version\":1}]}",
+				exchange.getBodyAsString());
+
+		assertTrue(changes("epoch", epoch, "since", "3").getBodyAsString()
+				.contains("\"last\":4,\"latest\":4,\"more\":false,"));
+	}
+
+	@Test
+	public void testNoChangesReturnsSince() throws IOException {
+		container.commit("one", new Transaction().set("colour", "red"));
+
+		assertTrue(changes("since", "1").getBodyAsString().contains(
+				"\"last\":1,\"latest\":1,\"more\":false,\"changes\":[]"));
+	}
+
+	@Test
+	public void testSequenceFromAnotherContainerAsksForResync()
+			throws IOException {
+		container.commit("one", new Transaction().set("colour", "red"));
+
+		String epoch = epoch(changes("since", "0"));
+
+		// a restart numbers its changes from one again
+		ConfigurationContainer restarted = new ConfigurationContainer(
+				Collections.<String, DisplayableConfiguration> emptyMap());
+
+		try {
+			Exchange exchange = new Exchange();
+			restarted.handle(FakeHttp.request("GET",
+					ConfigurationContainer.CHANGES_PATH, FakeHttp.params(
+							"epoch", epoch, "since", "0"), null), FakeHttp
+					.response(exchange));
+
+			assertEquals(410, exchange.getCode());
+			assertTrue(exchange.getBodyAsString().contains("\"resync\":true"));
+
+			String current = epoch(exchange);
+			assertFalse(current.equals(epoch));
+
+			Exchange resumed = new Exchange();
+			restarted.handle(FakeHttp.request("GET",
+					ConfigurationContainer.CHANGES_PATH, FakeHttp.params(
+							"epoch", current, "since", "0"), null), FakeHttp
+					.response(resumed));
+
+			assertEquals(200, resumed.getCode());
+		} finally {
+			restarted.close();
+		}
+	}
+
+	@Test
+	public void testFutureSequenceAsksForResync() throws IOException {
+		container.commit("one", new Transaction().set("colour", "red"));
+
+		Exchange exchange = changes("since", "100");
+
+		assertEquals(410, exchange.getCode());
+		assertTrue(exchange.getBodyAsString().contains("\"resync\":true,"));
+		assertTrue(exchange.getBodyAsString().contains("\"latest\":1}"));
+	}
+
+	private static String epoch(Exchange exchange) {
+		Matcher matcher = Pattern.compile("\"epoch\":\"([0-9a-f]+)\"")
+				.matcher(exchange.getBodyAsString());
+
+		assertTrue(matcher.find());
+		return matcher.group(1);
+	}
+
+	private Exchange changes(String... params) throws IOException {
+		Exchange exchange = new Exchange();
+		container.handle(FakeHttp.request("GET",
+				ConfigurationContainer.CHANGES_PATH, FakeHttp.params(params),
+				null), FakeHttp.response(exchange));
+		return exchange;
+	}
+}
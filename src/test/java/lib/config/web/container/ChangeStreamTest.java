@@ -0,0 +1,181 @@
+package lib.config.web.container;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import lib.config.web.container.FakeHttp.Exchange;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Streams changes to subscribers, and drops those that fail or fall behind.
+ */
+public class ChangeStreamTest {
+
+	private ChangeStream stream;
+
+	@After
+	public void tearDown() {
+		if (stream != null) {
+			stream.close();
+		}
+	}
+
+	@Test
+	public void testEventsAreSentToSubscribers() throws Exception {
+		stream = new ChangeStream(1, TimeUnit.HOURS, 10);
+
+		Exchange all = new Exchange();
+		Exchange one = new Exchange();
+		stream.subscribe(FakeHttp.response(all), null);
+		stream.subscribe(FakeHttp.response(one), Collections.singleton("one"));
+
+		assertEquals(2, stream.getSubscriberCount());
+		assertEquals("text/event-stream; charset=UTF-8",
+				one.getHeader("Content-Type"));
+
+		stream.onChangeSet(changeSet("one", 4));
+		stream.onChangeSet(changeSet("two", 7));
+
+		await(all, "\"config\":\"two\"");
+		await(one, "\"config\":\"one\"");
+
+		assertTrue(one.getBodyAsString().startsWith("retry: 5000\n\n"));
+		assertTrue(one.getBodyAsString().contains(
+				"event: modify\ndata: {\"config\":\"one\","
+						+ "\"key\":\"colour\",\"version\":4}\n\n"));
+
+		// only the configurations subscribed to
+		Thread.sleep(50);
+		assertFalse(one.getBodyAsString().contains("\"config\":\"two\""));
+	}
+
+	@Test
+	public void testHeartbeatIsSent() throws Exception {
+		stream = new ChangeStream(10, TimeUnit.MILLISECONDS, 10);
+
+		Exchange exchange = new Exchange();
+		stream.subscribe(FakeHttp.response(exchange), null);
+
+		await(exchange, ": heartbeat\n\n");
+	}
+
+	@Test
+	public void testFailedSubscriberIsDropped() throws Exception {
+		stream = new ChangeStream(1, TimeUnit.HOURS, 10);
+
+		Exchange exchange = new Exchange();
+		stream.subscribe(FakeHttp.response(exchange, new OutputStream() {
+
+			@Override
+			public void write(int b) throws IOException {
+				throw new IOException("Connection reset");
+			}
+		}), null);
+
+		awaitClosed(exchange);
+
+		assertEquals(0, stream.getSubscriberCount());
+		assertEquals(1, stream.getDroppedCount());
+	}
+
+	@Test
+	public void testStalledSubscriberDoesNotHoldUpOthers() throws Exception {
+		stream = new ChangeStream(1, TimeUnit.HOURS, 2);
+
+		final CountDownLatch stalled = new CountDownLatch(1);
+		final CountDownLatch released = new CountDownLatch(1);
+
+		Exchange slow = new Exchange();
+		Exchange fast = new Exchange();
+
+		stream.subscribe(FakeHttp.response(slow, new OutputStream() {
+
+			@Override
+			public void write(int b) throws IOException {
+				stalled.countDown();
+
+				try {
+					released.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+		}), null);
+
+		try {
+			assertTrue(stalled.await(5, TimeUnit.SECONDS));
+			stream.subscribe(FakeHttp.response(fast), null);
+
+			// more than the slow subscriber's queue holds, at a pace the
+			// fast one keeps up with
+			for (int i = 1; i <= 5; i++) {
+				stream.onChangeSet(changeSet("one", i));
+				await(fast, "\"version\":" + i);
+			}
+
+			assertEquals(1, stream.getSubscriberCount());
+			assertEquals(1, stream.getDroppedCount());
+		} finally {
+			released.countDown();
+		}
+
+		// closed once its write returns
+		awaitClosed(slow);
+	}
+
+	@Test
+	public void testCloseEndsSubscriptions() throws Exception {
+		stream = new ChangeStream(1, TimeUnit.HOURS, 10);
+
+		Exchange exchange = new Exchange();
+		stream.subscribe(FakeHttp.response(exchange), null);
+		await(exchange, "retry: 5000");
+
+		stream.close();
+
+		assertTrue(exchange.isClosed());
+		assertEquals(0, stream.getSubscriberCount());
+	}
+
+	private static ChangeSet changeSet(String id, long version) {
+		List<Change> changes = new ArrayList<Change>();
+		changes.add(new Change(ChangeType.MODIFY, "colour", null, "red"));
+
+		return new ChangeSet(id, null, new ConfigurationVersion(version, 0),
+				changes, 0);
+	}
+
+	private static void await(Exchange exchange, String text)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+
+		while (!exchange.getBodyAsString().contains(text)
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertTrue(exchange.getBodyAsString().contains(text));
+	}
+
+	private static void awaitClosed(Exchange exchange)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+
+		while (!exchange.isClosed() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertTrue(exchange.isClosed());
+	}
+}
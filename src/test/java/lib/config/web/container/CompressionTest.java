@@ -0,0 +1,166 @@
+package lib.config.web.container;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import lib.config.web.DisplayableConfiguration;
+import lib.config.web.container.FakeHttp.Exchange;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks content-encoding negotiation and the size threshold.
+ */
+public class CompressionTest {
+
+	private ConfigurationContainer container;
+
+	@Before
+	public void setUp() throws Exception {
+		Map<String, DisplayableConfiguration> configs = new HashMap<String, DisplayableConfiguration>();
+
+		DisplayableBasicConfiguration large = new DisplayableBasicConfiguration();
+		large.setId("large");
+
+		for (int i = 0; i < 200; i++) {
+			large.setProperty("key_" + i, "value_" + i);
+		}
+
+		configs.put(large.getId(), large);
+
+		DisplayableBasicConfiguration small = new DisplayableBasicConfiguration();
+		small.setId("small");
+		configs.put(small.getId(), small);
+
+		container = new ConfigurationContainer(configs);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		container.close();
+	}
+
+	@Test
+	public void testNegotiate() {
+		assertEquals(ContentEncoding.IDENTITY, ContentEncoding.negotiate(null));
+		assertEquals(ContentEncoding.GZIP,
+				ContentEncoding.negotiate("gzip, deflate, br"));
+		assertEquals(ContentEncoding.DEFLATE,
+				ContentEncoding.negotiate("gzip;q=0.5, deflate"));
+		assertEquals(ContentEncoding.DEFLATE,
+				ContentEncoding.negotiate("gzip;q=0, *"));
+		assertEquals(ContentEncoding.IDENTITY,
+				ContentEncoding.negotiate("br, identity"));
+	}
+
+	@Test
+	public void testPageIsCompressed() throws IOException {
+
+		Exchange plain = get("/", "large", null);
+		Exchange gzip = get("/", "large", "gzip");
+		Exchange deflate = get("/", "large", "deflate");
+
+		assertNull(plain.getHeader("Content-Encoding"));
+		assertEquals("gzip", gzip.getHeader("Content-Encoding"));
+		assertEquals("deflate", deflate.getHeader("Content-Encoding"));
+		assertEquals("Accept-Encoding", gzip.getHeader("Vary"));
+
+		assertTrue(gzip.getBodySize() < plain.getBodySize() / 2);
+		assertEquals(String.valueOf(gzip.getBodySize()),
+				gzip.getHeader("Content-Length"));
+
+		assertArrayEquals(plain.getBody(), read(new GZIPInputStream(
+				new ByteArrayInputStream(gzip.getBody()))));
+		assertArrayEquals(plain.getBody(), read(new InflaterInputStream(
+				new ByteArrayInputStream(deflate.getBody()))));
+	}
+
+	@Test
+	public void testSmallPageIsNotCompressed() {
+
+		container.setCompressionThreshold(4096);
+		Exchange exchange = get("/", "small", "gzip");
+
+		assertTrue(exchange.getBodySize() < 4096);
+		assertNull(exchange.getHeader("Content-Encoding"));
+	}
+
+	@Test
+	public void testStreamedPageIsCompressed() throws IOException {
+
+		Exchange plain = get("/", "large", null);
+
+		container.setStreamingThreshold(10);
+		Exchange streamed = get("/", "large", "gzip");
+
+		assertEquals("gzip", streamed.getHeader("Content-Encoding"));
+		assertArrayEquals(plain.getBody(), read(new GZIPInputStream(
+				new ByteArrayInputStream(streamed.getBody()))));
+	}
+
+	@Test
+	public void testJsonTagsDifferByEncoding() {
+
+		String path = ConfigurationContainer.API_PATH + "large";
+
+		Exchange plain = get(path, null, null);
+		Exchange gzip = get(path, null, "gzip");
+
+		assertEquals("gzip", gzip.getHeader("Content-Encoding"));
+		assertTrue(!plain.getHeader("ETag").equals(gzip.getHeader("ETag")));
+
+		// a tag received in either encoding identifies the version
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("If-None-Match", gzip.getHeader("ETag"));
+
+		Exchange revalidated = new Exchange();
+		container.handle(FakeHttp.request("GET", path,
+				new HashMap<String, String>(), headers), FakeHttp
+				.response(revalidated));
+
+		assertEquals(304, revalidated.getCode());
+	}
+
+	private Exchange get(String path, String config, String acceptEncoding) {
+
+		Map<String, String> headers = new HashMap<String, String>();
+
+		if (acceptEncoding != null) {
+			headers.put("Accept-Encoding", acceptEncoding);
+		}
+
+		Map<String, String> params = config == null ? new HashMap<String, String>()
+				: FakeHttp.params("config", config);
+
+		Exchange exchange = new Exchange();
+		container.handle(FakeHttp.request("GET", path, params, headers),
+				FakeHttp.response(exchange));
+		return exchange;
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+
+		return out.toByteArray();
+	}
+}
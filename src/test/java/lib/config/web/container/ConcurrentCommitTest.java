@@ -0,0 +1,131 @@
+package lib.config.web.container;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import lib.config.web.DisplayableConfiguration;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Commits from several threads, to one configuration and to several.
+ */
+public class ConcurrentCommitTest {
+
+	private ConfigurationContainer container;
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() throws Exception {
+		Map<String, DisplayableConfiguration> configs = new HashMap<String, DisplayableConfiguration>();
+
+		for (String id : new String[] { "one", "two" }) {
+			DisplayableBasicConfiguration config = new DisplayableBasicConfiguration();
+			config.setId(id);
+			configs.put(id, config);
+		}
+
+		container = new ConfigurationContainer(configs);
+		executor = Executors.newFixedThreadPool(8);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		executor.shutdownNow();
+		container.close();
+	}
+
+	@Test
+	public void testCommitsToOneConfigurationAreNotLost() throws Exception {
+		List<Future<Void>> calls = new ArrayList<Future<Void>>();
+
+		for (int i = 0; i < 8; i++) {
+			final int thread = i;
+
+			calls.add(executor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() {
+					for (int j = 0; j < 500; j++) {
+						container.commit("one", new Transaction().set("key_"
+								+ thread + "_" + j, "value"));
+					}
+					return null;
+				}
+			}));
+		}
+
+		for (Future<Void> curr : calls) {
+			curr.get(30, TimeUnit.SECONDS);
+		}
+
+		ConfigurationSnapshot snapshot = container.getSnapshot("one");
+
+		assertEquals(4000, snapshot.size());
+		assertEquals(4000, snapshot.getVersion().getVersion());
+	}
+
+	@Test
+	public void testCommitsToDifferentConfigurationsDoNotWait()
+			throws Exception {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		// holds the lock of the first configuration while it is notified
+		container.addListener(new ContainerListenerAdapter() {
+
+			@Override
+			public void onChangeSet(ChangeSet changes) {
+				if (changes.getId().equals("one")) {
+					blocked.countDown();
+
+					try {
+						release.await(30, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		});
+
+		Future<?> first = executor.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				container.commit("one", new Transaction().set("colour", "red"));
+			}
+		});
+
+		assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+		Future<?> second = executor.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				container.commit("two", new Transaction().set("colour", "blue"));
+			}
+		});
+
+		try {
+			second.get(10, TimeUnit.SECONDS);
+		} finally {
+			release.countDown();
+		}
+
+		first.get(10, TimeUnit.SECONDS);
+	}
+}
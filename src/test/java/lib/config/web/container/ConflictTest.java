@@ -0,0 +1,177 @@
+package lib.config.web.container;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lib.config.web.DisplayableConfiguration;
+import lib.config.web.container.FakeHttp.Exchange;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Two operators editing the same configuration, through the forms and the
+ * JSON API.
+ */
+public class ConflictTest {
+
+	private ConfigurationContainer container;
+
+	@Before
+	public void setUp() throws Exception {
+		container = new ConfigurationContainer(configs());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		container.close();
+	}
+
+	@Test
+	public void testFormIncludesVersion() throws IOException {
+		container.commit("settings", new Transaction().set("colour", "red"));
+
+		String version = formVersion(container);
+
+		String tag = send("GET", ConfigurationContainer.API_PATH + "settings",
+				FakeHttp.params(), null).getHeader("ETag");
+
+		// the same token as the ETag of the version
+		assertTrue(version.endsWith("-1"));
+		assertEquals("\"" + version + "\"", tag);
+	}
+
+	@Test
+	public void testStaleFormIsRejected() throws IOException {
+		String version = formVersion(container);
+		container.commit("settings", new Transaction().set("colour", "red"));
+
+		Exchange exchange = send("POST", "/", FakeHttp.params("command",
+				"UPDATE", "config_id", "settings", "config_version", version,
+				"colour", "green", "size", "10"), null);
+
+		assertEquals(409, exchange.getCode());
+		assertTrue(exchange.getBodyAsString().contains(
+				"<td>colour</td><td>red</td><td>green</td>"));
+		assertFalse(exchange.getBodyAsString().contains("<td>size</td>"));
+		assertEquals("red", container.getSnapshot("settings").getProperty(
+				"colour"));
+	}
+
+	@Test
+	public void testFormFromAnotherContainerConflicts() throws IOException {
+		String version = formVersion(container);
+
+		// the same configuration at the same version, as after a restart
+		ConfigurationContainer restarted = new ConfigurationContainer(
+				configs());
+
+		try {
+			Exchange exchange = new Exchange();
+			restarted.handle(FakeHttp.request("POST", "/", FakeHttp.params(
+					"command", "UPDATE", "config_id", "settings",
+					"config_version", version, "colour", "green", "size",
+					"10"), null), FakeHttp.response(exchange));
+
+			assertEquals(409, exchange.getCode());
+			assertTrue(exchange.getBodyAsString().contains(
+					"<td>colour</td><td>blue</td><td>green</td>"));
+			assertEquals(0, restarted.getSnapshot("settings").getVersion()
+					.getVersion());
+			assertEquals("blue", restarted.getSnapshot("settings")
+					.getProperty("colour"));
+		} finally {
+			restarted.close();
+		}
+	}
+
+	@Test
+	public void testChangesToOtherKeysDoNotConflict() {
+		container.commit("settings", new Transaction().set("size", "20"));
+		container.commit("settings",
+				new Transaction().basedOn(0).set("colour", "green"));
+
+		try {
+			container.commit("settings",
+					new Transaction().basedOn(1).remove("colour"));
+			fail();
+		} catch (ConflictException e) {
+			assertEquals(1, e.getConflicts().size());
+			assertEquals("green", e.getConflicts().get(0).getCurrentValue());
+		}
+
+		ConfigurationSnapshot snapshot = container.getSnapshot("settings");
+		assertEquals("green", snapshot.getProperty("colour"));
+		assertEquals("20", snapshot.getProperty("size"));
+	}
+
+	@Test
+	public void testApiWriteWithStaleTagIsRejected() throws IOException {
+		String path = ConfigurationContainer.API_PATH + "settings";
+		String tag = send("GET", path, FakeHttp.params(), null).getHeader(
+				"ETag");
+
+		Exchange first = send("POST", path, FakeHttp.params("colour", "red"),
+				FakeHttp.params("If-Match", tag));
+
+		assertEquals(200, first.getCode());
+		assertTrue(first.getBodyAsString().contains("\"colour\":\"red\""));
+
+		Exchange second = send("POST", path,
+				FakeHttp.params("colour", "green"),
+				FakeHttp.params("If-Match", tag));
+
+		assertEquals(409, second.getCode());
+		assertEquals(first.getHeader("ETag"), second.getHeader("ETag"));
+		assertTrue(second.getBodyAsString().contains(
+				"{\"key\":\"colour\",\"current\":\"red\",\"requested\":\"green\"}"));
+	}
+
+	private static Map<String, DisplayableConfiguration> configs() {
+		DisplayableBasicConfiguration config = new DisplayableBasicConfiguration();
+		config.setId("settings");
+		config.setProperty("colour", "blue");
+		config.setProperty("size", "10");
+
+		Map<String, DisplayableConfiguration> configs = new HashMap<String, DisplayableConfiguration>();
+		configs.put(config.getId(), config);
+		return configs;
+	}
+
+	/**
+	 * @return Version of the configuration form as rendered.
+	 */
+	private String formVersion(ConfigurationContainer container)
+			throws IOException {
+		Exchange exchange = new Exchange();
+		container.handle(FakeHttp.request("GET", "/",
+				FakeHttp.params("config", "settings"), null), FakeHttp
+				.response(exchange));
+
+		Matcher matcher = Pattern.compile(
+				"name='config_version' value='([^']*)'").matcher(
+				exchange.getBodyAsString());
+
+		assertTrue(matcher.find());
+		return matcher.group(1);
+	}
+
+	private Exchange send(String method, String path,
+			Map<String, String> params, Map<String, String> headers)
+			throws IOException {
+		Exchange exchange = new Exchange();
+		container.handle(FakeHttp.request(method, path, params, headers),
+				FakeHttp.response(exchange));
+		return exchange;
+	}
+}
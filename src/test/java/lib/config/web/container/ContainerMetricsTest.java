@@ -0,0 +1,105 @@
+package lib.config.web.container;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import lib.config.web.DisplayableConfiguration;
+import lib.config.web.container.FakeHttp.Exchange;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+import lib.config.web.metrics.ServerMetrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks what the container records while handling requests.
+ */
+public class ContainerMetricsTest {
+
+	private ServerMetrics metrics;
+	private ConfigurationContainer container;
+
+	@Before
+	public void setUp() throws Exception {
+		Map<String, DisplayableConfiguration> configs = new HashMap<String, DisplayableConfiguration>();
+
+		DisplayableBasicConfiguration config = new DisplayableBasicConfiguration();
+		config.setId("settings");
+		config.setProperty("colour", "blue");
+		configs.put(config.getId(), config);
+
+		metrics = new ServerMetrics();
+		container = new ConfigurationContainer(configs, metrics);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		container.close();
+	}
+
+	@Test
+	public void testRequestsAreTimedPerCommand() {
+
+		get(FakeHttp.params("config", "settings"));
+		get(FakeHttp.params("config", "settings"));
+		get(FakeHttp.params("config", "settings", "command", "ADD"));
+
+		assertEquals(2, metrics.getRequestLatency("GET", "VIEW").getCount());
+		assertEquals(1, metrics.getRequestLatency("GET", "ADD").getCount());
+		assertEquals(3, metrics.getRequestCount());
+
+		// the second view is served from the page cache
+		assertEquals(2, metrics.getCacheMisses());
+		assertEquals(1, metrics.getCacheHits());
+		assertTrue(metrics.getBytesWritten() > 0);
+	}
+
+	@Test
+	public void testClientErrorsAreCounted() {
+
+		get(FakeHttp.params("config", "missing"));
+
+		assertEquals(1, metrics.getErrorCount(ServerMetrics.CLIENT_ERROR));
+	}
+
+	@Test
+	public void testDispatchIsTimed() {
+
+		container.handle(FakeHttp.request("POST", "/", FakeHttp.params(
+				"config_id", "settings", "command", "UPDATE", "colour", "red"),
+				null), FakeHttp.response(new Exchange()));
+
+		assertEquals(1, metrics.getRequestLatency("POST", "UPDATE").getCount());
+
+		// once for the change set and once for the command
+		assertEquals(2, metrics.getDispatchLatency().getCount());
+	}
+
+	@Test
+	public void testMetricsEndpoint() {
+
+		get(FakeHttp.params("config", "settings"));
+
+		Exchange exchange = new Exchange();
+		container.handle(FakeHttp.request("GET",
+				ConfigurationContainer.METRICS_PATH,
+				new HashMap<String, String>(), null), FakeHttp
+				.response(exchange));
+
+		String body = exchange.getBodyAsString();
+
+		assertNotNull(exchange.getHeader("Content-Type"));
+		assertTrue(body.contains("config_request_duration_seconds_count{method=\"GET\",command=\"VIEW\"} 1"));
+		assertTrue(body.contains("config_page_cache_requests_total{result=\"miss\"} 1"));
+	}
+
+	private void get(Map<String, String> params) {
+		container.handle(FakeHttp.request("GET", "/", params, null),
+				FakeHttp.response(new Exchange()));
+	}
+}
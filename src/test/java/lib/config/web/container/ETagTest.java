@@ -0,0 +1,124 @@
+package lib.config.web.container;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import lib.config.web.DisplayableConfiguration;
+import lib.config.web.container.FakeHttp.Exchange;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Revalidates the JSON document of a configuration with
+ * <code>If-None-Match</code>.
+ */
+public class ETagTest {
+
+	private static final String PATH = ConfigurationContainer.API_PATH
+			+ "settings";
+
+	private ConfigurationContainer container;
+
+	@Before
+	public void setUp() throws Exception {
+		container = new ConfigurationContainer(configs());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		container.close();
+	}
+
+	@Test
+	public void testUnchangedVersionIsNotModified() {
+		Exchange first = get(container, null);
+		String tag = first.getHeader("ETag");
+
+		assertEquals(200, first.getCode());
+		assertNotNull(tag);
+
+		Exchange second = get(container, tag);
+
+		assertEquals(304, second.getCode());
+		assertEquals(tag, second.getHeader("ETag"));
+		assertEquals(0, second.getBodySize());
+		assertTrue(second.isClosed());
+	}
+
+	@Test
+	public void testCommitChangesTag() {
+		String tag = get(container, null).getHeader("ETag");
+
+		container.commit("settings", new Transaction().set("colour", "red"));
+
+		Exchange exchange = get(container, tag);
+
+		assertEquals(200, exchange.getCode());
+		assertFalse(tag.equals(exchange.getHeader("ETag")));
+		assertTrue(exchange.getBodyAsString().contains("\"colour\":\"red\""));
+		assertEquals(304, get(container, exchange.getHeader("ETag"))
+				.getCode());
+	}
+
+	@Test
+	public void testWeakAndListedTagsMatch() {
+		String tag = get(container, null).getHeader("ETag");
+
+		assertEquals(304, get(container, "W/" + tag).getCode());
+		assertEquals(304, get(container, "\"other\", " + tag).getCode());
+		assertEquals(304, get(container, "*").getCode());
+		assertEquals(200, get(container, "\"other\"").getCode());
+	}
+
+	@Test
+	public void testTagFromAnotherContainerDoesNotMatch() {
+		String tag = get(container, null).getHeader("ETag");
+
+		// the same configuration at the same version, as after a restart
+		ConfigurationContainer restarted = new ConfigurationContainer(
+				configs());
+
+		try {
+			Exchange exchange = get(restarted, tag);
+
+			assertEquals(200, exchange.getCode());
+			assertFalse(tag.equals(exchange.getHeader("ETag")));
+		} finally {
+			restarted.close();
+		}
+	}
+
+	private static Map<String, DisplayableConfiguration> configs() {
+		DisplayableBasicConfiguration config = new DisplayableBasicConfiguration();
+		config.setId("settings");
+		config.setProperty("colour", "blue");
+
+		Map<String, DisplayableConfiguration> configs = new HashMap<String, DisplayableConfiguration>();
+		configs.put(config.getId(), config);
+		return configs;
+	}
+
+	private static Exchange get(ConfigurationContainer container,
+			String ifNoneMatch) {
+
+		Map<String, String> headers = new HashMap<String, String>();
+
+		if (ifNoneMatch != null) {
+			headers.put("If-None-Match", ifNoneMatch);
+		}
+
+		Exchange exchange = new Exchange();
+		container.handle(FakeHttp.request("GET", PATH,
+				new HashMap<String, String>(), headers), FakeHttp
+				.response(exchange));
+		return exchange;
+	}
+}
@@ -0,0 +1,255 @@
+package lib.config.web.container;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.simpleframework.http.Address;
+import org.simpleframework.http.Path;
+import org.simpleframework.http.Query;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+
+/**
+ * In-memory requests and responses, for driving a container without a
+ * server. Only the parts of the Simple API used by the container are
+ * implemented; everything else returns null.
+ */
+public final class FakeHttp {
+
+	private FakeHttp() {
+	}
+
+	/**
+	 * Builds a parameter map from name/value pairs.
+	 */
+	public static Map<String, String> params(String... pairs) {
+		Map<String, String> params = new LinkedHashMap<String, String>();
+
+		for (int i = 0; i < pairs.length; i += 2) {
+			params.put(pairs[i], pairs[i + 1]);
+		}
+
+		return params;
+	}
+
+	/**
+	 * @param method
+	 *            GET or POST. The parameters of a GET are part of the
+	 *            address, those of a POST are the body.
+	 * @param headers
+	 *            Request headers, or null for none.
+	 */
+	public static Request request(final String method, String path,
+			Map<String, String> params, final Map<String, String> headers) {
+
+		final Path requestPath = path(path);
+		final Query query = query(params);
+		final Query addressQuery = method.equals("GET") ? query
+				: query(new HashMap<String, String>());
+
+		final Address address = proxy(Address.class, new InvocationHandler() {
+
+			@Override
+			public Object invoke(Object proxy, Method m, Object[] args) {
+				if (m.getName().equals("getPath")) {
+					return requestPath;
+				}
+				if (m.getName().equals("getQuery")) {
+					return addressQuery;
+				}
+				return null;
+			}
+		});
+
+		return proxy(Request.class, new InvocationHandler() {
+
+			@Override
+			public Object invoke(Object proxy, Method m, Object[] args) {
+				String name = m.getName();
+
+				if (name.equals("getMethod")) {
+					return method;
+				}
+				if (name.equals("getPath")) {
+					return requestPath;
+				}
+				if (name.equals("getAddress")) {
+					return address;
+				}
+				if (name.equals("getQuery")) {
+					return query;
+				}
+				if (name.equals("getValue") && headers != null) {
+					return headers.get(args[0]);
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @return A response that records its status, headers and body in the
+	 *         exchange.
+	 */
+	public static Response response(final Exchange exchange) {
+		return response(exchange, exchange.body);
+	}
+
+	/**
+	 * @return A response that records its status and headers in the
+	 *         exchange, and writes its body to the stream.
+	 */
+	public static Response response(final Exchange exchange,
+			final OutputStream body) {
+
+		return proxy(Response.class, new InvocationHandler() {
+
+			@Override
+			public Object invoke(Object proxy, Method m, Object[] args)
+					throws IOException {
+				String name = m.getName();
+
+				if (name.equals("getOutputStream")) {
+					return body;
+				}
+				if (name.equals("getPrintStream")) {
+					return new PrintStream(exchange.body, false, "UTF-8");
+				}
+				if (name.equals("setCode")) {
+					exchange.code = (Integer) args[0];
+				} else if (name.equals("getCode")) {
+					return exchange.code;
+				} else if (name.equals("setContentType")) {
+					exchange.headers.put("Content-Type", (String) args[0]);
+				} else if (name.equals("setContentLength")) {
+					exchange.headers.put("Content-Length",
+							String.valueOf(args[0]));
+				} else if (name.startsWith("set") && args != null
+						&& args.length == 2) {
+					exchange.headers.put((String) args[0],
+							String.valueOf(args[1]));
+				} else if (name.equals("close")) {
+					exchange.closed = true;
+				} else if (name.equals("isCommitted")) {
+					return false;
+				}
+				return null;
+			}
+		});
+	}
+
+	private static Path path(final String path) {
+		return proxy(Path.class, new InvocationHandler() {
+
+			@Override
+			public Object invoke(Object proxy, Method m, Object[] args) {
+				return m.getName().equals("getPath") ? path : null;
+			}
+		});
+	}
+
+	private static Query query(final Map<String, String> params) {
+		return proxy(Query.class, new InvocationHandler() {
+
+			@Override
+			public Object invoke(Object proxy, Method m, Object[] args)
+					throws Exception {
+				String name = m.getName();
+
+				if (name.equals("getAll")) {
+					String value = params.get(args[0]);
+					List<String> values = value == null ? Collections
+							.<String> emptyList() : Collections
+							.singletonList(value);
+					return values;
+				}
+				if (name.equals("getInteger")) {
+					return Integer.parseInt(params.get(args[0]));
+				}
+				if (m.getDeclaringClass() == Query.class) {
+					return null;
+				}
+				return m.invoke(params, args);
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(FakeHttp.class.getClassLoader(),
+				new Class<?>[] { type }, handler);
+	}
+
+	/**
+	 * What a container wrote to a response.
+	 */
+	public static class Exchange {
+
+		private final Map<String, String> headers = new HashMap<String, String>();
+		private final ByteArrayOutputStream body;
+		private int code = 200;
+		private volatile boolean closed;
+
+		public Exchange() {
+			this.body = new ByteArrayOutputStream();
+		}
+
+		public int getCode() {
+			return code;
+		}
+
+		public String getHeader(String name) {
+			return headers.get(name);
+		}
+
+		public byte[] getBody() {
+			return body.toByteArray();
+		}
+
+		/**
+		 * @return Number of bytes written to the body.
+		 */
+		public int getBodySize() {
+			return body.size();
+		}
+
+		public String getBodyAsString() {
+			try {
+				return body.toString("UTF-8");
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public boolean isClosed() {
+			return closed;
+		}
+
+		/**
+		 * Clears the exchange so the response can be reused.
+		 */
+		public void reset() {
+			headers.clear();
+			body.reset();
+			code = 200;
+			closed = false;
+		}
+
+		/**
+		 * @return The stream the body is written to.
+		 */
+		public OutputStream getOutputStream() {
+			return body;
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package lib.config.web.container;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import lib.config.web.DisplayableConfiguration;
+import lib.config.web.container.FakeHttp.Exchange;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+
+import org.junit.Test;
+
+/**
+ * Checks searching and paging keys, and that the index stays sorted as keys
+ * are added and deleted.
+ */
+public class KeyIndexTest {
+
+	@Test
+	public void testFindByPrefix() {
+
+		KeyIndex index = KeyIndex.of(Arrays.asList("db.user", "app.name",
+				"db.host", "db.port", "dba", "cache.size"));
+
+		KeyPage page = index.findByPrefix("db.", 0, 10);
+		assertEquals(Arrays.asList("db.host", "db.port", "db.user"),
+				page.getKeys());
+		assertEquals(3, page.getTotal());
+
+		page = index.findByPrefix("db.", 1, 1);
+		assertEquals(Arrays.asList("db.port"), page.getKeys());
+		assertTrue(page.hasPrevious());
+		assertTrue(page.hasNext());
+
+		assertEquals(0, index.findByPrefix("zzz", 0, 10).getTotal());
+		assertEquals(6, index.findByPrefix(null, 0, 10).getTotal());
+	}
+
+	@Test
+	public void testOffsetPastEndOfPrefix() {
+
+		KeyIndex index = KeyIndex.of(Arrays.asList("app.name", "db.host",
+				"db.port", "db.user"));
+
+		KeyPage page = index.findByPrefix("db.", Integer.MAX_VALUE, 10);
+		assertTrue(page.getKeys().isEmpty());
+		assertEquals(3, page.getTotal());
+		assertFalse(page.hasNext());
+	}
+
+	@Test
+	public void testFindBySubstring() {
+
+		KeyIndex index = KeyIndex.of(Arrays.asList("db.user", "app.user",
+				"db.host", "user.name"));
+
+		KeyPage page = index.findBySubstring(null, "user", 0, 2);
+		assertEquals(Arrays.asList("app.user", "db.user"), page.getKeys());
+		assertEquals(3, page.getTotal());
+		assertTrue(page.hasNext());
+
+		page = index.findBySubstring("db.", "user", 0, 10);
+		assertEquals(Arrays.asList("db.user"), page.getKeys());
+		assertFalse(page.hasNext());
+	}
+
+	@Test
+	public void testApplyMatchesSort() {
+
+		Random random = new Random(42);
+		TreeSet<String> expected = new TreeSet<String>();
+		KeyIndex index = KeyIndex.of(expected);
+
+		for (int round = 0; round < 200; round++) {
+			List<Change> changes = new ArrayList<Change>();
+
+			for (int i = 0; i < 10; i++) {
+				String key = "key_" + random.nextInt(100);
+
+				if (expected.contains(key)) {
+					expected.remove(key);
+					changes.add(new Change(ChangeType.DELETE, key, "", null));
+				} else {
+					expected.add(key);
+					changes.add(new Change(ChangeType.ADD, key, null, ""));
+				}
+			}
+
+			index = index.apply(changes);
+
+			assertEquals(new ArrayList<String>(expected), index.findByPrefix(
+					null, 0, Integer.MAX_VALUE).getKeys());
+		}
+	}
+
+	@Test
+	public void testLargeConfigurationIsPaged() {
+
+		Map<String, DisplayableConfiguration> configs = new HashMap<String, DisplayableConfiguration>();
+
+		DisplayableBasicConfiguration config = new DisplayableBasicConfiguration();
+		config.setId("large");
+
+		for (int i = 0; i < 50; i++) {
+			config.setProperty("key_" + i, "value_" + i);
+		}
+
+		configs.put(config.getId(), config);
+
+		ConfigurationContainer container = new ConfigurationContainer(configs);
+		container.setPageSize(20);
+
+		try {
+			String first = get(container, FakeHttp.params("config", "large",
+					"offset", "0"));
+
+			assertTrue(first.contains("Keys 1 to 20 of 50"));
+			assertTrue(first.contains("offset=20"));
+
+			String prefixed = get(container, FakeHttp.params("config",
+					"large", "prefix", "key_4"));
+
+			assertTrue(prefixed.contains("Keys 1 to 11 of 11"));
+			assertTrue(prefixed.contains("name='key_49'"));
+			assertFalse(prefixed.contains("name='key_39'"));
+
+			// the index follows the configuration as keys are deleted
+			container.commit("large", new Transaction().remove("key_49"));
+
+			String afterDelete = get(container, FakeHttp.params("config",
+					"large", "prefix", "key_4"));
+
+			assertTrue(afterDelete.contains("Keys 1 to 10 of 10"));
+		} finally {
+			container.close();
+		}
+	}
+
+	@Test
+	public void testLargeConfigurationIsStreamedInFullByDefault() {
+
+		Map<String, DisplayableConfiguration> configs = new HashMap<String, DisplayableConfiguration>();
+
+		DisplayableBasicConfiguration config = new DisplayableBasicConfiguration();
+		config.setId("large");
+
+		// more than a page and the streaming threshold, with the defaults
+		for (int i = 0; i < 2500; i++) {
+			config.setProperty("key_" + i, "value_" + i);
+		}
+
+		configs.put(config.getId(), config);
+
+		ConfigurationContainer container = new ConfigurationContainer(configs);
+
+		try {
+			String page = get(container, FakeHttp.params("config", "large"));
+
+			assertFalse(page.contains("Keys 1 to"));
+			assertTrue(page.contains("name='key_0'"));
+			assertTrue(page.contains("name='key_2499'"));
+
+			// nothing was rendered into the cache
+			assertEquals(0, container.getMetrics().getCacheMisses());
+		} finally {
+			container.close();
+		}
+	}
+
+	@Test
+	public void testSearchTermsAreEscaped() {
+
+		Map<String, DisplayableConfiguration> configs = new HashMap<String, DisplayableConfiguration>();
+
+		DisplayableBasicConfiguration config = new DisplayableBasicConfiguration();
+		config.setId("settings");
+		config.setProperty("colour", "blue");
+		configs.put(config.getId(), config);
+
+		ConfigurationContainer container = new ConfigurationContainer(configs);
+
+		try {
+			String page = get(container, FakeHttp.params("config",
+					"settings", "prefix", "'><script>alert(1)</script>",
+					"search", "\"&"));
+
+			assertFalse(page.contains("<script>"));
+			assertTrue(page.contains("value='&#39;&gt;&lt;script&gt;"
+					+ "alert(1)&lt;/script&gt;'"));
+			assertTrue(page.contains("value='&quot;&amp;'"));
+		} finally {
+			container.close();
+		}
+	}
+
+	private String get(ConfigurationContainer container,
+			Map<String, String> params) {
+		Exchange exchange = new Exchange();
+		container.handle(FakeHttp.request("GET", "/", params, null),
+				FakeHttp.response(exchange));
+		return exchange.getBodyAsString();
+	}
+}
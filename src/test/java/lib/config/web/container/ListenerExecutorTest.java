@@ -0,0 +1,114 @@
+package lib.config.web.container;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import lib.config.web.DisplayableConfiguration;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs listener callbacks on an executor, as the virtual thread mode does.
+ */
+public class ListenerExecutorTest {
+
+	private ExecutorService executor;
+	private ConfigurationContainer container;
+
+	@Before
+	public void setUp() throws Exception {
+		Map<String, DisplayableConfiguration> configs = new HashMap<String, DisplayableConfiguration>();
+
+		DisplayableBasicConfiguration config = new DisplayableBasicConfiguration();
+		config.setId("settings");
+		configs.put(config.getId(), config);
+
+		executor = VirtualThreads.isAvailable() ? VirtualThreads.newExecutor()
+				: Executors.newCachedThreadPool();
+
+		container = new ConfigurationContainer(configs);
+		container.setListenerExecutor(executor);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		container.close();
+		executor.shutdown();
+	}
+
+	@Test
+	public void testListenersRunOnExecutor() {
+
+		final AtomicReference<Thread> called = new AtomicReference<Thread>();
+		final AtomicInteger received = new AtomicInteger();
+
+		container.addListener(new ContainerListenerAdapter() {
+
+			@Override
+			public void onChangeSet(ChangeSet changes) {
+				called.set(Thread.currentThread());
+				received.addAndGet(changes.getChanges().size());
+			}
+		});
+
+		container.commit("settings",
+				new Transaction().set("a", "1").set("b", "2"));
+
+		// the commit waits for its listeners
+		assertEquals(2, received.get());
+		assertNotSame(Thread.currentThread(), called.get());
+	}
+
+	@Test(timeout = 10000)
+	public void testListenerCanCommitToSameConfiguration() {
+
+		container.addListener(new ContainerListenerAdapter() {
+
+			@Override
+			public void onChangeSet(ChangeSet changes) {
+
+				// the committing thread holds the configuration's lock
+				if (changes.getConfiguration().hasProperty("a")
+						&& !changes.getConfiguration().hasProperty("b")) {
+					container.commit("settings",
+							new Transaction().set("b", "2"));
+				}
+			}
+		});
+
+		container.commit("settings", new Transaction().set("a", "1"));
+
+		// made before the outer commit returned, as on the committing thread
+		assertEquals("2", container.getSnapshot("settings").getProperty("b"));
+	}
+
+	@Test
+	public void testListenerFailureIsRethrown() {
+
+		container.addListener(new ContainerListenerAdapter() {
+
+			@Override
+			public void onChangeSet(ChangeSet changes) {
+				throw new IllegalStateException("listener failed");
+			}
+		});
+
+		try {
+			container.commit("settings", new Transaction().set("a", "1"));
+			fail("Expected the listener's exception.");
+		} catch (IllegalStateException e) {
+			assertEquals("listener failed", e.getMessage());
+		}
+	}
+}
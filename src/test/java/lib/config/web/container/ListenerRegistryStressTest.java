@@ -0,0 +1,141 @@
+package lib.config.web.container;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lib.config.web.DisplayableConfiguration;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Notifies listeners from many threads while other threads register and
+ * remove listeners.
+ */
+public class ListenerRegistryStressTest {
+
+	private static final int WRITERS = 8;
+	private static final int CHURNERS = 4;
+	private static final int COMMITS = 2000;
+
+	private ConfigurationContainer container;
+
+	@Before
+	public void setUp() throws Exception {
+		Map<String, DisplayableConfiguration> configs = new HashMap<String, DisplayableConfiguration>();
+
+		for (int i = 0; i < WRITERS; i++) {
+			DisplayableBasicConfiguration config = new DisplayableBasicConfiguration();
+			config.setId("config_" + i);
+			configs.put(config.getId(), config);
+		}
+
+		container = new ConfigurationContainer(configs);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		container.close();
+	}
+
+	@Test
+	public void testNotifyWhileRegistering() throws InterruptedException {
+
+		final AtomicInteger received = new AtomicInteger();
+
+		container.addListener(new ContainerListenerAdapter() {
+
+			@Override
+			public void onChangeSet(ChangeSet changes) {
+				received.incrementAndGet();
+			}
+		});
+
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final CountDownLatch start = new CountDownLatch(1);
+
+		List<Thread> writers = new ArrayList<Thread>();
+		List<Thread> churners = new ArrayList<Thread>();
+
+		for (int i = 0; i < WRITERS; i++) {
+			final String id = "config_" + i;
+
+			writers.add(new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+
+						for (int j = 0; j < COMMITS; j++) {
+							container.commit(id,
+									new Transaction().set("key", "value_" + j));
+						}
+					} catch (Throwable e) {
+						synchronized (failures) {
+							failures.add(e);
+						}
+					}
+				}
+			}));
+		}
+
+		for (int i = 0; i < CHURNERS; i++) {
+			churners.add(new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+
+						while (running.get()) {
+							ContainerListener listener = new ContainerListenerAdapter() {
+							};
+
+							container.addListener(listener);
+							container.removeListener(listener);
+						}
+					} catch (Throwable e) {
+						synchronized (failures) {
+							failures.add(e);
+						}
+					}
+				}
+			}));
+		}
+
+		for (Thread curr : writers) {
+			curr.start();
+		}
+
+		for (Thread curr : churners) {
+			curr.start();
+		}
+
+		start.countDown();
+
+		for (Thread curr : writers) {
+			curr.join();
+		}
+
+		running.set(false);
+
+		for (Thread curr : churners) {
+			curr.join();
+		}
+
+		assertTrue("Failures: " + failures, failures.isEmpty());
+		assertEquals(WRITERS * COMMITS, received.get());
+	}
+}
@@ -0,0 +1,91 @@
+package lib.config.web.container;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import lib.config.web.DisplayableConfiguration;
+import lib.config.web.container.FakeHttp.Exchange;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+import lib.config.web.metrics.ServerMetrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that each page is rendered once per version of its configuration.
+ */
+public class PageCacheTest {
+
+	private ServerMetrics metrics;
+	private ConfigurationContainer container;
+
+	@Before
+	public void setUp() throws Exception {
+		Map<String, DisplayableConfiguration> configs = new HashMap<String, DisplayableConfiguration>();
+
+		for (String id : new String[] { "one", "two" }) {
+			DisplayableBasicConfiguration config = new DisplayableBasicConfiguration();
+			config.setId(id);
+			config.setProperty("colour", "blue");
+			configs.put(id, config);
+		}
+
+		metrics = new ServerMetrics();
+		container = new ConfigurationContainer(configs, metrics);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		container.close();
+	}
+
+	@Test
+	public void testPageIsRenderedOncePerVersion() {
+		String first = get("one").getBodyAsString();
+
+		for (int i = 0; i < 3; i++) {
+			assertEquals(first, get("one").getBodyAsString());
+		}
+
+		assertEquals(1, metrics.getRenderLatency().getCount());
+		assertEquals(1, metrics.getCacheMisses());
+		assertEquals(3, metrics.getCacheHits());
+	}
+
+	@Test
+	public void testCommitRendersPageAgain() {
+		assertFalse(get("one").getBodyAsString().contains("red"));
+
+		container.commit("one", new Transaction().set("colour", "red"));
+
+		assertTrue(get("one").getBodyAsString().contains("red"));
+		assertTrue(get("one").getBodyAsString().contains("red"));
+
+		assertEquals(2, metrics.getRenderLatency().getCount());
+		assertEquals(2, metrics.getCacheMisses());
+	}
+
+	@Test
+	public void testCommitToAnotherConfigurationKeepsPage() {
+		get("one");
+
+		container.commit("two", new Transaction().set("colour", "red"));
+		get("one");
+
+		assertEquals(1, metrics.getRenderLatency().getCount());
+		assertEquals(1, metrics.getCacheHits());
+	}
+
+	private Exchange get(String config) {
+		Exchange exchange = new Exchange();
+		container.handle(FakeHttp.request("GET", "/",
+				FakeHttp.params("config", config), null), FakeHttp
+				.response(exchange));
+		return exchange;
+	}
+}
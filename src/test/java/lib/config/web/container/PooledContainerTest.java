@@ -0,0 +1,107 @@
+package lib.config.web.container;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import lib.config.web.container.FakeHttp.Exchange;
+import lib.config.web.metrics.ServerMetrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+import org.simpleframework.http.core.Container;
+
+/**
+ * Checks that requests beyond the workers and queue are rejected, and that
+ * shutdown drains accepted requests.
+ */
+public class PooledContainerTest {
+
+	private final CountDownLatch release = new CountDownLatch(1);
+	private final CountDownLatch started = new CountDownLatch(1);
+
+	private ServerMetrics metrics;
+	private PooledContainer pool;
+
+	@Before
+	public void setUp() throws Exception {
+		metrics = new ServerMetrics();
+
+		// holds the worker until released
+		Container blocking = new Container() {
+
+			@Override
+			public void handle(Request request, Response response) {
+				started.countDown();
+
+				try {
+					release.await();
+					response.setCode(200);
+					response.close();
+				} catch (InterruptedException e) {
+					// abandoned by shutdown
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+
+		pool = new PooledContainer(blocking, metrics, 1, 1);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		release.countDown();
+		pool.shutdown(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testRejectsWhenFull() throws Exception {
+
+		Exchange running = handle();
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		Exchange queued = handle();
+		Exchange rejected = handle();
+
+		assertEquals(503, rejected.getCode());
+		assertTrue(rejected.isClosed());
+		assertEquals(1, metrics.getErrorCount(ServerMetrics.REJECTED));
+		assertEquals(1, pool.getQueueDepth());
+
+		release.countDown();
+		assertTrue(pool.shutdown(5, TimeUnit.SECONDS));
+
+		assertEquals(200, running.getCode());
+		assertEquals(200, queued.getCode());
+	}
+
+	@Test
+	public void testShutdownDrainsAndRejects() throws Exception {
+
+		handle();
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		// not drained while the worker is held
+		assertFalse(pool.shutdown(50, TimeUnit.MILLISECONDS));
+
+		Exchange late = handle();
+		assertEquals(503, late.getCode());
+	}
+
+	private Exchange handle() {
+		Exchange exchange = new Exchange();
+		pool.handle(FakeHttp.request("GET", "/",
+				new HashMap<String, String>(), null), FakeHttp
+				.response(exchange));
+		return exchange;
+	}
+}
@@ -0,0 +1,80 @@
+package lib.config.web.container;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import lib.config.web.DisplayableConfiguration;
+import lib.config.web.container.FakeHttp.Exchange;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+import lib.config.web.metrics.ServerMetrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that a page streamed above the streaming threshold is the same page
+ * as when it is buffered.
+ */
+public class StreamingTest {
+
+	private static final int KEYS = 3000;
+
+	private ServerMetrics metrics;
+	private ConfigurationContainer container;
+
+	@Before
+	public void setUp() throws Exception {
+		DisplayableBasicConfiguration config = new DisplayableBasicConfiguration();
+		config.setId("large");
+
+		// multi-byte characters, so some are split across stream buffers
+		for (int i = 0; i < KEYS; i++) {
+			config.setProperty("key_" + i, "caf\u00e9_\u4e2d\u6587_" + i);
+		}
+
+		Map<String, DisplayableConfiguration> configs = new HashMap<String, DisplayableConfiguration>();
+		configs.put(config.getId(), config);
+
+		metrics = new ServerMetrics();
+		container = new ConfigurationContainer(configs, metrics);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		container.close();
+	}
+
+	@Test
+	public void testStreamedPageMatchesBufferedPage() {
+		for (Command command : new Command[] { Command.VIEW, Command.ADD }) {
+			container.setStreamingThreshold(KEYS - 1);
+			Exchange streamed = get(command);
+
+			container.setStreamingThreshold(KEYS);
+			Exchange buffered = get(command);
+
+			assertEquals(200, streamed.getCode());
+			assertNull(streamed.getHeader("Content-Length"));
+			assertNotNull(buffered.getHeader("Content-Length"));
+
+			assertArrayEquals(buffered.getBody(), streamed.getBody());
+		}
+
+		// only the buffered pages went through the cache
+		assertEquals(2, metrics.getCacheMisses());
+	}
+
+	private Exchange get(Command command) {
+		Exchange exchange = new Exchange();
+		container.handle(FakeHttp.request("GET", "/", FakeHttp.params(
+				"config", "large", "command", command.toString()), null),
+				FakeHttp.response(exchange));
+		return exchange;
+	}
+}
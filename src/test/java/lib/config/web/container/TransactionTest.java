@@ -0,0 +1,139 @@
+package lib.config.web.container;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import lib.config.web.DisplayableConfiguration;
+import lib.config.web.container.FakeHttp.Exchange;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that transactions are applied all or nothing, and that snapshots
+ * already taken do not see them.
+ */
+public class TransactionTest {
+
+	/**
+	 * Value the configuration refuses to set.
+	 */
+	private static final String FAIL = "fail";
+
+	private DisplayableBasicConfiguration config;
+	private ConfigurationContainer container;
+
+	@Before
+	public void setUp() throws Exception {
+		config = new DisplayableBasicConfiguration() {
+
+			@Override
+			public void setProperty(String key, String value) {
+				if (FAIL.equals(value)) {
+					throw new IllegalStateException("Cannot set " + key);
+				}
+
+				super.setProperty(key, value);
+			}
+		};
+
+		config.setId("settings");
+		config.setProperty("colour", "blue");
+		config.setProperty("size", "10");
+
+		Map<String, DisplayableConfiguration> configs = new HashMap<String, DisplayableConfiguration>();
+		configs.put(config.getId(), config);
+
+		container = new ConfigurationContainer(configs);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		container.close();
+	}
+
+	@Test
+	public void testFailedStepRevertsEarlierSteps() {
+		try {
+			container.commit("settings", new Transaction().set("colour", "red")
+					.remove("size").set("shape", "square").set("colour", FAIL));
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		assertUnchanged();
+	}
+
+	@Test
+	public void testSnapshotDoesNotSeeLaterCommit() {
+		ConfigurationSnapshot before = container.getSnapshot("settings");
+
+		container.commit("settings", new Transaction().set("colour", "red")
+				.remove("size").set("shape", "square"));
+
+		assertEquals(0, before.getVersion().getVersion());
+		assertEquals("blue", before.getProperty("colour"));
+		assertEquals("10", before.getProperty("size"));
+		assertFalse(before.hasProperty("shape"));
+		assertFalse(before.getKeys().contains("shape"));
+		assertEquals(2, before.size());
+
+		ConfigurationSnapshot after = container.getSnapshot("settings");
+		assertEquals(1, after.getVersion().getVersion());
+		assertEquals("red", after.getProperty("colour"));
+		assertNull(after.getProperty("size"));
+		assertEquals("square", after.getProperty("shape"));
+	}
+
+	@Test
+	public void testFormPostIsAppliedTogether() throws IOException {
+		Exchange exchange = post(FakeHttp.params("command", "UPDATE",
+				"config_id", "settings", "colour", "red", "size", "20"));
+
+		assertEquals(200, exchange.getCode());
+
+		ConfigurationSnapshot snapshot = container.getSnapshot("settings");
+		assertEquals(1, snapshot.getVersion().getVersion());
+		assertEquals("red", snapshot.getProperty("colour"));
+		assertEquals("20", snapshot.getProperty("size"));
+	}
+
+	@Test
+	public void testFailedFormPostAppliesNothing() throws IOException {
+		// whichever key is applied first, the other is not kept
+		Exchange exchange = post(FakeHttp.params("command", "UPDATE",
+				"config_id", "settings", "colour", "red", "size", FAIL));
+
+		assertEquals(500, exchange.getCode());
+		assertUnchanged();
+	}
+
+	private void assertUnchanged() {
+		assertEquals("blue", config.getProperty("colour"));
+		assertEquals("10", config.getProperty("size"));
+		assertFalse(config.hasProperty("shape"));
+
+		ConfigurationSnapshot snapshot = container.getSnapshot("settings");
+		assertEquals(0, snapshot.getVersion().getVersion());
+		assertEquals("blue", snapshot.getProperty("colour"));
+		assertEquals("10", snapshot.getProperty("size"));
+		assertFalse(snapshot.hasProperty("shape"));
+	}
+
+	private Exchange post(Map<String, String> params) throws IOException {
+		Exchange exchange = new Exchange();
+		container.handle(FakeHttp.request("POST", "/", params, null),
+				FakeHttp.response(exchange));
+		return exchange;
+	}
+}
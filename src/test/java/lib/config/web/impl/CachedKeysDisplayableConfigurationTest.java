@@ -0,0 +1,58 @@
+package lib.config.web.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachedKeysDisplayableConfigurationTest {
+
+	private CachedKeysDisplayableConfiguration config;
+
+	@Before
+	public void setUp() throws Exception {
+		config = new CachedKeysDisplayableConfiguration();
+		config.setId("test_config");
+		config.setProperty("one", "1");
+		config.setProperty("two", "2");
+	}
+
+	@Test
+	public void testKeysReusedUntilKeysChange() {
+		LinkedHashSet<String> keys = config.getKeys();
+
+		assertEquals(Arrays.asList("one", "two"),
+				Arrays.asList(keys.toArray()));
+
+		// modifying a value keeps the snapshot
+		config.setProperty("one", "changed");
+		assertSame(keys, config.getKeys());
+
+		config.setProperty("three", "3");
+		LinkedHashSet<String> added = config.getKeys();
+		assertNotSame(keys, added);
+		assertEquals(3, added.size());
+
+		config.removeProperty("one");
+		assertEquals(Arrays.asList("two", "three"),
+				Arrays.asList(config.getKeys().toArray()));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testKeysCannotBeModified() {
+		config.getKeys().add("four");
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testKeysCannotBeRemovedWhileIterating() {
+		Iterator<String> keys = config.getKeys().iterator();
+		keys.next();
+		keys.remove();
+	}
+}
@@ -0,0 +1,236 @@
+package lib.config.web.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import lib.config.web.BulkConfiguration;
+import lib.config.web.DisplayableConfiguration;
+import lib.config.web.container.ConfigurationContainer;
+import lib.config.web.container.Transaction;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachingDisplayableConfigurationTest {
+
+	private CountingConfiguration store;
+	private CachingDisplayableConfiguration config;
+
+	@Before
+	public void setUp() throws Exception {
+		store = new CountingConfiguration();
+		store.setId("test_config");
+		store.setProperty("one", "1");
+		store.setProperty("two", "2");
+		store.setProperty("three", "3");
+
+		config = new CachingDisplayableConfiguration(store, 2, 1,
+				TimeUnit.HOURS);
+	}
+
+	@Test
+	public void testRepeatedReadsAreCached() {
+		assertEquals("1", config.getProperty("one"));
+		assertEquals("1", config.getProperty("one"));
+		assertNull(config.getProperty("four"));
+		assertFalse(config.hasProperty("four"));
+
+		assertEquals(2, store.reads);
+		assertEquals(2, config.getHitCount());
+		assertEquals(2, config.getMissCount());
+	}
+
+	@Test
+	public void testLeastRecentlyReadKeyIsEvicted() {
+		config.getProperty("one");
+		config.getProperty("two");
+		config.getProperty("one");
+		config.getProperty("three");
+
+		assertEquals(2, config.size());
+		assertEquals(1, config.getEvictionCount());
+
+		config.getProperty("one");
+		config.getProperty("two");
+
+		assertEquals(4, store.reads);
+	}
+
+	@Test
+	public void testExpiredValuesAreReadAgain() throws Exception {
+		config = new CachingDisplayableConfiguration(store, 10, 1,
+				TimeUnit.MILLISECONDS);
+
+		config.getProperty("one");
+		Thread.sleep(10);
+		config.getProperty("one");
+
+		assertEquals(2, store.reads);
+	}
+
+	@Test
+	public void testSnapshotReadsMissingKeysInOneCall() {
+		Map<String, DisplayableConfiguration> configs = new HashMap<String, DisplayableConfiguration>();
+		configs.put(config.getId(), config);
+
+		config.getProperty("one");
+
+		ConfigurationContainer container = new ConfigurationContainer(configs);
+
+		try {
+			assertEquals("3", container.getSnapshot("test_config")
+					.getProperty("three"));
+
+			assertEquals(1, store.reads);
+			assertEquals(Arrays.asList("three", "two"), store.bulkReads);
+		} finally {
+			container.close();
+		}
+	}
+
+	@Test
+	public void testChangesThroughAnotherConfigurationAreInvalidated() {
+		config = new CachingDisplayableConfiguration(store, 10, 1,
+				TimeUnit.HOURS);
+		config.getProperty("one");
+
+		// a second view of the same store, hosted by the container
+		Map<String, DisplayableConfiguration> configs = new HashMap<String, DisplayableConfiguration>();
+		configs.put(store.getId(), store);
+
+		ConfigurationContainer container = new ConfigurationContainer(configs);
+		container.addListener(config);
+
+		try {
+			container.commit("test_config", new Transaction().set("one", "uno"));
+			assertEquals("uno", config.getProperty("one"));
+		} finally {
+			container.close();
+		}
+	}
+
+	@Test
+	public void testSlowReadDoesNotReplaceNewerWrite() throws Exception {
+		final SlowConfiguration slow = new SlowConfiguration();
+		config = new CachingDisplayableConfiguration(slow, 10, 1,
+				TimeUnit.HOURS);
+
+		Thread reader = slow.readInBackground(config, "one");
+
+		// written while the old value is being read
+		config.setProperty("one", "uno");
+
+		slow.release.countDown();
+		reader.join(5000);
+
+		assertEquals("uno", config.getProperty("one"));
+	}
+
+	@Test
+	public void testSlowReadDoesNotReplaceInvalidation() throws Exception {
+		final SlowConfiguration slow = new SlowConfiguration();
+		config = new CachingDisplayableConfiguration(slow, 10, 1,
+				TimeUnit.HOURS);
+
+		Thread reader = slow.readInBackground(config, "one");
+
+		// changed through another configuration while being read
+		slow.setProperty("one", "uno");
+		config.onModifed(slow, "one");
+
+		slow.release.countDown();
+		reader.join(5000);
+
+		assertEquals("uno", config.getProperty("one"));
+	}
+
+	/**
+	 * Holds up the first read until released, returning the value it had
+	 * when the read began.
+	 */
+	private static class SlowConfiguration extends
+			DisplayableBasicConfiguration {
+
+		private final CountDownLatch started = new CountDownLatch(1);
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		SlowConfiguration() {
+			setId("test_config");
+			setProperty("one", "1");
+		}
+
+		@Override
+		public String getProperty(String key) {
+			String value = super.getProperty(key);
+
+			if (started.getCount() > 0) {
+				started.countDown();
+
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			return value;
+		}
+
+		Thread readInBackground(final CachingDisplayableConfiguration config,
+				final String key) throws InterruptedException {
+
+			Thread reader = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					config.getProperty(key);
+				}
+			});
+
+			reader.start();
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+			return reader;
+		}
+	}
+
+	/**
+	 * Counts reads, as a database-backed configuration would count queries.
+	 */
+	private static class CountingConfiguration extends
+			DisplayableBasicConfiguration implements BulkConfiguration {
+
+		private int reads;
+		private final List<String> bulkReads = new ArrayList<String>();
+
+		@Override
+		public String getProperty(String key) {
+			reads++;
+			return super.getProperty(key);
+		}
+
+		@Override
+		public Map<String, String> getProperties(Collection<String> keys) {
+			Map<String, String> values = new HashMap<String, String>();
+
+			for (String key : keys) {
+				bulkReads.add(key);
+				values.put(key, super.getProperty(key));
+			}
+
+			Collections.sort(bulkReads);
+			return values;
+		}
+	}
+}
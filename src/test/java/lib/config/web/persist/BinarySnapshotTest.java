@@ -0,0 +1,119 @@
+package lib.config.web.persist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+
+import lib.config.base.configuration.factory.ConfigurationFactory;
+import lib.config.web.DisplayableConfiguration;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Writes a snapshot of two configurations and reads it back.
+ */
+public class BinarySnapshotTest {
+
+	private static final ConfigurationFactory<DisplayableConfiguration> FACTORY = new ConfigurationFactory<DisplayableConfiguration>() {
+
+		@Override
+		public DisplayableConfiguration buildConfiguration(String name) {
+			return new DisplayableBasicConfiguration();
+		}
+	};
+
+	private File source;
+	private File file;
+	private BinarySnapshot snapshot;
+
+	@Before
+	public void setUp() throws Exception {
+		source = File.createTempFile("settings", ".ini");
+		file = new File(source.getPath() + ".snapshot");
+		writeSource("[database]\nhost=localhost\n");
+
+		snapshot = new BinarySnapshot(file, source);
+		snapshot.write(Arrays.asList(config("database", "host", "localhost",
+				"port", "5432"), config("cache", "size", "10", "blank", "")));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		source.delete();
+		file.delete();
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+
+		assertTrue(snapshot.isCurrent());
+
+		List<DisplayableConfiguration> configs = snapshot.read(FACTORY);
+
+		assertEquals(2, configs.size());
+		assertEquals("database", configs.get(0).getId());
+		assertEquals(2, configs.get(0).getKeys().size());
+		assertEquals("5432", configs.get(0).getProperty("port"));
+		assertEquals("cache", configs.get(1).getId());
+		assertEquals("", configs.get(1).getProperty("blank"));
+	}
+
+	@Test
+	public void testEditedSourceMakesSnapshotStale() throws Exception {
+
+		writeSource("[database]\nhost=remotehost\n");
+		source.setLastModified(source.lastModified() + 2000);
+
+		assertFalse(snapshot.isCurrent());
+		assertNull(snapshot.read(FACTORY));
+	}
+
+	@Test
+	public void testCorruptSnapshotIsIgnored() throws Exception {
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+
+		try {
+			out.seek(40);
+			int value = out.read();
+			out.seek(40);
+			out.write(value ^ 0xff);
+		} finally {
+			out.close();
+		}
+
+		assertNull(snapshot.read(FACTORY));
+	}
+
+	private static DisplayableConfiguration config(String id, String... pairs) {
+		DisplayableConfiguration config = new DisplayableBasicConfiguration();
+		config.setId(id);
+
+		for (int i = 0; i < pairs.length; i += 2) {
+			config.setProperty(pairs[i], pairs[i + 1]);
+		}
+
+		return config;
+	}
+
+	private void writeSource(String text) throws IOException {
+		Writer out = new FileWriter(source);
+
+		try {
+			out.write(text);
+		} finally {
+			out.close();
+		}
+	}
+}
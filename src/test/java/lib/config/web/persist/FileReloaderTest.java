@@ -0,0 +1,285 @@
+package lib.config.web.persist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import lib.config.base.configuration.Configuration;
+import lib.config.base.configuration.ConfigurationException;
+import lib.config.web.DisplayableConfiguration;
+import lib.config.web.container.ConfigurationContainer;
+import lib.config.web.container.ContainerListenerAdapter;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Edits a watched properties file and checks which keys are reloaded.
+ */
+public class FileReloaderTest {
+
+	private static final long DEBOUNCE_MILLIS = 100;
+
+	private File file;
+	private ConfigurationContainer container;
+	private FileReloader reloader;
+
+	private final List<String> notified = Collections
+			.synchronizedList(new ArrayList<String>());
+	private volatile CountDownLatch changed = new CountDownLatch(1);
+
+	private final ConfigurationFileReader reader = new ConfigurationFileReader() {
+
+		@Override
+		public List<? extends Configuration> read()
+				throws ConfigurationException {
+			return FileReloaderTest.this.read();
+		}
+	};
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("settings", ".properties");
+		write("colour", "blue", "size", "10", "name", "test");
+
+		DisplayableBasicConfiguration config = new DisplayableBasicConfiguration();
+		config.setId("settings");
+
+		for (Configuration curr : read()) {
+			for (String key : curr.getKeys()) {
+				config.setProperty(key, curr.getProperty(key));
+			}
+		}
+
+		Map<String, DisplayableConfiguration> configs = new HashMap<String, DisplayableConfiguration>();
+		configs.put(config.getId(), config);
+
+		container = new ConfigurationContainer(configs);
+		container.addListener(new ContainerListenerAdapter() {
+
+			@Override
+			public void onAdd(Configuration config, String key) {
+				notified.add("add " + key);
+				changed.countDown();
+			}
+
+			@Override
+			public void onModifed(Configuration config, String key) {
+				notified.add("modify " + key);
+				changed.countDown();
+			}
+
+			@Override
+			public void onDelete(Configuration config, String key) {
+				notified.add("delete " + key);
+				changed.countDown();
+			}
+		});
+
+		reloader = new FileReloader(container, DEBOUNCE_MILLIS,
+				TimeUnit.MILLISECONDS);
+		reloader.watch(file, reader);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		reloader.close();
+		container.close();
+		file.delete();
+	}
+
+	@Test
+	public void testOnlyChangedKeysAreNotified() throws Exception {
+
+		write("colour", "red", "size", "10", "weight", "5");
+
+		assertTrue(changed.await(10, TimeUnit.SECONDS));
+		waitForReloads(1);
+
+		Collections.sort(notified);
+		assertEquals("[add weight, delete name, modify colour]",
+				notified.toString());
+		assertEquals("red", container.getSnapshot("settings").getProperty(
+				"colour"));
+	}
+
+	@Test
+	public void testEditsAreDebounced() throws Exception {
+
+		// an editor writing in several steps
+		write("colour", "green");
+		write("colour", "green", "size", "10");
+		write("colour", "green", "size", "10", "name", "test");
+
+		assertTrue(changed.await(10, TimeUnit.SECONDS));
+		waitForReloads(1);
+
+		// the intermediate versions, missing keys, were never applied
+		assertEquals("[modify colour]", notified.toString());
+		assertEquals(1, reloader.getReloadCount());
+	}
+
+	@Test
+	public void testOwnWritesAreIgnored() throws Exception {
+
+		write("colour", "blue", "size", "20", "name", "test");
+		reloader.written(file);
+
+		Thread.sleep(DEBOUNCE_MILLIS * 10);
+
+		assertTrue(notified.isEmpty());
+		assertEquals(0, reloader.getReloadCount());
+	}
+
+	@Test
+	public void testChangesWithinDebounceAreReadOnce() throws Exception {
+		Path dir = unwatched();
+
+		for (int i = 0; i < 5; i++) {
+			write("colour", "green_" + i, "size", "10", "name", "test");
+			reloader.changed(dir, StandardWatchEventKinds.ENTRY_MODIFY,
+					file.toPath().getFileName());
+			Thread.sleep(DEBOUNCE_MILLIS / 10);
+		}
+
+		waitForReloads(1);
+		Thread.sleep(DEBOUNCE_MILLIS * 3);
+
+		assertEquals(1, reloader.getReloadCount());
+		assertEquals("[modify colour]", notified.toString());
+		assertEquals("green_4", container.getSnapshot("settings")
+				.getProperty("colour"));
+	}
+
+	@Test
+	public void testWrittenFileIsNotReadBack() throws Exception {
+		Path dir = unwatched();
+
+		write("colour", "blue", "size", "20", "name", "test");
+		reloader.written(file);
+		reloader.changed(dir, StandardWatchEventKinds.ENTRY_MODIFY, file
+				.toPath().getFileName());
+
+		long deadline = System.currentTimeMillis() + 10000;
+
+		while (reloader.getIgnoredCount() == 0
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(1, reloader.getIgnoredCount());
+		assertEquals(0, reloader.getReloadCount());
+		assertTrue(notified.isEmpty());
+		assertEquals("10", container.getSnapshot("settings").getProperty(
+				"size"));
+	}
+
+	@Test
+	public void testOverflowChecksEveryWatchedFile() throws Exception {
+		Path dir = unwatched();
+
+		write("colour", "red", "size", "10", "name", "test");
+
+		// a change to another file in the directory is not read
+		reloader.changed(dir, StandardWatchEventKinds.ENTRY_MODIFY, dir
+				.getFileSystem().getPath("other.properties"));
+		Thread.sleep(DEBOUNCE_MILLIS * 3);
+		assertEquals(0, reloader.getReloadCount());
+
+		// lost events name no file
+		reloader.changed(dir, StandardWatchEventKinds.OVERFLOW, null);
+
+		waitForReloads(1);
+		assertEquals(1, reloader.getReloadCount());
+		assertEquals("[modify colour]", notified.toString());
+	}
+
+	/**
+	 * Replaces the reloader with one that is told of changes by the test
+	 * rather than by the file system.
+	 * 
+	 * @return The directory of the settings file.
+	 */
+	private Path unwatched() throws IOException {
+		reloader.close();
+		reloader = new FileReloader(container, DEBOUNCE_MILLIS,
+				TimeUnit.MILLISECONDS) {
+
+			@Override
+			void register(Path dir) {
+				// not watched
+			}
+		};
+		reloader.watch(file, reader);
+
+		return file.getAbsoluteFile().toPath().getParent();
+	}
+
+	private void waitForReloads(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+
+		while (reloader.getReloadCount() < count
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	private void write(String... pairs) throws IOException {
+		Properties properties = new Properties();
+
+		for (int i = 0; i < pairs.length; i += 2) {
+			properties.setProperty(pairs[i], pairs[i + 1]);
+		}
+
+		OutputStream out = new FileOutputStream(file);
+
+		try {
+			properties.store(out, null);
+		} finally {
+			out.close();
+		}
+	}
+
+	private List<Configuration> read() throws ConfigurationException {
+		Properties properties = new Properties();
+
+		try {
+			InputStream in = new FileInputStream(file);
+
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+
+		DisplayableBasicConfiguration config = new DisplayableBasicConfiguration();
+		config.setId("settings");
+
+		for (String key : properties.stringPropertyNames()) {
+			config.setProperty(key, properties.getProperty(key));
+		}
+
+		return Collections.<Configuration> singletonList(config);
+	}
+}
@@ -0,0 +1,256 @@
+package lib.config.web.persist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import lib.config.base.configuration.Configuration;
+import lib.config.base.configuration.ConfigurationException;
+import lib.config.web.DisplayableConfiguration;
+import lib.config.web.container.ConfigurationContainer;
+import lib.config.web.container.Transaction;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Journals changes to a properties file, then replays them into freshly read
+ * configurations.
+ */
+public class JournalListenerTest {
+
+	private File file;
+	private File journal;
+	private Map<String, DisplayableConfiguration> configs;
+	private ConfigurationContainer container;
+	private JournalListener listener;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("settings", ".properties");
+		journal = new File(file.getPath() + ".journal");
+
+		Properties properties = new Properties();
+		properties.setProperty("colour", "blue");
+		properties.setProperty("size", "10");
+		write(properties, file);
+
+		configs = read();
+		container = new ConfigurationContainer(configs);
+		listener = newListener();
+		container.addListener(listener);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		listener.close();
+		container.close();
+		file.delete();
+		journal.delete();
+	}
+
+	@Test
+	public void testReplayRestoresChanges() throws Exception {
+
+		container.commit("settings",
+				new Transaction().set("colour", "red").set("weight", "5"));
+		container.commit("settings", new Transaction().remove("size"));
+		listener.close();
+
+		assertEquals(2, listener.getAppendCount());
+
+		Map<String, DisplayableConfiguration> restored = read();
+		listener = newListener();
+		assertEquals(2, listener.replay(restored));
+
+		Configuration config = restored.get("settings");
+		assertEquals("red", config.getProperty("colour"));
+		assertEquals("5", config.getProperty("weight"));
+		assertNull(config.getProperty("size"));
+	}
+
+	@Test
+	public void testIncompleteRecordIsDiscarded() throws Exception {
+
+		container.commit("settings", new Transaction().set("colour", "red"));
+		listener.close();
+
+		long length = journal.length();
+
+		// a crash part way through appending the next record
+		OutputStream out = new FileOutputStream(journal, true);
+
+		try {
+			out.write(new byte[] { 0, 0, 0, 42, 1, 2 });
+		} finally {
+			out.close();
+		}
+
+		JournalListener reopened = newListener();
+
+		try {
+			assertEquals(length, reopened.getJournalSize());
+
+			Map<String, DisplayableConfiguration> restored = read();
+			assertEquals(1, reopened.replay(restored));
+			assertEquals("red", restored.get("settings").getProperty("colour"));
+		} finally {
+			reopened.close();
+		}
+	}
+
+	@Test
+	public void testCompactionWritesSettingsFile() throws Exception {
+
+		container.commit("settings", new Transaction().set("colour", "red"));
+		listener.compact();
+
+		assertEquals(1, listener.getCompactionCount());
+		assertEquals(0, listener.getJournalSize());
+		assertFalse(new File(file.getPath() + ".journal.old").exists());
+
+		// changes after the compaction are journaled again
+		container.commit("settings", new Transaction().set("size", "20"));
+		listener.close();
+
+		Map<String, DisplayableConfiguration> restored = read();
+		assertEquals("red", restored.get("settings").getProperty("colour"));
+		assertEquals("10", restored.get("settings").getProperty("size"));
+
+		listener = newListener();
+		assertEquals(1, listener.replay(restored));
+		assertEquals("20", restored.get("settings").getProperty("size"));
+	}
+
+	@Test
+	public void testChangeTypesHaveFixedCodes() throws Exception {
+		listener.close();
+
+		// a journal holding an add, a modify and a delete, coded 0, 1 and 2
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(payload);
+		writeString(out, "settings");
+		out.writeInt(3);
+		writeChange(out, 0, "weight", "5");
+		writeChange(out, 1, "colour", "red");
+		writeChange(out, 2, "size", null);
+		out.flush();
+
+		CRC32 crc = new CRC32();
+		crc.update(payload.toByteArray());
+
+		DataOutputStream record = new DataOutputStream(new FileOutputStream(
+				journal));
+
+		try {
+			record.writeInt(payload.size());
+			record.writeInt((int) crc.getValue());
+			record.write(payload.toByteArray());
+		} finally {
+			record.close();
+		}
+
+		Map<String, DisplayableConfiguration> restored = read();
+		listener = newListener();
+		assertEquals(1, listener.replay(restored));
+
+		Configuration config = restored.get("settings");
+		assertEquals("5", config.getProperty("weight"));
+		assertEquals("red", config.getProperty("colour"));
+		assertFalse(config.hasProperty("size"));
+	}
+
+	private static void writeChange(DataOutputStream out, int code,
+			String key, String value) throws IOException {
+		out.writeByte(code);
+		writeString(out, key);
+		writeString(out, value);
+	}
+
+	private static void writeString(DataOutputStream out, String value)
+			throws IOException {
+
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private JournalListener newListener() throws IOException {
+		return new JournalListener(file, 10, TimeUnit.MILLISECONDS,
+				Long.MAX_VALUE) {
+
+			@Override
+			protected void writeSnapshot(File target)
+					throws ConfigurationException {
+				// the live configuration may be part way through a commit
+				Configuration config = container.getSnapshot("settings")
+						.toConfiguration();
+				Properties properties = new Properties();
+
+				for (String key : config.getKeys()) {
+					properties.setProperty(key, config.getProperty(key));
+				}
+
+				try {
+					write(properties, target);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+	}
+
+	private Map<String, DisplayableConfiguration> read() throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+
+		DisplayableBasicConfiguration config = new DisplayableBasicConfiguration();
+		config.setId("settings");
+
+		for (String key : properties.stringPropertyNames()) {
+			config.setProperty(key, properties.getProperty(key));
+		}
+
+		Map<String, DisplayableConfiguration> result = new HashMap<String, DisplayableConfiguration>();
+		result.put(config.getId(), config);
+		return result;
+	}
+
+	private static void write(Properties properties, File target)
+			throws IOException {
+		OutputStream out = new FileOutputStream(target);
+
+		try {
+			properties.store(out, null);
+		} finally {
+			out.close();
+		}
+	}
+}
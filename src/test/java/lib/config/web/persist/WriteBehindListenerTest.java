@@ -0,0 +1,194 @@
+package lib.config.web.persist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import lib.config.base.configuration.ConfigurationException;
+import lib.config.web.DisplayableConfiguration;
+import lib.config.web.container.ConfigurationContainer;
+import lib.config.web.container.Transaction;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Commits changes and checks when, and how often, they are written.
+ */
+public class WriteBehindListenerTest {
+
+	private static final long WINDOW_MILLIS = 200;
+
+	private ConfigurationContainer container;
+	private Recorder listener;
+
+	@Before
+	public void setUp() throws Exception {
+		Map<String, DisplayableConfiguration> configs = new HashMap<String, DisplayableConfiguration>();
+
+		for (String id : new String[] { "one", "two" }) {
+			DisplayableBasicConfiguration config = new DisplayableBasicConfiguration();
+			config.setId(id);
+			config.setProperty("colour", "blue");
+			configs.put(id, config);
+		}
+
+		container = new ConfigurationContainer(configs);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (listener != null) {
+			listener.close();
+		}
+
+		container.close();
+	}
+
+	@Test
+	public void testChangesWithinWindowAreWrittenOnce() throws Exception {
+		listener = new Recorder(WINDOW_MILLIS, 0);
+		container.addListener(listener);
+
+		for (int i = 0; i < 20; i++) {
+			container.commit("one",
+					new Transaction().set("colour", String.valueOf(i)));
+		}
+
+		await(listener, 1);
+
+		// nothing more is written once the window has passed
+		Thread.sleep(WINDOW_MILLIS * 2);
+
+		assertEquals(Arrays.asList(Collections.singleton("one")),
+				listener.written());
+		assertEquals(1, listener.getFlushCount());
+		assertEquals(0, listener.getDirtyCount());
+	}
+
+	@Test
+	public void testFlushWritesEverythingPending() throws Exception {
+		listener = new Recorder(1, TimeUnit.HOURS, 0);
+		container.addListener(listener);
+
+		container.commit("one", new Transaction().set("colour", "red"));
+		container.commit("two", new Transaction().set("colour", "green"));
+
+		assertEquals(2, listener.getDirtyCount());
+		assertTrue(listener.written().isEmpty());
+
+		listener.flush();
+
+		assertEquals(1, listener.written().size());
+		assertEquals(new HashSet<String>(Arrays.asList("one", "two")),
+				listener.written().get(0));
+		assertEquals(0, listener.getDirtyCount());
+
+		// nothing left to write
+		listener.flush();
+		assertEquals(1, listener.getFlushCount());
+	}
+
+	@Test
+	public void testFailedWriteIsRetriedWithLaterChanges() throws Exception {
+		listener = new Recorder(WINDOW_MILLIS, 1);
+		container.addListener(listener);
+
+		container.commit("one", new Transaction().set("colour", "red"));
+
+		long deadline = System.currentTimeMillis() + 5000;
+
+		while (listener.getFailureCount() == 0
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(1, listener.getFailureCount());
+		assertEquals(1, listener.getDirtyCount());
+
+		container.commit("two", new Transaction().set("colour", "green"));
+
+		while (!listener.writtenIds().containsAll(Arrays.asList("one", "two"))
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(new HashSet<String>(Arrays.asList("one", "two")),
+				listener.writtenIds());
+		assertTrue(listener.getFlushCount() >= 1);
+		assertEquals(1, listener.getFailureCount());
+		assertEquals(0, listener.getDirtyCount());
+	}
+
+	private static void await(WriteBehindListener listener, long flushes)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+
+		while (listener.getFlushCount() < flushes
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(flushes, listener.getFlushCount());
+	}
+
+	/**
+	 * Records the ids of each successful write, failing the first writes.
+	 */
+	private static class Recorder extends WriteBehindListener {
+
+		private final List<Set<String>> written = new ArrayList<Set<String>>();
+		private int failures;
+
+		Recorder(long window, int failures) {
+			this(window, TimeUnit.MILLISECONDS, failures);
+		}
+
+		Recorder(long window, TimeUnit unit, int failures) {
+			super(window, unit);
+			this.failures = failures;
+		}
+
+		@Override
+		protected synchronized void write(Set<String> ids)
+				throws ConfigurationException {
+
+			if (failures > 0) {
+				failures--;
+				throw new ConfigurationException("Cannot write " + ids);
+			}
+
+			written.add(new HashSet<String>(ids));
+		}
+
+		@Override
+		protected void onWriteFailed(Set<String> ids, Exception e) {
+			// expected
+		}
+
+		synchronized List<Set<String>> written() {
+			return new ArrayList<Set<String>>(written);
+		}
+
+		synchronized Set<String> writtenIds() {
+			Set<String> result = new HashSet<String>();
+
+			for (Set<String> curr : written) {
+				result.addAll(curr);
+			}
+
+			return result;
+		}
+	}
+}
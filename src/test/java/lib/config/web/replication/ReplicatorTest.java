@@ -0,0 +1,361 @@
+package lib.config.web.replication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import lib.config.web.DisplayableConfiguration;
+import lib.config.web.container.ConfigurationContainer;
+import lib.config.web.container.FakeHttp;
+import lib.config.web.container.FakeHttp.Exchange;
+import lib.config.web.container.Transaction;
+import lib.config.web.impl.DisplayableBasicConfiguration;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Replicates changes between containers, each served on its own port.
+ */
+public class ReplicatorTest {
+
+	private final List<Node> nodes = new ArrayList<Node>();
+
+	@After
+	public void tearDown() {
+		for (Node curr : nodes) {
+			curr.close();
+		}
+	}
+
+	@Test
+	public void testChangesArePushedToPeers() throws Exception {
+		Node a = node("a");
+		Node b = node("b");
+		connect(a, b);
+
+		a.container.commit("settings",
+				new Transaction().set("colour", "red").remove("size"));
+
+		await(b, "colour", "red");
+		await(b, "size", null);
+
+		// applied changes are not pushed back
+		Thread.sleep(200);
+		assertEquals(0, a.replicator.getAppliedCount());
+		assertEquals(2, b.replicator.getAppliedCount());
+		assertEquals(2, b.replicator.getReplicationLag().getCount());
+	}
+
+	@Test
+	public void testLastWriterWins() throws Exception {
+		Node a = node("a");
+		a.replicator.start(a.container);
+
+		a.container.commit("settings", new Transaction().set("colour", "red"));
+		long local = a.replicator.getWrites().get(0).getTime();
+
+		// written earlier elsewhere, so loses
+		a.replicator.receive(write("colour", "green", local - 1, "b"));
+		assertEquals("red", value(a, "colour"));
+		assertEquals(1, a.replicator.getSupersededCount());
+
+		// same time, broken by node id
+		a.replicator.receive(write("colour", "blue", local, "b"));
+		assertEquals("blue", value(a, "colour"));
+
+		// deleted later elsewhere
+		a.replicator.receive(write("colour", null, local + 1, "b"));
+		assertNull(value(a, "colour"));
+
+		// a local write after seeing a later stamp is stamped later still
+		a.container.commit("settings", new Transaction().set("colour", "red"));
+		a.replicator.receive(write("colour", "green", local + 1, "c"));
+		assertEquals("red", value(a, "colour"));
+	}
+
+	@Test
+	public void testCatchUpAfterPartition() throws Exception {
+		Node a = node("a");
+		Node b = node("b");
+		a.replicator.setQueue(1, 2);
+		connect(a, b);
+
+		a.container.commit("settings", new Transaction().set("colour", "red"));
+		await(b, "colour", "red");
+
+		b.down = true;
+		long failures = a.replicator.getFailureCount();
+
+		// once the first fails, it is retried while the rest are queued
+		a.container.commit("settings", new Transaction().set("key_0", "0"));
+		awaitFailure(a, failures);
+
+		// more changes than the queue holds
+		for (int i = 1; i < 5; i++) {
+			a.container.commit("settings",
+					new Transaction().set("key_" + i, String.valueOf(i)));
+		}
+
+		long snapshots = a.replicator.getSnapshotCount();
+
+		b.down = false;
+
+		for (int i = 0; i < 5; i++) {
+			await(b, "key_" + i, String.valueOf(i));
+		}
+
+		// counted once the peer has responded, which may be after it applied
+		awaitSnapshot(a, snapshots);
+	}
+
+	@Test
+	public void testRestartedPeerReadsSnapshot() throws Exception {
+		Node a = node("a");
+		a.replicator.start(a.container);
+		a.container.commit("settings", new Transaction().set("colour", "red"));
+
+		// b starts after the change, with nothing queued for it
+		Node b = node("b");
+		b.replicator.addPeer(a.url);
+		b.replicator.start(b.container);
+
+		await(b, "colour", "red");
+		assertFalse(b.replicator.getSnapshotCount() == 0);
+	}
+
+	@Test
+	public void testExpiredDeletesAreForgotten() throws Exception {
+		Node a = node("a");
+		a.replicator.setDeleteRetention(1, TimeUnit.MILLISECONDS);
+		a.replicator.start(a.container);
+
+		a.container.commit("settings", new Transaction().remove("size"));
+		assertEquals(1, a.replicator.getWrites().size());
+
+		Thread.sleep(10);
+
+		// looked for with the next change
+		a.container.commit("settings", new Transaction().set("colour", "red"));
+
+		List<StampedValue> writes = a.replicator.getWrites();
+		assertEquals(1, writes.size());
+		assertEquals("colour", writes.get(0).getKey());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDeeplyNestedDocumentIsRejected() throws Exception {
+		Node a = node("a");
+		a.replicator.start(a.container);
+
+		StringBuilder json = new StringBuilder("{\"writes\":");
+
+		for (int i = 0; i < 100000; i++) {
+			json.append('[');
+		}
+
+		a.replicator.receive(json.toString());
+	}
+
+	@Test
+	public void testStoppedReplicatorTurnsPeersAway() throws Exception {
+		Node a = node("a");
+		a.container.setReplicator(a.replicator);
+
+		Exchange exchange = new Exchange();
+		a.container.handle(FakeHttp.request("POST",
+				ConfigurationContainer.REPLICATION_PATH,
+				new HashMap<String, String>(), null), FakeHttp
+				.response(exchange));
+
+		assertEquals(503, exchange.getCode());
+	}
+
+	private Node node(String id) throws IOException {
+		Node result = new Node(id);
+		nodes.add(result);
+		return result;
+	}
+
+	/**
+	 * Makes the nodes peers, returning once they have caught up with each
+	 * other.
+	 */
+	private static void connect(Node a, Node b) throws InterruptedException {
+		a.replicator.addPeer(b.url);
+		b.replicator.addPeer(a.url);
+		a.replicator.start(a.container);
+		b.replicator.start(b.container);
+
+		long deadline = System.currentTimeMillis() + 5000;
+
+		// a snapshot read from the peer, and one pushed to it
+		while ((a.replicator.getSnapshotCount() < 2 || b.replicator
+				.getSnapshotCount() < 2)
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	private static String write(String key, String value, long time,
+			String node) {
+		List<StampedValue> writes = new ArrayList<StampedValue>();
+		writes.add(new StampedValue("settings", key, value, time, node));
+		return Replicator.encode(node, writes, false);
+	}
+
+	private static String value(Node node, String key) {
+		return node.container.getSnapshot("settings").getProperty(key);
+	}
+
+	private static void await(Node node, String key, String value)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+
+		while (!equal(value(node, key), value)
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(value, value(node, key));
+	}
+
+	/**
+	 * Waits for the node to fail more requests than it had.
+	 */
+	private static void awaitFailure(Node node, long failures)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+
+		while (node.replicator.getFailureCount() <= failures
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertTrue(node.replicator.getFailureCount() > failures);
+	}
+
+	/**
+	 * Waits for the node to push or read more snapshots than it had.
+	 */
+	private static void awaitSnapshot(Node node, long snapshots)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+
+		while (node.replicator.getSnapshotCount() <= snapshots
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertTrue(node.replicator.getSnapshotCount() > snapshots);
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * A container and its replicator, with the replication endpoint served
+	 * on a port of its own.
+	 */
+	private static final class Node {
+
+		private final ConfigurationContainer container;
+		private final Replicator replicator;
+		private final HttpServer server;
+		private final URL url;
+
+		/**
+		 * Set to turn replication requests away, as if unreachable.
+		 */
+		private volatile boolean down;
+
+		private Node(String id) throws IOException {
+			Map<String, DisplayableConfiguration> configs = new HashMap<String, DisplayableConfiguration>();
+
+			DisplayableBasicConfiguration config = new DisplayableBasicConfiguration();
+			config.setId("settings");
+			config.setProperty("colour", "blue");
+			config.setProperty("size", "10");
+			configs.put(config.getId(), config);
+
+			container = new ConfigurationContainer(configs);
+			replicator = new Replicator(id);
+			replicator.setRetryBackoff(10, 50, TimeUnit.MILLISECONDS);
+			container.addListener(replicator);
+
+			server = HttpServer.create(new InetSocketAddress("localhost", 0),
+					0);
+			server.createContext(ConfigurationContainer.REPLICATION_PATH,
+					new HttpHandler() {
+
+						@Override
+						public void handle(HttpExchange exchange)
+								throws IOException {
+							handleReplication(exchange);
+						}
+					});
+			server.start();
+
+			url = new URL("http://localhost:" + server.getAddress().getPort()
+					+ "/");
+		}
+
+		private void handleReplication(HttpExchange exchange)
+				throws IOException {
+
+			try {
+				if (down) {
+					exchange.sendResponseHeaders(503, -1);
+				} else if (exchange.getRequestMethod().equals("GET")) {
+					byte[] body = replicator.snapshot().getBytes("UTF-8");
+					exchange.sendResponseHeaders(200, body.length);
+
+					OutputStream out = exchange.getResponseBody();
+					out.write(body);
+					out.close();
+				} else {
+					replicator.receive(read(exchange.getRequestBody()));
+					exchange.sendResponseHeaders(204, -1);
+				}
+			} finally {
+				exchange.close();
+			}
+		}
+
+		private void close() {
+			replicator.stop();
+			server.stop(0);
+			container.close();
+		}
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read;
+
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+
+		return out.toString("UTF-8");
+	}
+}
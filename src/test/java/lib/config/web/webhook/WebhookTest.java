@@ -0,0 +1,184 @@
+package lib.config.web.webhook;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lib.config.web.container.Change;
+import lib.config.web.container.ChangeSet;
+import lib.config.web.container.ChangeType;
+import lib.config.web.container.ConfigurationVersion;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Posts changes to a stub receiver.
+ */
+public class WebhookTest {
+
+	private HttpServer receiver;
+	private final List<String> bodies = Collections
+			.synchronizedList(new ArrayList<String>());
+
+	/**
+	 * Number of requests the receiver fails before accepting.
+	 */
+	private final AtomicInteger failures = new AtomicInteger();
+
+	private Webhook webhook;
+
+	@Before
+	public void setUp() throws IOException {
+		receiver = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		receiver.createContext("/hook", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				String body = read(exchange.getRequestBody());
+				int code = failures.getAndDecrement() > 0 ? 500 : 204;
+
+				if (code == 204) {
+					bodies.add(body);
+				}
+
+				exchange.sendResponseHeaders(code, -1);
+				exchange.close();
+			}
+		});
+		receiver.start();
+	}
+
+	@After
+	public void tearDown() {
+		if (webhook != null) {
+			webhook.close();
+		}
+
+		receiver.stop(0);
+	}
+
+	@Test
+	public void testChangesWithinWindowAreBatched() throws Exception {
+		webhook = create(10, 10000);
+
+		webhook.onChangeSet(changeSet(1, "red", "blue"));
+		webhook.onChangeSet(changeSet(3, "green"));
+
+		awaitDelivered(3);
+
+		assertEquals(1, bodies.size());
+		assertEquals(1, webhook.getBatchCount());
+		assertEquals(3, webhook.getDeliveryLatency().getCount());
+		assertTrue(bodies.get(0).startsWith(
+				"{\"events\":[{\"sequence\":1,\"config\":\"one\","
+						+ "\"type\":\"modify\",\"key\":\"colour\","
+						+ "\"value\":\"red\",\"version\":1},"));
+		assertTrue(bodies.get(0).contains("\"sequence\":3"));
+	}
+
+	@Test
+	public void testFailedRequestsAreRetried() throws Exception {
+		failures.set(2);
+		webhook = create(10, 10000);
+
+		webhook.onChangeSet(changeSet(1, "red"));
+
+		awaitDelivered(1);
+
+		assertEquals(2, webhook.getFailureCount());
+		assertEquals(1, bodies.size());
+		assertEquals(0, webhook.getDroppedCount());
+	}
+
+	@Test
+	public void testFullQueueDropsOldest() throws Exception {
+		// the receiver fails until the queue has overflowed
+		failures.set(Integer.MAX_VALUE);
+		webhook = create(1, 2);
+
+		webhook.onChangeSet(changeSet(1, "a"));
+		awaitFailures(1);
+
+		// the first is being sent, and the queue keeps the newest two
+		webhook.onChangeSet(changeSet(2, "b", "c", "d"));
+
+		assertEquals(2, webhook.getQueueDepth());
+		assertEquals(1, webhook.getDroppedCount());
+
+		failures.set(0);
+		awaitDelivered(3);
+
+		assertEquals(3, bodies.size());
+		assertTrue(bodies.get(1).contains("\"value\":\"c\""));
+		assertTrue(bodies.get(2).contains("\"value\":\"d\""));
+	}
+
+	private Webhook create(int batchSize, int capacity) throws IOException {
+		Webhook result = new Webhook(new URL("http://localhost:"
+				+ receiver.getAddress().getPort() + "/hook"), batchSize, 200,
+				TimeUnit.MILLISECONDS, capacity);
+		result.setRetryBackoff(10, 20, TimeUnit.MILLISECONDS);
+		return result;
+	}
+
+	private static ChangeSet changeSet(long sequence, String... values) {
+		List<Change> changes = new ArrayList<Change>();
+
+		for (String value : values) {
+			changes.add(new Change(ChangeType.MODIFY, "colour", null, value));
+		}
+
+		return new ChangeSet("one", null, new ConfigurationVersion(1, 0),
+				changes, sequence);
+	}
+
+	private void awaitDelivered(long count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+
+		while (webhook.getDeliveredCount() < count
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(count, webhook.getDeliveredCount());
+	}
+
+	private void awaitFailures(long count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+
+		while (webhook.getFailureCount() < count
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertTrue(webhook.getFailureCount() >= count);
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read;
+
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+
+		return out.toString("UTF-8");
+	}
+}